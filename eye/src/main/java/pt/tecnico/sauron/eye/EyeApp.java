@@ -2,7 +2,6 @@ package pt.tecnico.sauron.eye;
 
 import io.grpc.StatusRuntimeException;
 import pt.tecnico.sauron.silo.grpc.CamJoinResponse;
-import pt.tecnico.sauron.silo.grpc.CamReportResponse;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 
 import java.util.Scanner;
@@ -96,7 +95,7 @@ public class EyeApp {
 
 	private static void handleCamReport(EyeServiceImpl service) {
 		try {
-			CamReportResponse response = service.sendCamReport();
+			service.sendCamReport();
 			System.out.println("Sent observations");
 		} catch (StatusRuntimeException exception) {
 			System.out.println("Caught exception: " + exception.getStatus().getDescription());
@@ -1,5 +1,6 @@
 package pt.tecnico.sauron.eye;
 
+import pt.tecnico.sauron.silo.client.CamReportStream;
 import pt.tecnico.sauron.silo.client.SiloFrontend;
 import pt.tecnico.sauron.silo.client.RequestBuilder;
 import pt.tecnico.sauron.silo.grpc.*;
@@ -16,6 +17,8 @@ public class EyeServiceImpl {
     private final SiloFrontend frontend;
     private final String camName;
     private final List<ObjectInfo> observations;
+    // Opened on the first report
+    private CamReportStream reportStream;
 
     public EyeServiceImpl(String zooHost, String zooPort, int numReplicas, int cacheSize, String camName) {
         this.frontend = new SiloFrontend(zooHost, zooPort, numReplicas, cacheSize);
@@ -35,10 +38,17 @@ public class EyeServiceImpl {
         return frontend.sendCamJoin(camInfo);
     }
 
-    public CamReportResponse sendCamReport() {
-        CamReportResponse response = frontend.sendCamReport(camName, observations);
+    /**
+     * Sends the observations added since the last report as a frame
+     * of the camera report stream, without waiting for the replica
+     */
+    public void sendCamReport() {
+        if (reportStream == null) {
+            reportStream = frontend.openCamReportStream(camName, exception ->
+                    System.out.println("Caught exception: " + exception.getStatus().getDescription()));
+        }
+        reportStream.send(observations);
         observations.clear();
-        return response;
     }
 
     public void addObservation(String type, String alphanumericId) {
@@ -52,6 +62,10 @@ public class EyeServiceImpl {
     }
 
     public void close() {
+        // Waits until every frame is acknowledged
+        if (reportStream != null) {
+            reportStream.close();
+        }
         frontend.close();
     }
 
@@ -0,0 +1,272 @@
+package pt.tecnico.sauron.silo.client;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import pt.tecnico.sauron.silo.grpc.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Long lived stream of reports from a camera. Frames are sent without waiting
+ * for a response and the replica acknowledges them in batches. Frames not yet
+ * acknowledged are kept so that they can be sent again in a new stream if
+ * the stream fails. Every frame is numbered, a replica that already accepted
+ * a frame sent again only acknowledges it. A replica too loaded to take a
+ * frame gets it again once the delay it asked for has passed
+ */
+public class CamReportStream implements AutoCloseable {
+
+    private final SiloFrontend frontend;
+    private final String camName;
+    private final Consumer<StatusRuntimeException> errorHandler;
+    // Identifies the frames of the camera in every stream opened
+    private final String streamId = UUID.randomUUID().toString();
+    private long nextSequence = 1;
+
+    // Frames of the current stream not acknowledged, oldest first
+    private final Deque<Frame> unacknowledged = new ArrayDeque<>();
+    // Request side of the current stream or null if there is none open
+    private ClientCallStreamObserver<CamReportRequest> requestObserver;
+    // Only the first frame of a stream carries the prev timestamp
+    private boolean firstFrame;
+    private long acknowledged;
+    // Times in a row the replica refused a frame for being overloaded
+    private int overloadedTries;
+    // Times in a row the stream failed with the replica unavailable
+    private int unavailableTries;
+    private boolean completed;
+    private StatusRuntimeException failure;
+    // Update id received from the replica, merged by the caller thread
+    private VectorTS lastUpdateID;
+
+    CamReportStream(SiloFrontend frontend, String camName, Consumer<StatusRuntimeException> errorHandler) {
+        this.frontend = frontend;
+        this.camName = camName;
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Sends a frame of observations. Only blocks while the stream can not take more frames
+     * @param observations seen by the camera
+     */
+    public synchronized void send(List<ObjectInfo> observations) {
+        // Merge first so that a stream opened on recovery follows the acknowledged frames
+        mergeUpdateID();
+        recover();
+        Frame frame = new Frame(nextSequence++, new ArrayList<>(observations));
+        unacknowledged.addLast(frame);
+        push(frame);
+    }
+
+    /**
+     * Ends the stream and waits until every frame is acknowledged
+     */
+    @Override
+    public synchronized void close() {
+        mergeUpdateID();
+        recover();
+        while (requestObserver != null) {
+            requestObserver.onCompleted();
+            try {
+                while (!completed && failure == null) {
+                    wait();
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (failure != null) {
+                // Frames sent again may open a new stream to close
+                mergeUpdateID();
+                recover();
+            }
+            else {
+                requestObserver = null;
+            }
+        }
+        mergeUpdateID();
+    }
+
+    private void push(Frame frame) {
+        if (requestObserver == null) {
+            try {
+                open();
+            } catch (StatusRuntimeException exception) {
+                // No replica to open the stream to, handled on recovery as a failed stream
+                failure = exception;
+                return;
+            }
+        }
+        if (!awaitReady()) {
+            // Frame stays unacknowledged and is sent again on recovery
+            return;
+        }
+        CamReportRequest request = firstFrame
+                ? RequestBuilder.buildCamReportFrame(camName, frame.observations, frontend.currentPrev(),
+                        streamId, frame.sequence)
+                : RequestBuilder.buildCamReportFrame(camName, frame.observations, streamId, frame.sequence);
+        firstFrame = false;
+        requestObserver.onNext(request);
+    }
+
+    private boolean awaitReady() {
+        try {
+            while (failure == null && !requestObserver.isReady()) {
+                wait();
+            }
+        } catch (InterruptedException exception) {
+            // Let gRPC buffer the frame
+            Thread.currentThread().interrupt();
+        }
+        return failure == null;
+    }
+
+    private void open() {
+        firstFrame = true;
+        acknowledged = 0;
+        completed = false;
+        frontend.newAsyncStub().camReportStream(new StreamListener());
+    }
+
+    private void recover() {
+        while (failure != null) {
+            StatusRuntimeException exception = failure;
+            failure = null;
+            requestObserver = null;
+            List<Frame> pending = new ArrayList<>(unacknowledged);
+            unacknowledged.clear();
+
+            long retryDelay = SiloFrontend.retryDelay(exception);
+            if (isStreamLost(exception)) {
+                frontend.disconnect(exception);
+                if (++unavailableTries <= SiloFrontend.MAX_RETRY) {
+                    // Replica may have accepted frames it did not acknowledge yet, it skips them
+                    for (Frame frame : pending) {
+                        unacknowledged.addLast(frame);
+                        push(frame);
+                    }
+                }
+                else {
+                    // Gave up on the frames pending
+                    unavailableTries = 0;
+                    if (!pending.isEmpty()) errorHandler.accept(exception);
+                }
+            }
+            else if (retryDelay >= 0 && ++overloadedTries <= SiloFrontend.MAX_OVERLOADED_RETRY) {
+                // Rejected frame was not taken, so it is sent again with the ones after it
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                for (Frame frame : pending) {
+                    unacknowledged.addLast(frame);
+                    push(frame);
+                }
+            }
+            else if (!pending.isEmpty()) {
+                if (retryDelay >= 0) {
+                    // Gave up waiting for the replica
+                    overloadedTries = 0;
+                    errorHandler.accept(exception);
+                }
+                // Replica acknowledges before rejecting, so the rejected frame is the oldest
+                pending.remove(0);
+                for (Frame frame : pending) {
+                    unacknowledged.addLast(frame);
+                    push(frame);
+                }
+            }
+        }
+    }
+
+    /* Replica went away or shut the stream down, no frame was rejected */
+    private static boolean isStreamLost(StatusRuntimeException exception) {
+        Status.Code code = exception.getStatus().getCode();
+        return code == Status.Code.UNAVAILABLE || code == Status.Code.CANCELLED;
+    }
+
+    private void mergeUpdateID() {
+        if (lastUpdateID != null) {
+            frontend.mergeUpdateID(lastUpdateID);
+            lastUpdateID = null;
+        }
+    }
+
+    /* Observations of a frame and its number among the frames of the camera */
+    private static class Frame {
+
+        private final long sequence;
+        private final List<ObjectInfo> observations;
+
+        private Frame(long sequence, List<ObjectInfo> observations) {
+            this.sequence = sequence;
+            this.observations = observations;
+        }
+    }
+
+    /* Callbacks of a single stream, ignored once the stream is replaced */
+    private class StreamListener implements ClientResponseObserver<CamReportRequest, CamReportStreamResponse> {
+
+        private ClientCallStreamObserver<CamReportRequest> call;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<CamReportRequest> requestStream) {
+            call = requestStream;
+            requestObserver = requestStream;
+            requestStream.setOnReadyHandler(() -> {
+                synchronized (CamReportStream.this) {
+                    CamReportStream.this.notifyAll();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(CamReportStreamResponse response) {
+            synchronized (CamReportStream.this) {
+                if (call != requestObserver) return;
+                long newlyAcknowledged = response.getAcknowledged() - acknowledged;
+                if (newlyAcknowledged > 0) {
+                    overloadedTries = 0;
+                    unavailableTries = 0;
+                }
+                for (long i = 0; i < newlyAcknowledged && !unacknowledged.isEmpty(); i++) {
+                    unacknowledged.pollFirst();
+                }
+                acknowledged = response.getAcknowledged();
+                lastUpdateID = response.getUpdateID();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            synchronized (CamReportStream.this) {
+                if (call != requestObserver) return;
+                failure = throwable instanceof StatusRuntimeException
+                        ? (StatusRuntimeException) throwable
+                        : Status.fromThrowable(throwable).asRuntimeException();
+                // Overloaded replicas are retried, the error is only reported if they never recover
+                if (!isStreamLost(failure) && SiloFrontend.retryDelay(failure) < 0) {
+                    errorHandler.accept(failure);
+                }
+                CamReportStream.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            synchronized (CamReportStream.this) {
+                if (call != requestObserver) return;
+                completed = true;
+                CamReportStream.this.notifyAll();
+            }
+        }
+    }
+}
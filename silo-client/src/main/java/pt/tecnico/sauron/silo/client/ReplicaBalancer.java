@@ -0,0 +1,526 @@
+package pt.tecnico.sauron.silo.client;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import pt.tecnico.sauron.silo.grpc.PingRequest;
+import pt.tecnico.sauron.silo.grpc.PingResponse;
+import pt.tecnico.sauron.silo.grpc.SiloGrpc;
+import pt.tecnico.sauron.silo.grpc.VectorTS;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Spreads the queries of a frontend over the replicas. Keeps a channel to
+ * every replica registered, with the average latency of its answers and the
+ * last value timestamp it answered with. A query goes to the replicas that
+ * already applied every update the client saw, and to the better of two
+ * random ones. When none is known to, the query is sent to the better one
+ * anyway and waits there for the updates, while the replicas are asked for
+ * their timestamps in the background. A replica not measured lately counts
+ * as the fastest so that every replica gets measured again. Updates stay on
+ * a single replica, which checks them against the updates it received
+ * before. A query may also be hedged: sent to a second replica once it took
+ * longer than most answers, keeping the first answer
+ */
+class ReplicaBalancer implements AutoCloseable {
+
+    // Weight of the newest latency in the average
+    private static final double LATENCY_WEIGHT = 0.2;
+    // Latencies kept to find the delay before hedging, and how many are needed
+    private static final int LATENCY_SAMPLES = 128;
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    // Time after which a replica that did not answer is measured again
+    private static final long REMEASURE_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    // Milliseconds the replicas are given to answer a probe for their timestamps
+    private static final long PROBE_TIMEOUT = 500;
+    private static final String PROBE_MESSAGE = "probe";
+    // Time an unavailable replica is left out
+    private static final long UNAVAILABLE_BACKOFF = TimeUnit.SECONDS.toNanos(2);
+    // Time between two lookups of the replicas
+    private static final long REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+
+    private final ZKNaming zkNaming;
+    // Replica path if can only connect to single replica, null if any replica can be used
+    private final String replicaPath;
+    private final Random random = new Random();
+    private volatile boolean hedging = false;
+    // True while the replicas are being asked for their timestamps
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+
+    // Guarded by this
+    private final Map<String, Replica> replicas = new HashMap<>();
+    private Replica home;
+    private long refreshedAt;
+    private long[] freshest = new long[0];
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private long latencyCount = 0;
+
+    /**
+     * @param zkNaming where the replicas are registered
+     * @param replicaPath of the only replica to use or null to use any replica
+     */
+    ReplicaBalancer(ZKNaming zkNaming, String replicaPath) {
+        this.zkNaming = zkNaming;
+        this.replicaPath = replicaPath;
+    }
+
+    /**
+     * Looks up the replicas and opens a channel to each one
+     * @return true if there is any replica
+     */
+    boolean connect() {
+        refresh();
+        synchronized (this) {
+            return !replicas.isEmpty();
+        }
+    }
+
+    void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Sends a query to the best replica, and to a second one if hedging and
+     * the first one did not answer in time
+     * @param prev timestamp of the client
+     * @param call sending the query
+     * @param newTS timestamp of an answer
+     * @return the first answer
+     * @throws StatusRuntimeException with the error of the last replica if none answered
+     */
+    <T> T query(VectorTS prev, Function<SiloGrpc.SiloFutureStub, ListenableFuture<T>> call,
+                Function<T, VectorTS> newTS) {
+        long[] prevTS = toArray(prev);
+        Replica primary = choose(prevTS);
+        Hedge<T> hedge = new Hedge<>(newTS);
+        hedge.send(primary, call);
+        long delay = hedging ? hedgeDelay() : -1;
+        if (delay >= 0 && !hedge.await(delay)) {
+            Replica backup = chooseOther(primary, prevTS);
+            if (backup != null) {
+                hedge.send(backup, call);
+            }
+        }
+        return hedge.get();
+    }
+
+    /**
+     * Sends an update to the replica updates stay on
+     * @param call sending the update
+     * @return the answer
+     */
+    <T> T update(Function<SiloGrpc.SiloBlockingStub, T> call) {
+        Replica replica = home();
+        try {
+            return call.apply(replica.blockingStub);
+        } catch (StatusRuntimeException exception) {
+            failed(replica, exception);
+            throw exception;
+        }
+    }
+
+    /**
+     * @param prev timestamp of the client
+     * @return the best replica to query, among the ones that applied every
+     *         update the client saw if there is any
+     * @throws StatusRuntimeException if there is no replica
+     */
+    Replica choose(VectorTS prev) {
+        return choose(toArray(prev));
+    }
+
+    /**
+     * @return the replica updates are sent to, the same one until it fails
+     */
+    Replica home() {
+        refreshIfDue();
+        synchronized (this) {
+            if (home == null || !home.isAvailable(System.nanoTime())) {
+                home = better(available());
+            }
+            return home;
+        }
+    }
+
+    /**
+     * Leaves a replica out for a while if it is unavailable
+     * @param replica that failed a call
+     * @param exception of the call
+     */
+    void failed(Replica replica, StatusRuntimeException exception) {
+        if (exception.getStatus().getCode() != Status.Code.UNAVAILABLE) return;
+        System.out.println(String.format("INFO: Unable to send to '%s'", replica.target));
+        synchronized (this) {
+            replica.unavailableUntil = System.nanoTime() + UNAVAILABLE_BACKOFF;
+            if (home == replica) {
+                home = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        replicas.values().forEach(replica -> replica.channel.shutdown());
+        replicas.clear();
+        home = null;
+    }
+
+    private Replica choose(long[] prev) {
+        refreshIfDue();
+        List<Replica> candidates;
+        synchronized (this) {
+            candidates = available();
+            List<Replica> upToDate = upToDate(candidates, prev);
+            if (!upToDate.isEmpty()) return better(upToDate);
+        }
+        // No replica is known to have the updates of the client, they may have them by now.
+        // The query carries the timestamp of the client, the replica holds it until it has them
+        probe(candidates);
+        synchronized (this) {
+            return better(candidates);
+        }
+    }
+
+    /* Best of two random available and up to date replicas other than the excluded one, null if there is none */
+    private synchronized Replica chooseOther(Replica excluded, long[] prev) {
+        List<Replica> candidates = upToDate(candidates(excluded, System.nanoTime()), prev);
+        return candidates.isEmpty() ? null : better(candidates);
+    }
+
+    /* Available replicas, or every replica if none is */
+    private List<Replica> available() {
+        List<Replica> candidates = candidates(null, System.nanoTime());
+        // Every replica failed lately, one may be back
+        if (candidates.isEmpty()) {
+            candidates = new ArrayList<>(replicas.values());
+        }
+        if (candidates.isEmpty()) {
+            throw Status.UNAVAILABLE.withDescription("No available replicas").asRuntimeException();
+        }
+        return candidates;
+    }
+
+    private List<Replica> candidates(Replica excluded, long now) {
+        List<Replica> candidates = new ArrayList<>(replicas.size());
+        for (Replica replica : replicas.values()) {
+            if (replica != excluded && replica.isAvailable(now)) {
+                candidates.add(replica);
+            }
+        }
+        return candidates;
+    }
+
+    private List<Replica> upToDate(List<Replica> candidates, long[] prev) {
+        List<Replica> upToDate = new ArrayList<>(candidates.size());
+        for (Replica replica : candidates) {
+            if (dominates(replica.value, prev)) {
+                upToDate.add(replica);
+            }
+        }
+        return upToDate;
+    }
+
+    private Replica better(List<Replica> candidates) {
+        int first = random.nextInt(candidates.size());
+        if (candidates.size() == 1) return candidates.get(first);
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) second++;
+        long now = System.nanoTime();
+        return score(candidates.get(first), now) <= score(candidates.get(second), now)
+                ? candidates.get(first)
+                : candidates.get(second);
+    }
+
+    /* Average latency, scaled by the number of updates the replica was missing */
+    private double score(Replica replica, long now) {
+        if (now - replica.answeredAt >= REMEASURE_INTERVAL) return 0;
+        long behind = 0;
+        for (int i = 0; i < freshest.length; i++) {
+            behind += Math.max(0, freshest[i] - (i < replica.value.length ? replica.value[i] : 0));
+        }
+        return replica.latency * (1 + behind);
+    }
+
+    /* Delay before hedging, -1 if there are not enough answers yet */
+    private synchronized long hedgeDelay() {
+        int count = (int) Math.min(latencyCount, LATENCY_SAMPLES);
+        if (count < MIN_HEDGE_SAMPLES) return -1;
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(HEDGE_PERCENTILE * count) - 1];
+    }
+
+    /**
+     * Keeps the latency of an answer
+     * @param replica that answered
+     * @param latency nanoseconds from sending to the answer
+     * @param newTS timestamp of the answer, null if it has none
+     */
+    private synchronized void answered(Replica replica, long latency, VectorTS newTS) {
+        measured(replica, latency);
+        latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = latency;
+        if (newTS != null) {
+            seen(replica, newTS);
+        }
+    }
+
+    /**
+     * Keeps the time of a copy of a query cancelled once the other copy
+     * answered. The replica took at least as long, which counts in its
+     * average, but it is no answer to find the delay before hedging from
+     * @param replica of the cancelled copy
+     * @param elapsed nanoseconds from sending to the cancellation
+     */
+    private synchronized void outpaced(Replica replica, long elapsed) {
+        measured(replica, elapsed);
+    }
+
+    private void measured(Replica replica, long latency) {
+        long now = System.nanoTime();
+        // An old average says little about the replica now
+        replica.latency = now - replica.answeredAt >= REMEASURE_INTERVAL
+                ? latency
+                : replica.latency + LATENCY_WEIGHT * (latency - replica.latency);
+        replica.answeredAt = now;
+    }
+
+    /**
+     * Keeps a value timestamp of a replica
+     * @param replica that sent the timestamp
+     * @param value timestamp of the replica when it answered
+     */
+    private synchronized void seen(Replica replica, VectorTS value) {
+        replica.value = merge(replica.value, toArray(value));
+        freshest = merge(freshest, replica.value);
+    }
+
+    /* Asks the replicas for their value timestamps without waiting for them,
+       the answers are used by the next queries. One probe at a time */
+    private void probe(List<Replica> candidates) {
+        if (!probing.compareAndSet(false, true)) return;
+        AtomicInteger pending = new AtomicInteger(candidates.size());
+        PingRequest request = RequestBuilder.buildPingRequest(PROBE_MESSAGE);
+        for (Replica replica : candidates) {
+            ListenableFuture<PingResponse> future = replica.futureStub
+                    .withDeadlineAfter(PROBE_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .ctrlPing(request);
+            Futures.addCallback(future, new FutureCallback<PingResponse>() {
+                @Override
+                public void onSuccess(PingResponse response) {
+                    // Replicas that do not send their timestamp are left as they were
+                    if (response.hasValue()) {
+                        seen(replica, response.getValue());
+                    }
+                    if (pending.decrementAndGet() == 0) probing.set(false);
+                }
+
+                @Override
+                public void onFailure(Throwable failure) {
+                    if (pending.decrementAndGet() == 0) probing.set(false);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    /* Looks up the replicas if it is time to or none is available, without holding the lock */
+    private void refreshIfDue() {
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - refreshedAt < REFRESH_INTERVAL && !candidates(null, now).isEmpty()) return;
+        }
+        refresh();
+    }
+
+    /* Opens channels to new replicas and closes the ones to replicas gone.
+       The lookup is done outside the lock, only the channels are changed under it */
+    private void refresh() {
+        synchronized (this) {
+            refreshedAt = System.nanoTime();
+        }
+        Map<String, String> targets = new HashMap<>();
+        try {
+            if (replicaPath != null) {
+                ZKRecord record = zkNaming.lookup(replicaPath);
+                targets.put(record.getPath(), record.getURI());
+            }
+            else {
+                for (ZKRecord record : zkNaming.listRecords(SiloFrontend.REPLICA_BASE_PATH)) {
+                    targets.put(record.getPath(), record.getURI());
+                }
+            }
+        } catch (ZKNamingException exception) {
+            System.out.println("WARNING: Unable to look up replicas: " + exception.getMessage());
+            return;
+        }
+        synchronized (this) {
+            Iterator<Replica> iterator = replicas.values().iterator();
+            while (iterator.hasNext()) {
+                Replica replica = iterator.next();
+                if (!replica.target.equals(targets.get(replica.path))) {
+                    replica.channel.shutdown();
+                    iterator.remove();
+                    if (home == replica) home = null;
+                }
+            }
+            targets.forEach((path, target) -> {
+                if (!replicas.containsKey(path)) {
+                    System.out.println(String.format("INFO: Connecting to server '%s' at '%s'", path, target));
+                    replicas.put(path, new Replica(path, target));
+                }
+            });
+        }
+    }
+
+    /**
+     * Channel to a replica and what is known of its answers
+     */
+    static class Replica {
+
+        private final String path;
+        private final String target;
+        private final ManagedChannel channel;
+        private final SiloGrpc.SiloBlockingStub blockingStub;
+        private final SiloGrpc.SiloFutureStub futureStub;
+
+        // Guarded by the balancer
+        private double latency = 0;
+        private long answeredAt;
+        // Value timestamp last seen, entries only grow
+        private long[] value = new long[0];
+        private long unavailableUntil;
+
+        private Replica(String path, String target) {
+            this.path = path;
+            this.target = target;
+            this.channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+            this.blockingStub = SiloGrpc.newBlockingStub(channel);
+            this.futureStub = SiloGrpc.newFutureStub(channel);
+            this.unavailableUntil = System.nanoTime();
+            this.answeredAt = unavailableUntil - REMEASURE_INTERVAL;
+        }
+
+        SiloGrpc.SiloBlockingStub blockingStub() {
+            return blockingStub;
+        }
+
+        SiloGrpc.SiloStub asyncStub() {
+            return SiloGrpc.newStub(channel);
+        }
+
+        private boolean isAvailable(long now) {
+            return now - unavailableUntil >= 0;
+        }
+    }
+
+    /* Copies of a query in flight, completed by the first answer */
+    private class Hedge<T> {
+
+        private final Function<T, VectorTS> newTS;
+        private final CompletableFuture<T> answer = new CompletableFuture<>();
+        private final List<ListenableFuture<T>> sent = new ArrayList<>(2);
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private Hedge(Function<T, VectorTS> newTS) {
+            this.newTS = newTS;
+        }
+
+        private void send(Replica replica, Function<SiloGrpc.SiloFutureStub, ListenableFuture<T>> call) {
+            pending.incrementAndGet();
+            long start = System.nanoTime();
+            ListenableFuture<T> future = call.apply(replica.futureStub);
+            sent.add(future);
+            Futures.addCallback(future, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T response) {
+                    answered(replica, System.nanoTime() - start, newTS.apply(response));
+                    answer.complete(response);
+                }
+
+                @Override
+                public void onFailure(Throwable failure) {
+                    if (failure instanceof CancellationException) {
+                        outpaced(replica, System.nanoTime() - start);
+                        return;
+                    }
+                    StatusRuntimeException exception = toStatusException(failure);
+                    if (exception.getStatus().getCode() == Status.Code.UNAVAILABLE) {
+                        failed(replica, exception);
+                        // Wait for the other copy if there is one
+                        if (pending.decrementAndGet() > 0) return;
+                    }
+                    else {
+                        answered(replica, System.nanoTime() - start, null);
+                    }
+                    answer.completeExceptionally(exception);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        /* True if answered within the delay */
+        private boolean await(long delay) {
+            try {
+                answer.get(delay, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException exception) {
+                return false;
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException exception) {
+                // Handled by get
+            }
+            return true;
+        }
+
+        private T get() {
+            try {
+                return answer.get();
+            } catch (ExecutionException exception) {
+                throw toStatusException(exception.getCause());
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw Status.CANCELLED.withCause(exception).asRuntimeException();
+            } finally {
+                sent.forEach(future -> future.cancel(true));
+            }
+        }
+    }
+
+    private static long[] toArray(VectorTS ts) {
+        return ts.getTimestampList().stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static long[] merge(long[] timestamp, long[] other) {
+        long[] merged = Arrays.copyOf(timestamp, Math.max(timestamp.length, other.length));
+        for (int i = 0; i < other.length; i++) {
+            merged[i] = Math.max(merged[i], other[i]);
+        }
+        return merged;
+    }
+
+    /* True if a timestamp has every entry of the other one, missing entries are 0 */
+    private static boolean dominates(long[] timestamp, long[] other) {
+        for (int i = 0; i < other.length; i++) {
+            if ((i < timestamp.length ? timestamp[i] : 0) < other[i]) return false;
+        }
+        return true;
+    }
+
+    private static StatusRuntimeException toStatusException(Throwable failure) {
+        return failure instanceof StatusRuntimeException
+                ? (StatusRuntimeException) failure
+                : Status.fromThrowable(failure).asRuntimeException();
+    }
+}
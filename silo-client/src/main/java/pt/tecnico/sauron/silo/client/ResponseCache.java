@@ -0,0 +1,288 @@
+package pt.tecnico.sauron.silo.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Cache of the responses of the replicas, shared by every thread of a client.
+ * Lookups never lock, entries are split in segments by key and each segment
+ * evicts with its own lock, following a CLOCK: an entry read since the hand
+ * last passed gets another round, the first one not read is evicted. Bounded
+ * both in entries and in weight, the bounds are split evenly between the
+ * segments. Entries may also expire some time after they were written.
+ * A cache of no entries keeps nothing
+ * @param <K> key of the entries, with equals and hashCode
+ * @param <V> cached value
+ */
+public class ResponseCache<K, V> {
+
+    private static final int MAX_SEGMENTS = 16;
+    // Smallest segment, so that small caches are not split in segments of a single entry
+    private static final int MIN_SEGMENT_ENTRIES = 8;
+
+    private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+    private final List<Segment> segments;
+    private final ToIntBiFunction<K, V> weigher;
+    private final long timeToLive;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param maxEntries number of entries kept at most, 0 to cache nothing
+     * @param maxWeight total weight of the entries kept at most
+     * @param timeToLive milliseconds an entry is kept after it is written, 0 to keep it until evicted
+     * @param weigher weight of an entry, such as its size in bytes
+     */
+    public ResponseCache(int maxEntries, long maxWeight, long timeToLive, ToIntBiFunction<K, V> weigher) {
+        // No segment at all when nothing is cached
+        int count = maxEntries > 0 ? 1 : 0;
+        while (count > 0 && count < MAX_SEGMENTS && (long) count * 2 * MIN_SEGMENT_ENTRIES <= maxEntries) {
+            count *= 2;
+        }
+        List<Segment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // The first segments take the remainder of the division
+            segments.add(new Segment(maxEntries / count + (i < maxEntries % count ? 1 : 0),
+                    Math.max(1, maxWeight / count)));
+        }
+        this.segments = segments;
+        this.weigher = weigher;
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+    }
+
+    /**
+     * @param key of the entry
+     * @return the value or null if there is none or it expired
+     */
+    public V get(K key) {
+        Entry<K, V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.isExpired(System.nanoTime())) {
+            segmentFor(key).remove(entry);
+            expirations.increment();
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Writes a value, or keeps the one already cached if it should win. The
+     * choice is made while no other thread writes the same key
+     * @param key of the entry
+     * @param value to write
+     * @param choose given the cached value and the new one, returns the one to keep
+     * @return the value kept
+     */
+    public V merge(K key, V value, BinaryOperator<V> choose) {
+        if (segments.isEmpty()) return value;
+        return segmentFor(key).merge(key, value, choose);
+    }
+
+    public void put(K key, V value) {
+        merge(key, value, (cached, written) -> written);
+    }
+
+    public void invalidate(K key) {
+        Entry<K, V> entry = entries.get(key);
+        if (entry != null) {
+            segmentFor(key).remove(entry);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return counters since the cache was built
+     */
+    public Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), expirations.sum());
+    }
+
+    private Segment segmentFor(K key) {
+        int hash = key.hashCode();
+        // Spread the high bits, segments are chosen by the low ones
+        return segments.get((hash ^ (hash >>> 16)) & (segments.size() - 1));
+    }
+
+    private static class Entry<K, V> {
+
+        private final K key;
+        private final V value;
+        private final int weight;
+        private final long expiresAt;
+        private volatile boolean referenced = false;
+        // Position in the ring of the segment, -1 once removed. Guarded by the segment
+        private int slot = -1;
+
+        private Entry(K key, V value, int weight, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt != 0 && now - expiresAt >= 0;
+        }
+    }
+
+    /* Entries of a range of keys, in a ring swept by the clock hand */
+    private class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        // Fixed size, null where there is no entry
+        private final List<Entry<K, V>> ring;
+        private final long maxWeight;
+        private int hand = 0;
+        private int count = 0;
+        private long weight = 0;
+
+        private Segment(int maxEntries, long maxWeight) {
+            this.ring = new ArrayList<>(Collections.nCopies(maxEntries, null));
+            this.maxWeight = maxWeight;
+        }
+
+        private V merge(K key, V value, BinaryOperator<V> choose) {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                Entry<K, V> current = entries.get(key);
+                if (current != null && current.isExpired(now)) {
+                    unlink(current);
+                    expirations.increment();
+                    current = null;
+                }
+                V kept = current == null ? value : choose.apply(current.value, value);
+                if (current != null && kept == current.value) {
+                    return kept;
+                }
+                int entryWeight = weigher.applyAsInt(key, kept);
+                if (current != null) {
+                    unlink(current);
+                }
+                // Too heavy to ever fit, not cached
+                if (entryWeight > maxWeight) {
+                    return kept;
+                }
+                while (count == ring.size() || (count > 0 && weight + entryWeight > maxWeight)) {
+                    evict();
+                }
+                Entry<K, V> entry = new Entry<>(key, kept, entryWeight, timeToLive == 0 ? 0 : now + timeToLive);
+                while (ring.get(hand) != null) {
+                    hand = (hand + 1) % ring.size();
+                }
+                entry.slot = hand;
+                ring.set(hand, entry);
+                hand = (hand + 1) % ring.size();
+                count++;
+                weight += entryWeight;
+                entries.put(key, entry);
+                return kept;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(Entry<K, V> entry) {
+            lock.lock();
+            try {
+                unlink(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Evicts the first entry not read since the hand last passed it */
+        private void evict() {
+            while (true) {
+                Entry<K, V> entry = ring.get(hand);
+                if (entry != null) {
+                    if (!entry.referenced) {
+                        unlink(entry);
+                        evictions.increment();
+                        return;
+                    }
+                    entry.referenced = false;
+                }
+                hand = (hand + 1) % ring.size();
+            }
+        }
+
+        private void unlink(Entry<K, V> entry) {
+            if (entry.slot < 0) return;
+            ring.set(entry.slot, null);
+            entry.slot = -1;
+            count--;
+            weight -= entry.weight;
+            entries.remove(entry.key, entry);
+        }
+    }
+
+    /**
+     * Counters of a cache, taken at once
+     */
+    public static class Stats {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long expirations;
+
+        private Stats(long hits, long misses, long evictions, long expirations) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return entries removed to make room for others
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getExpirations() {
+            return expirations;
+        }
+
+        /**
+         * @return fraction of the lookups that found a value, 0 if there were none
+         */
+        public double getHitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d evictions=%d expirations=%d", hits, misses, evictions, expirations);
+        }
+    }
+}
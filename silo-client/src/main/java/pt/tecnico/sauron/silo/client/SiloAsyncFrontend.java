@@ -0,0 +1,394 @@
+package pt.tecnico.sauron.silo.client;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import io.grpc.*;
+import io.grpc.stub.StreamObserver;
+import pt.tecnico.sauron.silo.grpc.*;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Frontend that never blocks the caller: every request returns at once with
+ * a future completed by the gRPC threads, so a single client can have many
+ * requests in flight over the same channel. Safe to share between threads.
+ * Each request depends on the responses merged before it was sent, a request
+ * that must follow another one is sent once the future of the other one completed.
+ * Callbacks on the futures run on the gRPC threads and should not block
+ */
+public class SiloAsyncFrontend implements AutoCloseable {
+
+    private final ZKNaming zkNaming;
+    // Replica path if can only connect to single replica, null if any replica can be used
+    private final String replicaPath;
+    // Merge of every timestamp received, entries only grow
+    private final AtomicLongArray prev;
+
+    // Responses of every query, keyed by the request without its timestamp
+    private final ResponseCache<Message, Message> cache;
+    private volatile int maxWait = SiloFrontend.DEFAULT_MAX_WAIT;
+
+    // Requests waiting to be sent again, so that no gRPC thread waits
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "silo-frontend-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by this, null while not connected
+    private Connection connection;
+
+    public SiloAsyncFrontend(String zooHost, String zooPort, int numReplicas, int maxCacheSize) {
+        this(zooHost, zooPort, null, numReplicas, maxCacheSize);
+    }
+
+    public SiloAsyncFrontend(String zooHost, String zooPort, String replicaInstance, int numReplicas, int maxCacheSize) {
+        this(zooHost, zooPort, replicaInstance, numReplicas, SiloFrontend.newCache(maxCacheSize, 0));
+    }
+
+    /**
+     * @param replicaInstance of the only replica to use or null to use any replica
+     * @param cache of the responses, may be shared with other frontends
+     */
+    public SiloAsyncFrontend(String zooHost, String zooPort, String replicaInstance, int numReplicas,
+                             ResponseCache<Message, Message> cache) {
+        zkNaming = new ZKNaming(zooHost, zooPort);
+        replicaPath = replicaInstance != null ? String.join("/", SiloFrontend.REPLICA_BASE_PATH, replicaInstance) : null;
+        prev = new AtomicLongArray(numReplicas);
+        this.cache = cache;
+    }
+
+    /* Queries */
+
+    public CompletableFuture<CamInfoResponse> camInfo(String name) {
+        CamInfoRequest request = RequestBuilder.buildCamInfoRequest(name, currentPrev(), maxWait);
+        return query(SiloFrontend.cacheKey(request),
+                (stub, observer) -> stub.camInfo(request, observer), CamInfoResponse::getNew);
+    }
+
+    public CompletableFuture<SpotterTrackResponse> spotterTrack(ObjectInfo objectInfo) {
+        SpotterTrackRequest request = RequestBuilder.buildSpotterTrackRequest(objectInfo, currentPrev(), maxWait);
+        return query(SiloFrontend.cacheKey(request),
+                (stub, observer) -> stub.spotterTrack(request, observer), SpotterTrackResponse::getNew);
+    }
+
+    public CompletableFuture<SpotterTrackMatchResponse> spotterTrackMatch(ObjectType objectType, String regex) {
+        SpotterTrackMatchRequest request = RequestBuilder.buildSpotterTrackMatchRequest(objectType, regex, currentPrev(),
+                maxWait);
+        return query(SiloFrontend.cacheKey(request),
+                (stub, observer) -> stub.spotterTrackMatch(request, observer), SpotterTrackMatchResponse::getNew);
+    }
+
+    public CompletableFuture<SpotterTraceResponse> spotterTrace(ObjectInfo objectInfo) {
+        return spotterTrace(objectInfo, 0, null, null, null);
+    }
+
+    /**
+     * Traces a window of the observations of an object, newest first
+     * @param objectInfo of the object to trace
+     * @param limit max number of observations, 0 for no limit
+     * @param since inclusive lower bound of the timestamps or null
+     * @param until exclusive upper bound of the timestamps or null
+     * @param cursor next cursor of the previous page or null for the first page
+     * @return the page of observations, with the next cursor if the window has more
+     */
+    public CompletableFuture<SpotterTraceResponse> spotterTrace(ObjectInfo objectInfo, int limit, Timestamp since,
+                                                                Timestamp until, TraceCursor cursor) {
+        SpotterTraceRequest request = RequestBuilder.buildSpotterTraceRequest(objectInfo, currentPrev(), maxWait,
+                limit, since, until, cursor);
+        return query(SiloFrontend.cacheKey(request),
+                (stub, observer) -> stub.spotterTrace(request, observer), SpotterTraceResponse::getNew);
+    }
+
+    /* Updates */
+
+    public CompletableFuture<CamJoinResponse> camJoin(CamInfo camInfo) {
+        CamJoinRequest request = RequestBuilder.buildCamJoinRequest(camInfo, currentPrev());
+        return update((stub, observer) -> stub.camJoin(request, observer), CamJoinResponse::getUpdateID);
+    }
+
+    public CompletableFuture<CamReportResponse> camReport(String camName, List<ObjectInfo> objectInfos) {
+        CamReportRequest request = RequestBuilder.buildCamReportRequest(camName, objectInfos, currentPrev());
+        return update((stub, observer) -> stub.camReport(request, observer), CamReportResponse::getUpdateID);
+    }
+
+    public CompletableFuture<PingResponse> ctrlPing(String message) {
+        PingRequest request = RequestBuilder.buildPingRequest(message);
+        return call((stub, observer) -> stub.ctrlPing(request, observer), true);
+    }
+
+    public CompletableFuture<ClearResponse> ctrlClear() {
+        ClearRequest request = RequestBuilder.buildClearRequest(currentPrev());
+        return update((stub, observer) -> stub.ctrlClear(request, observer), ClearResponse::getUpdateID);
+    }
+
+    public CompletableFuture<InitResponse> ctrlInit(List<CamInfo> camInfos, List<ObservationInfo> observationInfos) {
+        InitRequest request = RequestBuilder.buildInitRequest(camInfos, observationInfos, currentPrev());
+        return update((stub, observer) -> stub.ctrlInit(request, observer), InitResponse::getUpdateID);
+    }
+
+    public ResponseCache.Stats getCacheStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Sets how long a replica may hold a query until it applied every update
+     * this client saw, the caller is not blocked meanwhile
+     * @param maxWait milliseconds, 0 for the replica to answer at once
+     */
+    public void setMaxWait(int maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    @Override
+    public void close() {
+        retryExecutor.shutdownNow();
+        synchronized (this) {
+            if (connection != null) connection.channel.shutdown();
+            connection = null;
+        }
+    }
+
+    /* Request auxiliary functions */
+
+    /* Keeps the most recent response of each query, a replica behind the one that
+       answered before never makes the client go back in time */
+    @SuppressWarnings("unchecked")
+    private <T extends Message> CompletableFuture<T> query(Message key, Call<T> call, Function<T, VectorTS> newTS) {
+        return call(call, true).handle((received, failure) -> {
+            T response;
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                response = (T) cache.get(key);
+                // Not found but have previous response in cache
+                if (Status.fromThrowable(cause).getCode() != Status.Code.NOT_FOUND || response == null) {
+                    throw new CompletionException(cause);
+                }
+            }
+            else {
+                response = (T) cache.merge(key, received, (cached, fresh) ->
+                        happensBefore(newTS.apply((T) cached), newTS.apply((T) fresh)) ? fresh : cached);
+            }
+            merge(newTS.apply(response));
+            return response;
+        });
+    }
+
+    private <T> CompletableFuture<T> update(Call<T> call, Function<T, VectorTS> updateID) {
+        // An update sent twice would be applied twice
+        return call(call, false).thenApply(response -> {
+            merge(updateID.apply(response));
+            return response;
+        });
+    }
+
+    private <T> CompletableFuture<T> call(Call<T> call, boolean idempotent) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(call, idempotent, result, 0, 0);
+        return result;
+    }
+
+    /* Sends a request, sending it again on another replica if the replica is
+       unavailable or after the delay asked by an overloaded replica. A request
+       that is not idempotent is only sent again if it never left the client */
+    private <T> void attempt(Call<T> call, boolean idempotent, CompletableFuture<T> result, int tries, int overloadedTries) {
+        Connection current = connected();
+        if (current != null) {
+            send(call, idempotent, result, tries, overloadedTries, current);
+            return;
+        }
+        // Looking up a replica blocks, the caller is not kept waiting for it
+        retry(() -> {
+            Connection connection;
+            try {
+                connection = connect();
+            } catch (StatusRuntimeException exception) {
+                result.completeExceptionally(exception);
+                return;
+            }
+            send(call, idempotent, result, tries, overloadedTries, connection);
+        }, 0, result, Status.UNAVAILABLE.withDescription("Frontend closed").asRuntimeException());
+    }
+
+    private <T> void send(Call<T> call, boolean idempotent, CompletableFuture<T> result, int tries, int overloadedTries,
+                          Connection current) {
+        AtomicBoolean written = new AtomicBoolean(false);
+        SiloGrpc.SiloStub stub = idempotent ? current.stub : current.stub.withInterceptors(new WriteTracker(written));
+        call.invoke(stub, new StreamObserver<>() {
+            private T response;
+
+            @Override
+            public void onNext(T value) {
+                response = value;
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                StatusRuntimeException exception = throwable instanceof StatusRuntimeException
+                        ? (StatusRuntimeException) throwable
+                        : Status.fromThrowable(throwable).asRuntimeException();
+                long retryDelay = SiloFrontend.retryDelay(exception);
+                if (exception.getStatus().getCode() == Status.Code.UNAVAILABLE) {
+                    disconnect(current);
+                    // The replica might have received a request already written
+                    if (tries + 1 < SiloFrontend.MAX_RETRY && (idempotent || !written.get())) {
+                        retry(() -> attempt(call, idempotent, result, tries + 1, overloadedTries), 0, result, exception);
+                        return;
+                    }
+                }
+                else if (retryDelay >= 0 && overloadedTries < SiloFrontend.MAX_OVERLOADED_RETRY) {
+                    retry(() -> attempt(call, idempotent, result, tries, overloadedTries + 1), retryDelay, result, exception);
+                    return;
+                }
+                result.completeExceptionally(exception);
+            }
+
+            @Override
+            public void onCompleted() {
+                result.complete(response);
+            }
+        });
+    }
+
+    private void retry(Runnable attempt, long delay, CompletableFuture<?> result, StatusRuntimeException exception) {
+        try {
+            retryExecutor.schedule(attempt, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rejected) {
+            // Frontend was closed
+            result.completeExceptionally(exception);
+        }
+    }
+
+    /* Timestamps auxiliary functions */
+
+    private VectorTS currentPrev() {
+        Long[] values = new Long[prev.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = prev.get(i);
+        }
+        return RequestBuilder.buildVectorTimestamp(values);
+    }
+
+    private void merge(VectorTS ts) {
+        for (int i = 0; i < prev.length(); i++) {
+            long value = ts.getTimestamp(i);
+            long current = prev.get(i);
+            while (value > current && !prev.compareAndSet(i, current, value)) {
+                current = prev.get(i);
+            }
+        }
+    }
+
+    private static boolean happensBefore(VectorTS timestamp, VectorTS other) {
+        for (int i = 0; i < timestamp.getTimestampCount(); i++) {
+            if (timestamp.getTimestamp(i) > other.getTimestamp(i)) return false;
+        }
+        return true;
+    }
+
+    /* Connection auxiliary functions */
+
+    private synchronized Connection connected() {
+        return connection;
+    }
+
+    /* Only called on the retry executor, so that a single lookup runs at a
+       time and the lock is not held while it blocks */
+    private Connection connect() {
+        Connection current = connected();
+        if (current != null) return current;
+        ZKRecord zkRecord = lookup();
+        System.out.println(String.format("INFO: Connecting to server '%s' at '%s'", zkRecord.getPath(), zkRecord.getURI()));
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(zkRecord.getURI())
+                .usePlaintext()
+                .build();
+        synchronized (this) {
+            if (retryExecutor.isShutdown()) {
+                channel.shutdown();
+                throw Status.UNAVAILABLE.withDescription("Frontend closed").asRuntimeException();
+            }
+            connection = new Connection(zkRecord.getURI(), channel);
+            return connection;
+        }
+    }
+
+    private ZKRecord lookup() {
+        try {
+            if (replicaPath != null) {
+                return zkNaming.lookup(replicaPath);
+            }
+            List<ZKRecord> zkRecords = new ArrayList<>(zkNaming.listRecords(SiloFrontend.REPLICA_BASE_PATH));
+            if (zkRecords.isEmpty()) {
+                throw Status.UNAVAILABLE.withDescription("No available replicas").asRuntimeException();
+            }
+            return zkRecords.get(ThreadLocalRandom.current().nextInt(zkRecords.size()));
+        } catch (ZKNamingException exception) {
+            throw Status.UNAVAILABLE.withDescription("Could not look up the replicas").withCause(exception)
+                    .asRuntimeException();
+        }
+    }
+
+    /* Drops a connection that failed, unless another request already replaced it.
+       Calls still in flight on it are let finish, they might have been delivered */
+    private void disconnect(Connection failed) {
+        synchronized (this) {
+            if (connection != failed) return;
+            connection = null;
+        }
+        System.out.println(String.format("INFO: Unable to send to '%s'", failed.target));
+        failed.channel.shutdown();
+    }
+
+    /* Unary call on the async stub */
+    private interface Call<T> {
+        void invoke(SiloGrpc.SiloStub stub, StreamObserver<T> observer);
+    }
+
+    /* Marks once the request of a call is written to a connection, before
+       that the replica cannot have received it */
+    private static class WriteTracker extends ClientStreamTracer.Factory implements ClientInterceptor {
+
+        private final AtomicBoolean written;
+
+        private WriteTracker(AtomicBoolean written) {
+            this.written = written;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                   CallOptions callOptions, Channel next) {
+            return next.newCall(method, callOptions.withStreamTracerFactory(this));
+        }
+
+        @Override
+        public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+            return new ClientStreamTracer() {
+                @Override
+                public void outboundMessage(int seqNo) {
+                    written.set(true);
+                }
+            };
+        }
+    }
+
+    private static class Connection {
+
+        private final String target;
+        private final ManagedChannel channel;
+        private final SiloGrpc.SiloStub stub;
+
+        private Connection(String target, ManagedChannel channel) {
+            this.target = target;
+            this.channel = channel;
+            this.stub = SiloGrpc.newStub(channel);
+        }
+    }
+}
@@ -1,72 +1,72 @@
 package pt.tecnico.sauron.silo.client;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import com.google.protobuf.Duration;
+import com.google.protobuf.Message;
+import com.google.protobuf.Timestamp;
+import com.google.rpc.RetryInfo;
+import io.grpc.Metadata;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.protobuf.ProtoUtils;
 import pt.tecnico.sauron.silo.grpc.*;
 import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
-import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
-import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 
 public class SiloFrontend implements AutoCloseable {
 
-    private static final String REPLICA_BASE_PATH = "/grpc/sauron/silo";
-    private static final int MAX_RETRY = 3;
+    static final String REPLICA_BASE_PATH = "/grpc/sauron/silo";
+    static final int MAX_RETRY = 3;
+    // Times an update refused by an overloaded replica is sent again
+    static final int MAX_OVERLOADED_RETRY = 10;
+    // Approximate bytes of responses kept in a cache built from its number of entries
+    static final long MAX_CACHE_BYTES = 32L * 1024 * 1024;
+    // Milliseconds a replica may wait to apply the updates the client saw before answering a query
+    static final int DEFAULT_MAX_WAIT = 500;
+    private static final Metadata.Key<RetryInfo> RETRY_INFO_KEY = ProtoUtils.keyForProto(RetryInfo.getDefaultInstance());
 
-    private ManagedChannel channel;
-    private SiloGrpc.SiloBlockingStub stub;
     private final Long[] prev;
-    private final ZKNaming zkNaming;
-    private String currentTarget;
+    private final ReplicaBalancer balancer;
+    private volatile int maxWait = DEFAULT_MAX_WAIT;
+    // Replica of the report stream open
+    private ReplicaBalancer.Replica streamReplica;
 
-    // Set to true if any replica can be used to connect
-    private final boolean randomTargetReplica;
-
-    // Set to true if there is an active connection
-    private boolean connected;
-
-    // Replica path if can only connect to single replica
-    private final String replicaPath;
-
-    private final Cache<String, CamInfoResponse> camInfoCache;
-    private final Cache<String, SpotterTrackResponse> spotterTrackCache;
-    private final Cache<String, SpotterTrackMatchResponse> spotterTrackMatchCache;
-    private final Cache<String, SpotterTraceResponse> spotterTraceCache;
+    // Responses of every query, keyed by the request without its timestamp
+    private final ResponseCache<Message, Message> cache;
 
     // Auxiliary classes to handle the context of requests
     private RequestContext requestContext = new RequestContext();
 
     public SiloFrontend(String zooHost, String zooPort, int numReplicas, int maxCacheSize) {
-        randomTargetReplica = true;
-        camInfoCache = new Cache<>(maxCacheSize);
-        spotterTrackCache = new Cache<>(maxCacheSize);
-        spotterTrackMatchCache = new Cache<>(maxCacheSize);
-        spotterTraceCache = new Cache<>(maxCacheSize);
+        this(zooHost, zooPort, numReplicas, newCache(maxCacheSize, 0));
+    }
 
-        zkNaming = new ZKNaming(zooHost, zooPort);
-        replicaPath = null;
-        connectRandomReplica();
-        connected = true;
+    /**
+     * @param cache of the responses, may be shared with other frontends
+     */
+    public SiloFrontend(String zooHost, String zooPort, int numReplicas, ResponseCache<Message, Message> cache) {
+        this.cache = cache;
+
+        balancer = new ReplicaBalancer(new ZKNaming(zooHost, zooPort), null);
+        connect();
 
         this.prev = new Long[numReplicas];
         Arrays.fill(this.prev, 0L);
     }
 
     public SiloFrontend(String zooHost, String zooPort, String replicaInstance, int numReplicas, int maxCacheSize) {
-        randomTargetReplica = false;
-        camInfoCache = new Cache<>(maxCacheSize);
-        spotterTrackCache = new Cache<>(maxCacheSize);
-        spotterTrackMatchCache = new Cache<>(maxCacheSize);
-        spotterTraceCache = new Cache<>(maxCacheSize);
+        this(zooHost, zooPort, replicaInstance, numReplicas, newCache(maxCacheSize, 0));
+    }
+
+    public SiloFrontend(String zooHost, String zooPort, String replicaInstance, int numReplicas,
+                        ResponseCache<Message, Message> cache) {
+        this.cache = cache;
 
-        zkNaming = new ZKNaming(zooHost, zooPort);
-        replicaPath = String.join("/", REPLICA_BASE_PATH, replicaInstance);
-        connectTargetReplica();
-        connected = true;
+        balancer = new ReplicaBalancer(new ZKNaming(zooHost, zooPort), String.join("/", REPLICA_BASE_PATH, replicaInstance));
+        connect();
 
         this.prev = new Long[numReplicas];
         Arrays.fill(this.prev, 0L);
@@ -76,55 +76,49 @@ public class SiloFrontend implements AutoCloseable {
 
     public CamInfoResponse sendCamInfo(String name) {
         VectorTS prevTS = RequestBuilder.buildVectorTimestamp(prev);
-        CamInfoRequest request = RequestBuilder.buildCamInfoRequest(name, prevTS);
+        CamInfoRequest request = RequestBuilder.buildCamInfoRequest(name, prevTS, maxWait);
         // Key to later search cache
-        String key = createKey(request);
+        CamInfoRequest key = cacheKey(request);
+        CamInfoResponse cached = (CamInfoResponse) cache.get(key);
 
         CamInfoResponse received = null;
-        requestContext.start(camInfoCache.containsKey(key));
+        requestContext.start(cached != null);
         while (requestContext.isTrying()) {
             try {
-                connect();
-                received = stub.camInfo(request);
+                received = balancer.query(prevTS, stub -> stub.camInfo(request), CamInfoResponse::getNew);
                 requestContext.completed();
             } catch (StatusRuntimeException exception) {
                 requestContext.onStatusRuntimeException(exception);
             }
         }
 
-        // Update value in cache if out of date
-        updateCache(key, received);
-
-        // Return value from cache
-        CamInfoResponse response = camInfoCache.get(key);
+        // Keep the fresher of the received and cached responses
+        CamInfoResponse response = received != null ? fresher(key, received, CamInfoResponse::getNew) : cached;
         Long[] newTS = createTimestampArray(response.getNew());
         merge(prev, newTS);
-        return received;
+        return response;
     }
 
     public SpotterTrackResponse sendSpotterTrack(ObjectInfo objectInfo) {
         VectorTS prevTS = RequestBuilder.buildVectorTimestamp(prev);
-        SpotterTrackRequest request = RequestBuilder.buildSpotterTrackRequest(objectInfo, prevTS);
+        SpotterTrackRequest request = RequestBuilder.buildSpotterTrackRequest(objectInfo, prevTS, maxWait);
         // Key to later search cache
-        String key = createKey(request);
+        SpotterTrackRequest key = cacheKey(request);
+        SpotterTrackResponse cached = (SpotterTrackResponse) cache.get(key);
 
         SpotterTrackResponse received = null;
-        requestContext.start(spotterTrackCache.containsKey(key));
+        requestContext.start(cached != null);
         while (requestContext.isTrying()) {
             try {
-                connect();
-                received = stub.spotterTrack(request);
+                received = balancer.query(prevTS, stub -> stub.spotterTrack(request), SpotterTrackResponse::getNew);
                 requestContext.completed();
             } catch (StatusRuntimeException exception) {
                 requestContext.onStatusRuntimeException(exception);
             }
         }
 
-        // Update value in cache if out of date
-        updateCache(key, received);
-
-        // Return value from cache
-        SpotterTrackResponse response = spotterTrackCache.get(key);
+        // Keep the fresher of the received and cached responses
+        SpotterTrackResponse response = received != null ? fresher(key, received, SpotterTrackResponse::getNew) : cached;
         Long[] newTS = createTimestampArray(response.getNew());
         merge(prev, newTS);
         return response;
@@ -132,60 +126,104 @@ public class SiloFrontend implements AutoCloseable {
 
     public SpotterTrackMatchResponse sendSpotterTrackMatch(ObjectType objectType, String regex) {
         VectorTS prevTS = RequestBuilder.buildVectorTimestamp(prev);
-        SpotterTrackMatchRequest request = RequestBuilder.buildSpotterTrackMatchRequest(objectType, regex, prevTS);
+        SpotterTrackMatchRequest request = RequestBuilder.buildSpotterTrackMatchRequest(objectType, regex, prevTS, maxWait);
         // Key to later search cache
-        String key = createKey(request);
+        SpotterTrackMatchRequest key = cacheKey(request);
+        SpotterTrackMatchResponse cached = (SpotterTrackMatchResponse) cache.get(key);
 
         SpotterTrackMatchResponse received = null;
-        requestContext.start(spotterTrackMatchCache.containsKey(key));
+        requestContext.start(cached != null);
         while (requestContext.isTrying()) {
             try {
-                connect();
-                received = stub.spotterTrackMatch(request);
+                received = balancer.query(prevTS, stub -> stub.spotterTrackMatch(request), SpotterTrackMatchResponse::getNew);
                 requestContext.completed();
             } catch (StatusRuntimeException exception) {
                 requestContext.onStatusRuntimeException(exception);
             }
         }
 
-        // Update value in cache if needed
-        updateCache(key, received);
-
-        // Return value from cache
-        SpotterTrackMatchResponse response = spotterTrackMatchCache.get(key);
+        // Keep the fresher of the received and cached responses
+        SpotterTrackMatchResponse response = received != null ? fresher(key, received, SpotterTrackMatchResponse::getNew) : cached;
         Long[] newTS = createTimestampArray(response.getNew());
         merge(prev, newTS);
         return response;
     }
 
     public SpotterTraceResponse sendSpotterTrace(ObjectInfo objectInfo) {
+        return sendSpotterTrace(objectInfo, 0, null, null, null);
+    }
+
+    /**
+     * Traces a window of the observations of an object, newest first
+     * @param objectInfo of the object to trace
+     * @param limit max number of observations, 0 for no limit
+     * @param since inclusive lower bound of the timestamps or null
+     * @param until exclusive upper bound of the timestamps or null
+     * @param cursor next cursor of the previous page or null for the first page
+     * @return the page of observations, with the next cursor if the window has more
+     */
+    public SpotterTraceResponse sendSpotterTrace(ObjectInfo objectInfo, int limit, Timestamp since,
+                                                 Timestamp until, TraceCursor cursor) {
         VectorTS prevTS = RequestBuilder.buildVectorTimestamp(prev);
-        SpotterTraceRequest request = RequestBuilder.buildSpotterTraceRequest(objectInfo, prevTS);
+        SpotterTraceRequest request = RequestBuilder.buildSpotterTraceRequest(objectInfo, prevTS, maxWait,
+                limit, since, until, cursor);
         // Key to later search cache
-        String key = createKey(request);
+        SpotterTraceRequest key = cacheKey(request);
+        SpotterTraceResponse cached = (SpotterTraceResponse) cache.get(key);
 
         SpotterTraceResponse received = null;
-        requestContext.start(spotterTraceCache.containsKey(key));
+        requestContext.start(cached != null);
         while (requestContext.isTrying()) {
             try {
-                connect();
-                received = stub.spotterTrace(request);
+                received = balancer.query(prevTS, stub -> stub.spotterTrace(request), SpotterTraceResponse::getNew);
                 requestContext.completed();
             } catch (StatusRuntimeException exception) {
                 requestContext.onStatusRuntimeException(exception);
             }
         }
 
-        // Update value in cache if needed
-        updateCache(key, received);
-
-        // Return value from cache
-        SpotterTraceResponse response = spotterTraceCache.get(key);
+        // Keep the fresher of the received and cached responses
+        SpotterTraceResponse response = received != null ? fresher(key, received, SpotterTraceResponse::getNew) : cached;
         Long[] newTS = createTimestampArray(response.getNew());
         merge(prev, newTS);
         return response;
     }
 
+    /**
+     * Tracks the last observations of the objects whose ids match a regex,
+     * handing each one to the consumer as soon as its chunk arrives
+     * @param type of the objects
+     * @param regex to match
+     * @param consumer of the observations, sorted by id
+     */
+    public void sendSpotterTrackMatchStream(ObjectType type, String regex, Consumer<ObservationInfo> consumer) {
+        VectorTS prevTS = RequestBuilder.buildVectorTimestamp(prev);
+        SpotterTrackMatchRequest request = RequestBuilder.buildSpotterTrackMatchRequest(type, regex, prevTS, maxWait);
+        receiveChunks(prevTS, stub -> stub.spotterTrackMatchStream(request), consumer);
+    }
+
+    public void sendSpotterTraceStream(ObjectInfo objectInfo, Consumer<ObservationInfo> consumer) {
+        sendSpotterTraceStream(objectInfo, 0, null, null, null, consumer);
+    }
+
+    /**
+     * Traces a window of the observations of an object, handing each one
+     * to the consumer as soon as its chunk arrives
+     * @param objectInfo of the object to trace
+     * @param limit max number of observations, 0 for no limit
+     * @param since inclusive lower bound of the timestamps or null
+     * @param until exclusive upper bound of the timestamps or null
+     * @param cursor next cursor of a previous page or null to start from the newest
+     * @param consumer of the observations, newest first
+     */
+    public void sendSpotterTraceStream(ObjectInfo objectInfo, int limit, Timestamp since, Timestamp until,
+                                       TraceCursor cursor, Consumer<ObservationInfo> consumer) {
+        VectorTS prevTS = RequestBuilder.buildVectorTimestamp(prev);
+        SpotterTraceRequest request = RequestBuilder.buildSpotterTraceRequest(objectInfo, prevTS, maxWait,
+                limit, since, until, cursor);
+        receiveChunks(prevTS, stub -> stub.spotterTraceStream(request), consumer);
+    }
+
     /* Updates */
 
     public CamJoinResponse sendCamJoin(CamInfo camInfo) {
@@ -196,8 +234,7 @@ public class SiloFrontend implements AutoCloseable {
         requestContext.start();
         while (requestContext.isTrying()) {
             try {
-                connect();
-                response = stub.camJoin(request);
+                response = balancer.update(stub -> stub.camJoin(request));
                 requestContext.completed();
             } catch (StatusRuntimeException exception) {
                 requestContext.onStatusRuntimeException(exception);
@@ -217,8 +254,7 @@ public class SiloFrontend implements AutoCloseable {
         requestContext.start();
         while (requestContext.isTrying()) {
             try {
-                connect();
-                response = stub.camReport(request);
+                response = balancer.update(stub -> stub.camReport(request));
                 requestContext.completed();
             } catch (StatusRuntimeException exception) {
                 requestContext.onStatusRuntimeException(exception);
@@ -230,14 +266,23 @@ public class SiloFrontend implements AutoCloseable {
         return response;
     }
 
+    /**
+     * Opens a long lived stream to send the reports of a camera
+     * @param camName of the camera reporting
+     * @param errorHandler called with the error of every rejected frame
+     * @return the stream, to be closed after the last frame
+     */
+    public CamReportStream openCamReportStream(String camName, Consumer<StatusRuntimeException> errorHandler) {
+        return new CamReportStream(this, camName, errorHandler);
+    }
+
     public PingResponse sendCtrlPing(String message) {
         PingRequest request = RequestBuilder.buildPingRequest(message);
         PingResponse response = null;
         requestContext.start();
         while (requestContext.isTrying()) {
             try {
-                connect();
-                response = stub.ctrlPing(request);
+                response = balancer.update(stub -> stub.ctrlPing(request));
                 requestContext.completed();
             } catch (StatusRuntimeException exception) {
                 requestContext.onStatusRuntimeException(exception);
@@ -254,8 +299,7 @@ public class SiloFrontend implements AutoCloseable {
         requestContext.start();
         while (requestContext.isTrying()) {
             try {
-                connect();
-                response = stub.ctrlClear(request);
+                response = balancer.update(stub -> stub.ctrlClear(request));
                 requestContext.completed();
             } catch (StatusRuntimeException exception) {
                 requestContext.onStatusRuntimeException(exception);
@@ -275,8 +319,7 @@ public class SiloFrontend implements AutoCloseable {
         requestContext.start();
         while (requestContext.isTrying()) {
             try {
-                connect();
-                response = stub.ctrlInit(request);
+                response = balancer.update(stub -> stub.ctrlInit(request));
                 requestContext.completed();
             } catch (StatusRuntimeException exception) {
                 requestContext.onStatusRuntimeException(exception);
@@ -288,9 +331,92 @@ public class SiloFrontend implements AutoCloseable {
         return response;
     }
 
+    /**
+     * Sends a query to a second replica if the first one is slower to answer
+     * than most queries, keeping the first answer
+     * @param hedging true to hedge queries
+     */
+    public void setHedging(boolean hedging) {
+        balancer.setHedging(hedging);
+    }
+
+    /**
+     * Sets how long a replica may hold a query until it applied every update
+     * this client saw, so that the client reads its own updates instead of
+     * falling back on the cache
+     * @param maxWait milliseconds, 0 for the replica to answer at once
+     */
+    public void setMaxWait(int maxWait) {
+        this.maxWait = maxWait;
+    }
+
     @Override
     public void close() {
-        if (channel != null) channel.shutdown();
+        balancer.close();
+    }
+
+    /* Stream auxiliary functions */
+
+    private void receiveChunks(VectorTS prevTS, Function<SiloGrpc.SiloBlockingStub, Iterator<ObservationChunk>> call,
+                               Consumer<ObservationInfo> consumer) {
+        boolean received = false;
+        requestContext.start();
+        while (requestContext.isTrying()) {
+            ReplicaBalancer.Replica replica = null;
+            try {
+                replica = balancer.choose(prevTS);
+                Iterator<ObservationChunk> chunks = call.apply(replica.blockingStub());
+                while (chunks.hasNext()) {
+                    ObservationChunk chunk = chunks.next();
+                    received = true;
+                    merge(prev, createTimestampArray(chunk.getNew()));
+                    chunk.getObservationInfosList().forEach(consumer);
+                }
+                requestContext.completed();
+            } catch (StatusRuntimeException exception) {
+                if (replica != null) balancer.failed(replica, exception);
+                // Observations already handed to the consumer cant be taken back,
+                // so the stream is only retried before the first chunk
+                if (received) throw exception;
+                requestContext.onStatusRuntimeException(exception);
+            }
+        }
+    }
+
+    /* Hooks for the report stream, always called from the thread using the frontend */
+
+    SiloGrpc.SiloStub newAsyncStub() {
+        streamReplica = balancer.home();
+        return streamReplica.asyncStub();
+    }
+
+    VectorTS currentPrev() {
+        return RequestBuilder.buildVectorTimestamp(prev);
+    }
+
+    void mergeUpdateID(VectorTS updateID) {
+        merge(prev, createTimestampArray(updateID));
+    }
+
+    /**
+     * Milliseconds an overloaded replica asked to wait before sending an update again
+     * @param exception received from the replica
+     * @return the delay or -1 if the replica did not refuse the update for being overloaded
+     */
+    static long retryDelay(StatusRuntimeException exception) {
+        if (exception.getStatus().getCode() != Status.Code.RESOURCE_EXHAUSTED) return -1;
+        Metadata trailers = Status.trailersFromThrowable(exception);
+        RetryInfo retryInfo = trailers != null ? trailers.get(RETRY_INFO_KEY) : null;
+        if (retryInfo == null) return -1;
+        Duration delay = retryInfo.getRetryDelay();
+        return delay.getSeconds() * 1000 + delay.getNanos() / 1000000;
+    }
+
+    void disconnect(StatusRuntimeException exception) {
+        // No replica if no stream was opened yet
+        if (streamReplica != null) {
+            balancer.failed(streamReplica, exception);
+        }
     }
 
     /* Timestamps auxiliary functions */
@@ -311,182 +437,74 @@ public class SiloFrontend implements AutoCloseable {
     /* Connection auxiliary functions */
 
     private void connect() {
-        if (!connected) {
-            if (randomTargetReplica) {
-                connectRandomReplica();
-            }
-            else {
-                connectTargetReplica();
-            }
-        }
-    }
-
-    private void connectRandomReplica() {
-        try {
-            List<ZKRecord> zkRecords = new ArrayList<>(zkNaming.listRecords(REPLICA_BASE_PATH));
-            if (zkRecords.isEmpty()) {
-                System.out.println("SEVERE: No available replicas");
-                System.exit(1); // No replica to connect to
-            }
-            Collections.shuffle(zkRecords);
-            Iterator<ZKRecord> recordIterator = zkRecords.iterator();
-            connected = false;
-            // Iter replicas in random order and try to connect to every one
-            while (!connected && recordIterator.hasNext()) {
-                ZKRecord zkRecord = recordIterator.next();
-                connectSingleRandomTarget(zkRecord);
-            }
-            // If in the end cant connect to any replica exit
-            if (!connected) {
-                System.out.println("SEVERE: Could not connect to any server");
-                System.exit(1);
-            }
-        } catch (ZKNamingException exception) {
-            System.out.println("SEVERE: Could not connect to any server");
-            System.exit(1);
-        }
-    }
-
-    private void connectSingleRandomTarget(ZKRecord zkRecord) {
-        try {
-            System.out.println(String.format("INFO: Connecting to server '%s' at '%s'", zkRecord.getPath(), zkRecord.getURI()));
-            currentTarget = zkRecord.getURI();
-            channel = ManagedChannelBuilder.forTarget(currentTarget)
-                    .usePlaintext()
-                    .build();
-            stub = SiloGrpc.newBlockingStub(channel);
-            connected = true;
-            System.out.println("INFO: Connection successful");
-        } catch (StatusRuntimeException exception) {
-            System.out.println("WARNING: Connection failed");
-        }
-    }
-
-    private void connectTargetReplica() {
-        try {
-            ZKRecord zkRecord = zkNaming.lookup(replicaPath);
-            System.out.println(String.format("INFO: Connecting to server '%s' at '%s'", zkRecord.getPath(), zkRecord.getURI()));
-            currentTarget = zkRecord.getURI();
-            channel = ManagedChannelBuilder.forTarget(currentTarget)
-                    .usePlaintext()
-                    .build();
-            stub = SiloGrpc.newBlockingStub(channel);
-            System.out.println("INFO: Connection successful");
-        } catch (ZKNamingException exception) {
-            System.out.println(String.format("SEVERE: Could not connect to '%s'", replicaPath));
-            System.exit(1);
+        if (!balancer.connect()) {
+            System.out.println("SEVERE: No available replicas");
+            System.exit(1); // No replica to connect to
         }
     }
 
     /* Cache auxiliary functions */
 
-    private String createKey(CamInfoRequest request) {
-        return request.getName();
+    /**
+     * Cache sized for a number of responses, that may be shared by frontends
+     * @param maxEntries number of responses kept at most, 0 to cache none
+     * @param timeToLive milliseconds a response is kept after it is received, 0 to keep it until evicted
+     * @return the cache
+     */
+    public static ResponseCache<Message, Message> newCache(int maxEntries, long timeToLive) {
+        return new ResponseCache<>(maxEntries, MAX_CACHE_BYTES, timeToLive,
+                (key, response) -> key.getSerializedSize() + response.getSerializedSize());
     }
 
-    private String createKey(SpotterTrackRequest request) {
-        ObjectInfo objectInfo = request.getObjectInfo();
-        ObjectType type = objectInfo.getType();
-        switch (type) {
-            case CAR:
-                return type.toString().concat(objectInfo.getAlphanumericId());
-            case PERSON:
-                return type.toString().concat(Long.toString(objectInfo.getNumericId()));
-            default:
-                throw new IllegalStateException("Unexpected value: " + type);
-        }
+    public ResponseCache.Stats getCacheStats() {
+        return cache.getStats();
     }
 
-    private String createKey(SpotterTrackMatchRequest request) {
-        return request.getObjectType().toString().concat(request.getRegex());
+    static CamInfoRequest cacheKey(CamInfoRequest request) {
+        return request.toBuilder().clearPrev().clearMaxWait().build();
     }
 
-    private String createKey(SpotterTraceRequest request) {
-        ObjectInfo objectInfo = request.getObjectInfo();
-        ObjectType type = objectInfo.getType();
-        switch (type) {
-            case CAR:
-                return type.toString().concat(objectInfo.getAlphanumericId());
-            case PERSON:
-                return type.toString().concat(Long.toString(objectInfo.getNumericId()));
-            default:
-                throw new IllegalStateException("Unexpected value: " + type);
-        }
-
+    static SpotterTrackRequest cacheKey(SpotterTrackRequest request) {
+        checkType(request.getObjectInfo());
+        return request.toBuilder().clearPrev().clearMaxWait().build();
     }
 
-    private void updateCache(String key, CamInfoResponse received) {
-        if (received != null) {
-            if (camInfoCache.containsKey(key)) {
-                CamInfoResponse cachedResponse = camInfoCache.get(key);
-                Long[] cachedNew = createTimestampArray(cachedResponse.getNew());
-                Long[] responseNew = createTimestampArray(received.getNew());
-                if (happensBefore(cachedNew, responseNew)) {
-                    // replace value in cache with response received
-                    camInfoCache.replace(key, received);
-                }
-            }
-            else {
-                camInfoCache.put(key, received);
-            }
-        }
+    static SpotterTrackMatchRequest cacheKey(SpotterTrackMatchRequest request) {
+        return request.toBuilder().clearPrev().clearMaxWait().build();
     }
 
-    private void updateCache(String key, SpotterTrackResponse received) {
-        if (received != null) {
-            // Update value in cache
-            if (spotterTrackCache.containsKey(key)) {
-                SpotterTrackResponse cachedResponse = spotterTrackCache.get(key);
-                Long[] cachedNew = createTimestampArray(cachedResponse.getNew());
-                Long[] responseNew = createTimestampArray(received.getNew());
-                if (happensBefore(cachedNew, responseNew)) {
-                    // replace value in cache with response received
-                    spotterTrackCache.replace(key, received);
-                }
-            }
-            else {
-                spotterTrackCache.put(key, received);
-            }
-        }
+    // Each window of the same object is a different response
+    static SpotterTraceRequest cacheKey(SpotterTraceRequest request) {
+        checkType(request.getObjectInfo());
+        return request.toBuilder().clearPrev().clearMaxWait().build();
     }
 
-    private void updateCache(String key, SpotterTrackMatchResponse received) {
-        if (received != null) {
-            if (spotterTrackMatchCache.containsKey(key)) {
-                SpotterTrackMatchResponse cachedResponse = spotterTrackMatchCache.get(key);
-                Long[] cachedNew = createTimestampArray(cachedResponse.getNew());
-                Long[] responseNew = createTimestampArray(received.getNew());
-                if (happensBefore(cachedNew, responseNew)) {
-                    // replace value in cache with response received
-                    spotterTrackMatchCache.replace(key, received);
-                }
-            } else {
-                spotterTrackMatchCache.put(key, received);
-            }
+    private static void checkType(ObjectInfo objectInfo) {
+        ObjectType type = objectInfo.getType();
+        if (type != ObjectType.CAR && type != ObjectType.PERSON) {
+            throw new IllegalStateException("Unexpected value: " + type);
         }
     }
 
-    private void updateCache(String key, SpotterTraceResponse received) {
-        if (received != null) {
-            if (spotterTraceCache.containsKey(key)) {
-                SpotterTraceResponse cachedResponse = spotterTraceCache.get(key);
-                Long[] cachedNew = createTimestampArray(cachedResponse.getNew());
-                Long[] responseNew = createTimestampArray(received.getNew());
-                if (happensBefore(cachedNew, responseNew)) {
-                    // replace value in cache with response received
-                    spotterTraceCache.replace(key, received);
-                }
-            }
-            else {
-                spotterTraceCache.put(key, received);
-            }
-        }
+    /**
+     * Caches a response unless the cached one is newer or concurrent
+     * @param key of the response
+     * @param received response
+     * @param newTS timestamp of a response
+     * @return the response kept in cache
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Message> T fresher(Message key, T received, Function<T, VectorTS> newTS) {
+        return (T) cache.merge(key, received, (cached, response) ->
+                happensBefore(createTimestampArray(newTS.apply((T) cached)),
+                        createTimestampArray(newTS.apply((T) response))) ? response : cached);
     }
 
     class RequestContext {
 
         private boolean trying;
         private int numberOfTries;
+        private int overloadedTries;
         private boolean cachedResponse;
 
         public RequestContext() { /* No need to init variables. Will be in start */ }
@@ -497,6 +515,7 @@ public class SiloFrontend implements AutoCloseable {
         public void start() {
             this.trying = true;
             this.numberOfTries = 0;
+            this.overloadedTries = 0;
             this.cachedResponse = false;
         }
 
@@ -507,6 +526,7 @@ public class SiloFrontend implements AutoCloseable {
         public void start(boolean cachedResponse) {
             this.trying = true;
             this.numberOfTries = 0;
+            this.overloadedTries = 0;
             this.cachedResponse = cachedResponse;
         }
 
@@ -519,12 +539,24 @@ public class SiloFrontend implements AutoCloseable {
         }
 
         public void onStatusRuntimeException(StatusRuntimeException exception) {
+            long retryDelay = retryDelay(exception);
             // If an exception is status unavailable retry connection
+            // The balancer leaves the replica out for a while
             if (exception.getStatus().getCode() == Status.UNAVAILABLE.getCode()) {
-                channel.shutdownNow();
-                connected = false;
-                System.out.println(String.format("INFO: Unable to send to '%s'", currentTarget));
-                if (++numberOfTries == MAX_RETRY) System.exit(1);
+                if (++numberOfTries == MAX_RETRY) {
+                    System.out.println("SEVERE: Could not connect to any server");
+                    System.exit(1);
+                }
+            }
+            // Replica is overloaded, send again once it asked to
+            else if (retryDelay >= 0 && ++overloadedTries <= MAX_OVERLOADED_RETRY) {
+                System.out.println(String.format("INFO: Replica is overloaded, retrying in %d ms", retryDelay));
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw exception;
+                }
             }
             // Not found object but have previous response in cache
             else if (cachedResponse && exception.getStatus().getCode() == Status.NOT_FOUND.getCode()) {
@@ -536,21 +568,4 @@ public class SiloFrontend implements AutoCloseable {
         }
 
     }
-
-    class Cache<K, V> extends LinkedHashMap<K, V> {
-
-        private final int maxCacheSize;
-
-        Cache(int maxCacheSize) {
-            // Default values for initial capacity and load factor
-            super(16, 0.75F, true);
-            this.maxCacheSize = maxCacheSize;
-
-        }
-
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            return size() > maxCacheSize;
-        }
-    }
 }
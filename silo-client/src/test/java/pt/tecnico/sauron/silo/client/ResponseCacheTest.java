@@ -0,0 +1,104 @@
+package pt.tecnico.sauron.silo.client;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseCacheTest {
+
+    // Small enough for a single segment, so the eviction order is known
+    private static final int MAX_ENTRIES = 4;
+    private static final long MAX_WEIGHT = 10;
+
+    private ResponseCache<String, String> cache;
+
+    @BeforeEach
+    public void setUp() {
+        cache = new ResponseCache<>(MAX_ENTRIES, Long.MAX_VALUE, 0, (key, value) -> value.length());
+    }
+
+    @Test
+    public void hitAndMissTest() {
+        cache.put("A", "a");
+        assertEquals("a", cache.get("A"));
+        assertNull(cache.get("B"));
+        assertEquals(1, cache.getStats().getHits());
+        assertEquals(1, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void mergeKeepsChosenValueTest() {
+        cache.put("A", "aa");
+        assertEquals("aa", cache.merge("A", "a", (cached, written) -> cached.length() > written.length() ? cached : written));
+        assertEquals("aa", cache.get("A"));
+        assertEquals("aaa", cache.merge("A", "aaa", (cached, written) -> cached.length() > written.length() ? cached : written));
+        assertEquals("aaa", cache.get("A"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void clockEvictionTest() {
+        for (String key : new String[]{"A", "B", "C", "D"}) {
+            cache.put(key, key.toLowerCase());
+        }
+        // Read entries get another round, the first one not read is evicted
+        cache.get("A");
+        cache.get("C");
+        cache.put("E", "e");
+        assertEquals(MAX_ENTRIES, cache.size());
+        assertNull(cache.get("B"));
+
+        // Hand passed A, so only C is still read
+        cache.put("F", "f");
+        assertNull(cache.get("D"));
+        for (String key : new String[]{"A", "C", "E", "F"}) {
+            assertEquals(key.toLowerCase(), cache.get(key), key);
+        }
+        assertEquals(2, cache.getStats().getEvictions());
+    }
+
+    @Test
+    public void weightBoundTest() {
+        cache = new ResponseCache<>(MAX_ENTRIES, MAX_WEIGHT, 0, (key, value) -> value.length());
+        cache.put("A", "aaaaa");
+        cache.put("B", "bbbbb");
+        // Fits once the oldest entry is evicted, although there is room for more entries
+        cache.put("C", "ccc");
+        assertNull(cache.get("A"));
+        assertEquals("bbbbb", cache.get("B"));
+        assertEquals("ccc", cache.get("C"));
+
+        // Heavier than the whole cache, not kept and nothing evicted for it
+        assertEquals("ddddddddddd", cache.merge("D", "ddddddddddd", (cached, written) -> written));
+        assertNull(cache.get("D"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getStats().getEvictions());
+    }
+
+    @Test
+    public void expiryTest() throws InterruptedException {
+        cache = new ResponseCache<>(MAX_ENTRIES, MAX_WEIGHT, 50, (key, value) -> value.length());
+        cache.put("A", "a");
+        assertEquals("a", cache.get("A"));
+        Thread.sleep(100);
+        assertNull(cache.get("A"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getStats().getExpirations());
+    }
+
+    @Test
+    public void invalidateTest() {
+        cache.put("A", "a");
+        cache.invalidate("A");
+        assertNull(cache.get("A"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void noEntriesCachesNothingTest() {
+        cache = new ResponseCache<>(0, MAX_WEIGHT, 0, (key, value) -> value.length());
+        assertEquals("a", cache.merge("A", "a", (cached, written) -> written));
+        assertNull(cache.get("A"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,126 @@
+package pt.tecnico.sauron.silo.client.async;
+
+import com.google.protobuf.Message;
+import io.grpc.Status;
+import org.junit.jupiter.api.*;
+import pt.tecnico.sauron.silo.client.BaseIT;
+import pt.tecnico.sauron.silo.client.RequestBuilder;
+import pt.tecnico.sauron.silo.client.ResponseCache;
+import pt.tecnico.sauron.silo.client.SiloAsyncFrontend;
+import pt.tecnico.sauron.silo.client.SiloFrontend;
+import pt.tecnico.sauron.silo.grpc.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static io.grpc.Status.Code.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncFrontendIT extends BaseIT {
+
+    private static final int IN_FLIGHT = 200;
+
+    /* Test Context */
+    private static final CamInfo[] cameras = new CamInfo[1];
+    private static final ObjectInfo[] people = new ObjectInfo[2];
+    private static SiloAsyncFrontend asyncFrontend;
+
+    @BeforeAll
+    public static void oneTimeSetUp() {
+        Coordinates coordinates = RequestBuilder.buildCoordinates(0.0, 0.0);
+        cameras[0] = RequestBuilder.buildCamInfo("Cam1", coordinates);
+
+        people[0] = RequestBuilder.buildObjectInfo(ObjectType.PERSON, 1L);
+        people[1] = RequestBuilder.buildObjectInfo(ObjectType.PERSON, 2L);
+
+        asyncFrontend = new SiloAsyncFrontend(testProps.getProperty("zoo.host"), testProps.getProperty("zoo.port"),
+                testProps.getProperty("server.instance"), Integer.parseInt(testProps.getProperty("server.numReplicas")),
+                Integer.parseInt(testProps.getProperty("frontend.cache")));
+    }
+
+    @AfterAll
+    public static void oneTimeTearDown() {
+        asyncFrontend.close();
+    }
+
+    @BeforeEach
+    public void setUp() {
+        List<CamInfo> camInfos = new ArrayList<>();
+        camInfos.add(cameras[0]);
+        asyncFrontend.ctrlInit(camInfos, new ArrayList<>()).join();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        /* Clear the state */
+        asyncFrontend.ctrlClear().join();
+    }
+
+    /* Correct Tests */
+    @Test
+    public void pipelinedReportsTest() {
+        List<CompletableFuture<CamReportResponse>> reports = new ArrayList<>();
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            reports.add(asyncFrontend.camReport(cameras[0].getName(), List.of(people[i % 2])));
+        }
+        assertDoesNotThrow(() -> CompletableFuture.allOf(reports.toArray(new CompletableFuture[0])).join());
+        // Sent after every report completed, so it depends on all of them
+        SpotterTraceResponse response = asyncFrontend.spotterTrace(people[0]).join();
+        assertEquals(IN_FLIGHT / 2, response.getObservationInfosCount());
+    }
+
+    @Test
+    public void pipelinedQueriesTest() {
+        asyncFrontend.camReport(cameras[0].getName(), List.of(people[0])).join();
+        List<CompletableFuture<SpotterTrackResponse>> queries = new ArrayList<>();
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            queries.add(asyncFrontend.spotterTrack(people[0]));
+        }
+        for (CompletableFuture<SpotterTrackResponse> query : queries) {
+            assertEquals(people[0], query.join().getObservationInfo().getObservation().getObjectInfo());
+        }
+    }
+
+    @Test
+    public void camInfoTest() {
+        CamInfoResponse response = asyncFrontend.camInfo(cameras[0].getName()).join();
+        assertEquals(cameras[0].getCoordinates(), response.getCoordinates());
+    }
+
+    @Test
+    public void sharedCacheTest() {
+        ResponseCache<Message, Message> cache = SiloFrontend.newCache(Integer.parseInt(testProps.getProperty("frontend.cache")), 0);
+        try (SiloAsyncFrontend first = newAsyncFrontend(cache); SiloAsyncFrontend second = newAsyncFrontend(cache)) {
+            first.camInfo(cameras[0].getName()).join();
+            // Cleared through the frontend that queries next, so that its query waits for the clear
+            second.ctrlClear().join();
+            // Camera no longer found, the response cached by the other frontend is returned
+            CamInfoResponse response = second.camInfo(cameras[0].getName()).join();
+            assertEquals(cameras[0].getCoordinates(), response.getCoordinates());
+            assertEquals(1, cache.getStats().getHits());
+        }
+    }
+
+    /* Incorrect Tests */
+    @Test
+    public void camInfoNotFoundTest() {
+        CompletionException exception = assertThrows(CompletionException.class,
+                () -> asyncFrontend.camInfo("Cam2").join());
+        assertEquals(NOT_FOUND, Status.fromThrowable(exception.getCause()).getCode());
+    }
+
+    @Test
+    public void reportUnknownCameraTest() {
+        CompletionException exception = assertThrows(CompletionException.class,
+                () -> asyncFrontend.camReport("Cam2", List.of(people[0])).join());
+        assertEquals(NOT_FOUND, Status.fromThrowable(exception.getCause()).getCode());
+    }
+
+    private static SiloAsyncFrontend newAsyncFrontend(ResponseCache<Message, Message> cache) {
+        return new SiloAsyncFrontend(testProps.getProperty("zoo.host"), testProps.getProperty("zoo.port"),
+                testProps.getProperty("server.instance"), Integer.parseInt(testProps.getProperty("server.numReplicas")),
+                cache);
+    }
+}
@@ -0,0 +1,168 @@
+package pt.tecnico.sauron.silo.client.camera;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.*;
+import pt.tecnico.sauron.silo.client.BaseIT;
+import pt.tecnico.sauron.silo.client.RequestBuilder;
+import pt.tecnico.sauron.silo.grpc.*;
+import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
+import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
+import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static io.grpc.Status.Code.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReportStreamIT extends BaseIT {
+
+    private static final int FRAMES = 20;
+    // Frames accepted before the first stream is dropped, fewer than the replica acknowledges at once
+    private static final int DROPPED_AFTER = 10;
+    private static final int MAX_WAIT = 5000;
+
+    /* Test Context */
+    private static final CamInfo[] cameras = new CamInfo[1];
+    private static final ObjectInfo[] people = new ObjectInfo[1];
+    private static ManagedChannel channel;
+    private static SiloGrpc.SiloStub stub;
+    private static SiloGrpc.SiloBlockingStub blockingStub;
+
+    @BeforeAll
+    public static void oneTimeSetUp() throws ZKNamingException {
+        Coordinates coordinates = RequestBuilder.buildCoordinates(0.0, 0.0);
+        cameras[0] = RequestBuilder.buildCamInfo("Cam1", coordinates);
+
+        people[0] = RequestBuilder.buildObjectInfo(ObjectType.PERSON, 1L);
+
+        // Frames are sent by hand to drop the stream where the test wants
+        ZKNaming zkNaming = new ZKNaming(testProps.getProperty("zoo.host"), testProps.getProperty("zoo.port"));
+        ZKRecord record = zkNaming.lookup("/grpc/sauron/silo/" + testProps.getProperty("server.instance"));
+        channel = ManagedChannelBuilder.forTarget(record.getURI()).usePlaintext().build();
+        stub = SiloGrpc.newStub(channel);
+        blockingStub = SiloGrpc.newBlockingStub(channel);
+    }
+
+    @AfterAll
+    public static void oneTimeTearDown() {
+        channel.shutdownNow();
+    }
+
+    @BeforeEach
+    public void setUp() {
+        List<CamInfo> camInfos = new ArrayList<>();
+        camInfos.add(cameras[0]);
+        frontend.sendCtrlInit(camInfos, new ArrayList<>());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        /* Clear the state */
+        frontend.sendCtrlClear();
+    }
+
+    @Test
+    public void droppedStreamFramesReportedOnceTest() throws Exception {
+        String streamId = UUID.randomUUID().toString();
+        Acknowledgements dropped = new Acknowledgements();
+        StreamObserver<CamReportRequest> first = stub.camReportStream(dropped);
+        for (int sequence = 1; sequence <= DROPPED_AFTER; sequence++) {
+            first.onNext(buildFrame(streamId, sequence));
+        }
+        // Replica accepted the frames but did not acknowledge them yet
+        awaitObservations(DROPPED_AFTER);
+        first.onError(Status.CANCELLED.asRuntimeException());
+
+        // Camera sends again every frame not acknowledged
+        Acknowledgements acknowledgements = new Acknowledgements();
+        StreamObserver<CamReportRequest> second = stub.camReportStream(acknowledgements);
+        for (int sequence = 1; sequence <= FRAMES; sequence++) {
+            second.onNext(buildFrame(streamId, sequence));
+        }
+        second.onCompleted();
+        CamReportStreamResponse last = acknowledgements.last.get(MAX_WAIT, TimeUnit.MILLISECONDS);
+
+        assertEquals(FRAMES, last.getAcknowledged());
+        SpotterTraceResponse response = blockingStub.spotterTrace(
+                RequestBuilder.buildSpotterTraceRequest(people[0], last.getUpdateID(), MAX_WAIT));
+        assertEquals(FRAMES, response.getObservationInfosCount());
+    }
+
+    @Test
+    public void framesWithoutStreamIdAlwaysReportedTest() throws Exception {
+        Acknowledgements acknowledgements = new Acknowledgements();
+        StreamObserver<CamReportRequest> stream = stub.camReportStream(acknowledgements);
+        stream.onNext(RequestBuilder.buildCamReportRequest(cameras[0].getName(), List.of(people[0]), zeroTimestamp()));
+        stream.onNext(RequestBuilder.buildCamReportRequest(cameras[0].getName(), List.of(people[0]), zeroTimestamp()));
+        stream.onCompleted();
+        CamReportStreamResponse last = acknowledgements.last.get(MAX_WAIT, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, last.getAcknowledged());
+        SpotterTraceResponse response = blockingStub.spotterTrace(
+                RequestBuilder.buildSpotterTraceRequest(people[0], last.getUpdateID(), MAX_WAIT));
+        assertEquals(2, response.getObservationInfosCount());
+    }
+
+    private static CamReportRequest buildFrame(String streamId, long sequence) {
+        return sequence == 1
+                ? RequestBuilder.buildCamReportFrame(cameras[0].getName(), List.of(people[0]), zeroTimestamp(),
+                        streamId, sequence)
+                : RequestBuilder.buildCamReportFrame(cameras[0].getName(), List.of(people[0]), streamId, sequence);
+    }
+
+    private static void awaitObservations(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MAX_WAIT;
+        while (countObservations() < count) {
+            assertTrue(System.currentTimeMillis() < deadline, "Frames not accepted in time");
+            Thread.sleep(10);
+        }
+    }
+
+    private static int countObservations() {
+        try {
+            return blockingStub.spotterTrace(RequestBuilder.buildSpotterTraceRequest(people[0], zeroTimestamp(), 0))
+                    .getObservationInfosCount();
+        } catch (StatusRuntimeException exception) {
+            // Person not seen yet
+            assertEquals(NOT_FOUND, exception.getStatus().getCode());
+            return 0;
+        }
+    }
+
+    private static VectorTS zeroTimestamp() {
+        Long[] timestamp = new Long[Integer.parseInt(testProps.getProperty("server.numReplicas"))];
+        Arrays.fill(timestamp, 0L);
+        return RequestBuilder.buildVectorTimestamp(timestamp);
+    }
+
+    /* Keeps the last acknowledgement of a stream, completed when the stream ends */
+    private static class Acknowledgements implements StreamObserver<CamReportStreamResponse> {
+
+        private final CompletableFuture<CamReportStreamResponse> last = new CompletableFuture<>();
+        private CamReportStreamResponse response;
+
+        @Override
+        public void onNext(CamReportStreamResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            last.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onCompleted() {
+            last.complete(response);
+        }
+    }
+}
@@ -142,6 +142,79 @@ public class TraceIT extends BaseIT {
         Assertions.assertIterableEquals(response.getObservationInfosList(), observationInfos);
     }
 
+    /* Window tests */
+
+    @Test
+    public void traceCarPagesTest() {
+        observationInfos.add(carsObservationInfos[2]);
+        SpotterTraceResponse first = frontend.sendSpotterTrace(cars[1], 1, null, null, null);
+        Assertions.assertIterableEquals(first.getObservationInfosList(), observationInfos);
+        Assertions.assertTrue(first.hasNext());
+
+        observationInfos.clear();
+        observationInfos.add(carsObservationInfos[1]);
+        SpotterTraceResponse second = frontend.sendSpotterTrace(cars[1], 1, null, null, first.getNext());
+        Assertions.assertIterableEquals(second.getObservationInfosList(), observationInfos);
+        Assertions.assertFalse(second.hasNext());
+    }
+
+    @Test
+    public void tracePersonPagesTest() {
+        observationInfos.add(peopleObservationInfos[2]);
+        SpotterTraceResponse first = frontend.sendSpotterTrace(people[1], 1, null, null, null);
+        Assertions.assertIterableEquals(first.getObservationInfosList(), observationInfos);
+        Assertions.assertTrue(first.hasNext());
+
+        observationInfos.clear();
+        observationInfos.add(peopleObservationInfos[1]);
+        SpotterTraceResponse second = frontend.sendSpotterTrace(people[1], 1, null, null, first.getNext());
+        Assertions.assertIterableEquals(second.getObservationInfosList(), observationInfos);
+        Assertions.assertFalse(second.hasNext());
+    }
+
+    @Test
+    public void tracePersonPagesSameSecondTest() {
+        // Reports are stamped by the server, all within the same second
+        List<ObjectInfo> reported = new ArrayList<>();
+        reported.add(people[0]);
+        for (int i = 0; i < 5; i++) {
+            frontend.sendCamReport(cameras[0].getName(), reported);
+        }
+        int received = 0;
+        SpotterTraceResponse page = frontend.sendSpotterTrace(people[0], 2, null, null, null);
+        received += page.getObservationInfosCount();
+        while (page.hasNext()) {
+            Assertions.assertEquals(2, page.getObservationInfosCount());
+            page = frontend.sendSpotterTrace(people[0], 2, null, null, page.getNext());
+            received += page.getObservationInfosCount();
+        }
+        // The initial observation and the reported ones, each exactly once
+        Assertions.assertEquals(6, received);
+    }
+
+    @Test
+    public void traceCarSinceTest() {
+        observationInfos.add(carsObservationInfos[2]);
+        SpotterTraceResponse response = frontend.sendSpotterTrace(cars[1], 0, carsTimestamps[2], null, null);
+        Assertions.assertIterableEquals(response.getObservationInfosList(), observationInfos);
+        Assertions.assertFalse(response.hasNext());
+    }
+
+    @Test
+    public void traceCarUntilTest() {
+        observationInfos.add(carsObservationInfos[1]);
+        SpotterTraceResponse response = frontend.sendSpotterTrace(cars[1], 0, null, carsTimestamps[2], null);
+        Assertions.assertIterableEquals(response.getObservationInfosList(), observationInfos);
+        Assertions.assertFalse(response.hasNext());
+    }
+
+    @Test
+    public void tracePersonEmptyWindowTest() {
+        SpotterTraceResponse response = frontend.sendSpotterTrace(people[1], 0, peopleTimestamps[2], peopleTimestamps[2], null);
+        Assertions.assertIterableEquals(response.getObservationInfosList(), observationInfos);
+        Assertions.assertFalse(response.hasNext());
+    }
+
     /* No observations found tests */
 
     @Test
@@ -5,26 +5,66 @@ import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import pt.tecnico.sauron.silo.grpc.GrpcController;
 import pt.tecnico.sauron.silo.domain.*;
+import pt.tecnico.sauron.silo.grpc.GossipEncoding;
 import pt.tecnico.sauron.silo.grpc.GrpcGossipSender;
+import pt.tecnico.sauron.silo.persistence.FileSnapshotStore;
+import pt.tecnico.sauron.silo.persistence.FileUpdateSpill;
+import pt.tecnico.sauron.silo.persistence.WriteAheadLog;
+import pt.tecnico.sauron.silo.replication.UpdateSpill;
+import pt.tecnico.sauron.silo.replication.VectorClock;
 import pt.tecnico.sauron.silo.replication.VectorTimestamp;
+import pt.tecnico.sauron.silo.service.GossipScheduler;
+import pt.tecnico.sauron.silo.service.GossipSender;
+import pt.tecnico.sauron.silo.service.LogLimits;
 import pt.tecnico.sauron.silo.service.ReplicaService;
+import pt.tecnico.sauron.silo.service.SnapshotStore;
+import pt.tecnico.sauron.silo.service.UpdateApplier;
+import pt.tecnico.sauron.silo.service.UpdateJournal;
 import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 public class SiloServerApp {
 
 	private static final String SERVER_PATH = "/grpc/sauron/silo";
+	private static final String PROPERTIES_FILE = "/server.properties";
 
 	private static String serverHost;
 	private static String serverPort;
 	private static String serverPath;
 	private static ZKNaming zkNaming = null;
+	private static UpdateJournal journal = UpdateJournal.NONE;
+	private static GossipSender gossipSender;
+	private static GossipScheduler gossipScheduler;
+	private static UpdateApplier updateApplier;
+	private static UpdateSpill updateSpill = UpdateSpill.NONE;
+	private static ReplicaService replicaService;
 
 	private static final void close() {
 		try {
 			System.out.println("Terminating");
+			if (replicaService != null) {
+				replicaService.close();
+			}
+			if (gossipScheduler != null) {
+				gossipScheduler.close();
+			}
+			if (gossipSender != null) {
+				gossipSender.close();
+			}
+			if (updateApplier != null) {
+				updateApplier.close();
+			}
+			journal.close();
+			updateSpill.close();
 			if (zkNaming != null) {
 				System.out.println("Unbinding server with path " + serverPath + " at " + serverHost + ":" + serverPort);
 				zkNaming.unbind(serverPath, serverHost, serverPort);
@@ -35,6 +75,28 @@ public class SiloServerApp {
 		}
 	}
 	
+	private static Properties loadProperties() throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = SiloServerApp.class.getResourceAsStream(PROPERTIES_FILE)) {
+			// Defaults are used for any missing property
+			if (in != null) {
+				properties.load(in);
+			}
+		}
+		return properties;
+	}
+
+	private static Map<Integer, GossipEncoding> loadPeerEncodings(Properties properties, int numReplicas) {
+		Map<Integer, GossipEncoding> encodings = new HashMap<>();
+		for (int instance = 1; instance <= numReplicas; instance++) {
+			String encoding = properties.getProperty("gossip.encoding." + instance);
+			if (encoding != null) {
+				encodings.put(instance, GossipEncoding.parse(encoding));
+			}
+		}
+		return encodings;
+	}
+
 	public static void main(String[] args)
 			throws IOException, InterruptedException, ZKNamingException {
 
@@ -55,6 +117,7 @@ public class SiloServerApp {
 		serverPath = SERVER_PATH  + "/" + serverInstance;
 		final int numReplicas = Integer.parseInt(args[5]);
 		final int gossipRate = Integer.parseInt(args[6]);
+		final Properties properties = loadProperties();
 
 		// Build Repositories
         final CameraRepository cameraRepository = new CameraRepository();
@@ -63,19 +126,63 @@ public class SiloServerApp {
 
 		// Build Replication Structures
 		final VectorTimestamp valueTimestamp = new VectorTimestamp(numReplicas);
-		final VectorTimestamp replicaTimestamp = new VectorTimestamp(numReplicas);
+		final VectorClock replicaTimestamp = new VectorClock(numReplicas);
 		final VectorTimestamp[] timestampTable = new VectorTimestamp[numReplicas];
 		for (int i = 0; i < numReplicas; i++) {
 			timestampTable[i] = new VectorTimestamp(numReplicas);
 		}
 
+		// Build Persistence
+		final Path dataDir = Paths.get(properties.getProperty("data.dir", "data"), "replica-" + serverInstance);
+		if (Boolean.parseBoolean(properties.getProperty("wal.enabled", "true"))) {
+			journal = new WriteAheadLog(dataDir.resolve("wal"),
+					Long.parseLong(properties.getProperty("wal.segment.size", "67108864")),
+					Boolean.parseBoolean(properties.getProperty("wal.sync", "true")));
+		}
+		final int snapshotInterval = Integer.parseInt(properties.getProperty("snapshot.interval", "300"));
+		final SnapshotStore snapshotStore = snapshotInterval > 0
+				? new FileSnapshotStore(dataDir.resolve("snapshots"))
+				: SnapshotStore.NONE;
+		updateSpill = new FileUpdateSpill(dataDir.resolve("spill"));
+
+		// Cameras are refused new updates once a log is full
+		final LogLimits logLimits = new LogLimits(
+				Integer.parseInt(properties.getProperty("log.pending.max", "100000")),
+				Integer.parseInt(properties.getProperty("gossip.log.max", "4194304")),
+				Integer.parseInt(properties.getProperty("gossip.log.memory", "65536")),
+				Integer.parseInt(properties.getProperty("gossip.batch.max", "16384")),
+				Long.parseLong(properties.getProperty("backpressure.retry", "1000")));
+
+		// Build Gossip
+		gossipSender = new GrpcGossipSender(zooHost, zooPort, SERVER_PATH, Integer.parseInt(serverInstance),
+				TimeUnit.SECONDS.toMillis(Long.parseLong(properties.getProperty("gossip.peer.refresh", "30"))),
+				Long.parseLong(properties.getProperty("gossip.deadline", "2000")),
+				GossipEncoding.parse(properties.getProperty("gossip.encoding", "compact")),
+				loadPeerEncodings(properties, numReplicas));
+		// The gossip rate is the longest time between rounds while idle
+		gossipScheduler = new GossipScheduler(
+				Long.parseLong(properties.getProperty("gossip.delay.min", "10")),
+				TimeUnit.SECONDS.toMillis(gossipRate),
+				Integer.parseInt(properties.getProperty("gossip.backlog.size", "512")),
+				Long.parseLong(properties.getProperty("gossip.backlog.age", "20")));
+
+		// Updates of different cameras are applied at the same time
+		updateApplier = new UpdateApplier(Integer.parseInt(properties.getProperty("apply.workers",
+				String.valueOf(Runtime.getRuntime().availableProcessors()))));
+
 		// Build Service
-		final ReplicaService replicaService = new ReplicaService(
+		replicaService = new ReplicaService(
 				cameraRepository, personRepository, carRepository,
 				valueTimestamp, replicaTimestamp, timestampTable,
 				Integer.parseInt(serverInstance),
-				new GrpcGossipSender(zooHost, zooPort, SERVER_PATH, Integer.parseInt(serverInstance)),
-				gossipRate);
+				gossipSender,
+				gossipScheduler,
+				updateApplier,
+				journal,
+				snapshotStore,
+				snapshotInterval,
+				updateSpill,
+				logLimits);
 
 		// Build Controller
 		final GrpcController grpcController = new GrpcController(replicaService);
@@ -96,7 +203,8 @@ public class SiloServerApp {
 
 			Runtime.getRuntime().addShutdownHook(new Thread(SiloServerApp::close));
 
-			// start gRPC server
+			// start replica threads and gRPC server
+			replicaService.start();
 			server.start();
 			System.out.println("Server started");
 
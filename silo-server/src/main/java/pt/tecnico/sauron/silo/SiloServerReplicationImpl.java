@@ -28,6 +28,12 @@ public class SiloServerReplicationImpl extends GossipGrpc.GossipImplBase {
         }
     }
 
+    @Override
+    public void stateTransfer(StateTransferRequest request, StreamObserver<StateChunk> responseObserver) {
+        StateChunkIterator chunks = grpcController.handleStateTransfer(request);
+        FlowControlledSender.send(responseObserver, chunks, chunks::close);
+    }
+
     private void onInvalidArgumentsException(InvalidArgumentsException exception,
                                              StreamObserver<?> responseObserver) {
         synchronized (this) {
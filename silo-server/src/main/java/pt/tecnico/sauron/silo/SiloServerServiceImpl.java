@@ -1,18 +1,37 @@
 package pt.tecnico.sauron.silo;
 
+import com.google.protobuf.Duration;
+import com.google.rpc.RetryInfo;
+import io.grpc.Metadata;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import pt.tecnico.sauron.silo.grpc.GrpcController;
 import pt.tecnico.sauron.silo.grpc.GrpcMessageBuilder;
 import pt.tecnico.sauron.silo.exceptions.*;
 
 import pt.tecnico.sauron.silo.grpc.*;
-import pt.tecnico.sauron.silo.utils.CheckUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static io.grpc.Status.*;
 
 public class SiloServerServiceImpl extends SiloGrpc.SiloImplBase {
 
+    /* Number of frames of a report stream between acknowledgements */
+    private static final int REPORT_ACK_INTERVAL = 16;
+    /* Number of report streams whose last accepted frame is kept */
+    private static final int REPORT_STREAMS_KEPT = 1024;
+
     private final GrpcController grpcController;
+    // Last frame accepted of the report streams seen lately, least recently used first
+    private final Map<String, AcceptedFrame> reportStreams = new LinkedHashMap<>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AcceptedFrame> eldest) {
+            return size() > REPORT_STREAMS_KEPT;
+        }
+    };
 
     public SiloServerServiceImpl(GrpcController grpcController) {
         this.grpcController = grpcController;
@@ -30,22 +49,26 @@ public class SiloServerServiceImpl extends SiloGrpc.SiloImplBase {
             onCameraAlreadyExistsException(exception, responseObserver);
         } catch (InvalidArgumentsException exception) {
             onInvalidArgumentsException(exception, responseObserver);
+        } catch (ReplicaOverloadedException exception) {
+            onReplicaOverloadedException(exception, responseObserver);
         }
     }
 
     @Override
     public void camInfo(CamInfoRequest request, StreamObserver<CamInfoResponse> responseObserver) {
-        try {
-            CamInfoResponse response = grpcController.handleCamInfo(request);
-            synchronized (this) {
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
+        whenApplied(request.getPrev(), request.getMaxWait(), responseObserver, () -> {
+            try {
+                CamInfoResponse response = grpcController.handleCamInfo(request);
+                synchronized (this) {
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }
+            } catch (ObjectNotFoundException exception) {
+                onObjectNotFoundException(exception, responseObserver);
+            } catch (InvalidArgumentsException exception) {
+                onInvalidArgumentsException(exception, responseObserver);
             }
-        } catch (ObjectNotFoundException exception) {
-            onObjectNotFoundException(exception, responseObserver);
-        } catch (InvalidArgumentsException exception) {
-            onInvalidArgumentsException(exception, responseObserver);
-        }
+        });
     }
 
     @Override
@@ -60,55 +83,99 @@ public class SiloServerServiceImpl extends SiloGrpc.SiloImplBase {
             onObjectNotFoundException(e, responseObserver);
         } catch (InvalidArgumentsException e) {
             onInvalidArgumentsException(e, responseObserver);
+        } catch (ReplicaOverloadedException e) {
+            onReplicaOverloadedException(e, responseObserver);
         }
     }
 
+    @Override
+    public StreamObserver<CamReportRequest> camReportStream(StreamObserver<CamReportStreamResponse> responseObserver) {
+        return new CamReportStreamObserver(responseObserver);
+    }
+
     @Override
     public void spotterTrack(SpotterTrackRequest request, StreamObserver<SpotterTrackResponse> responseObserver) {
-        try {
-            SpotterTrackResponse response = grpcController.handleSpotterTrack(request);
-            synchronized (this) {
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
+        whenApplied(request.getPrev(), request.getMaxWait(), responseObserver, () -> {
+            try {
+                SpotterTrackResponse response = grpcController.handleSpotterTrack(request);
+                synchronized (this) {
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }
+            } catch (ObjectNotFoundException exception) {
+                onObjectNotFoundException(exception, responseObserver);
+            } catch (InvalidArgumentsException exception) {
+                onInvalidArgumentsException(exception, responseObserver);
             }
-        } catch (ObjectNotFoundException exception) {
-            onObjectNotFoundException(exception, responseObserver);
-        } catch (InvalidArgumentsException exception) {
-            onInvalidArgumentsException(exception, responseObserver);
-        }
+        });
     }
 
     @Override
     public void spotterTrackMatch(SpotterTrackMatchRequest request, StreamObserver<SpotterTrackMatchResponse> responseObserver) {
-        try {
-            SpotterTrackMatchResponse response = grpcController.handleSpotterTrackMatch(request);
-            synchronized (this) {
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
+        whenApplied(request.getPrev(), request.getMaxWait(), responseObserver, () -> {
+            try {
+                SpotterTrackMatchResponse response = grpcController.handleSpotterTrackMatch(request);
+                synchronized (this) {
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }
+            } catch (InvalidArgumentsException exception) {
+                onInvalidArgumentsException(exception, responseObserver);
             }
-        } catch (InvalidArgumentsException exception) {
-            onInvalidArgumentsException(exception, responseObserver);
-        }
+        });
     }
 
     @Override
     public void spotterTrace(SpotterTraceRequest request, StreamObserver<SpotterTraceResponse> responseObserver) {
-        try {
-            SpotterTraceResponse response = grpcController.handleSpotterTrace(request);
-            synchronized (this) {
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
+        whenApplied(request.getPrev(), request.getMaxWait(), responseObserver, () -> {
+            try {
+                SpotterTraceResponse response = grpcController.handleSpotterTrace(request);
+                synchronized (this) {
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }
+            } catch (InvalidArgumentsException exception) {
+                onInvalidArgumentsException(exception, responseObserver);
             }
-        } catch (InvalidArgumentsException exception) {
-            onInvalidArgumentsException(exception, responseObserver);
-        }
+        });
+    }
+
+    @Override
+    public void spotterTrackMatchStream(SpotterTrackMatchRequest request, StreamObserver<ObservationChunk> responseObserver) {
+        // Handlers are registered now, the chunks are sent once the query runs
+        FlowControlledSender<ObservationChunk> sender = FlowControlledSender.register(responseObserver);
+        grpcController.whenApplied(request.getPrev(), request.getMaxWait(), () -> {
+            if (sender.isDone()) return;
+            try {
+                sender.start(grpcController.handleSpotterTrackMatchStream(request));
+            } catch (InvalidArgumentsException exception) {
+                onInvalidArgumentsException(exception, responseObserver);
+            } catch (RuntimeException exception) {
+                onRuntimeException(exception, responseObserver);
+            }
+        });
+    }
+
+    @Override
+    public void spotterTraceStream(SpotterTraceRequest request, StreamObserver<ObservationChunk> responseObserver) {
+        // Handlers are registered now, the chunks are sent once the query runs
+        FlowControlledSender<ObservationChunk> sender = FlowControlledSender.register(responseObserver);
+        grpcController.whenApplied(request.getPrev(), request.getMaxWait(), () -> {
+            if (sender.isDone()) return;
+            try {
+                sender.start(grpcController.handleSpotterTraceStream(request));
+            } catch (InvalidArgumentsException exception) {
+                onInvalidArgumentsException(exception, responseObserver);
+            } catch (RuntimeException exception) {
+                onRuntimeException(exception, responseObserver);
+            }
+        });
     }
 
     @Override
     public void ctrlPing(PingRequest request, StreamObserver<PingResponse> responseObserver) {
         try {
-            String message = CheckUtils.notNullOrBlank(request.getMessage(), "Message");
-            PingResponse response =  GrpcMessageBuilder.buildPingResponse("Hello " + message + "!");
+            PingResponse response = grpcController.handlePing(request);
             synchronized (this) {
                 responseObserver.onNext(response);
                 responseObserver.onCompleted();
@@ -144,6 +211,119 @@ public class SiloServerServiceImpl extends SiloGrpc.SiloImplBase {
         }
     }
 
+    /**
+     * Receives the frames of a cam report stream. Every frame is a report of
+     * its own, acknowledged in batches so that the camera does not wait a
+     * round trip per frame. Frames are processed as they arrive, so a camera
+     * sending faster than the replica accepts is held back by flow control.
+     * A frame the camera sends again after a stream failed is acknowledged
+     * without being reported twice
+     */
+    private class CamReportStreamObserver implements StreamObserver<CamReportRequest> {
+
+        private final StreamObserver<CamReportStreamResponse> responseObserver;
+        private VectorTS lastUpdateID = null;
+        private long accepted = 0;
+        private boolean failed = false;
+
+        private CamReportStreamObserver(StreamObserver<CamReportStreamResponse> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void onNext(CamReportRequest frame) {
+            if (failed) return;
+            try {
+                lastUpdateID = accept(frame);
+                if (++accepted % REPORT_ACK_INTERVAL == 0) {
+                    acknowledge();
+                }
+            } catch (ObjectNotFoundException exception) {
+                // Camera learns which frames were accepted before the one that failed
+                failed = true;
+                acknowledge();
+                onObjectNotFoundException(exception, responseObserver);
+            } catch (InvalidArgumentsException exception) {
+                failed = true;
+                acknowledge();
+                onInvalidArgumentsException(exception, responseObserver);
+            } catch (ReplicaOverloadedException exception) {
+                // Camera sends the refused frame and the ones after it again later
+                failed = true;
+                acknowledge();
+                onReplicaOverloadedException(exception, responseObserver);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // Camera went away, the accepted frames are already in the update log
+            failed = true;
+        }
+
+        @Override
+        public void onCompleted() {
+            if (failed) return;
+            acknowledge();
+            responseObserver.onCompleted();
+        }
+
+        private void acknowledge() {
+            if (lastUpdateID != null) {
+                responseObserver.onNext(GrpcMessageBuilder.buildCamReportStreamResponse(lastUpdateID, accepted));
+            }
+        }
+
+        /* Reports the frame unless it was accepted before, returns the update id to follow */
+        private VectorTS accept(CamReportRequest frame)
+                throws ObjectNotFoundException, InvalidArgumentsException, ReplicaOverloadedException {
+            if (frame.getStreamId().isEmpty()) {
+                return grpcController.handleCamReportFrame(frame, lastUpdateID).getUpdateID();
+            }
+            AcceptedFrame last;
+            synchronized (reportStreams) {
+                last = reportStreams.computeIfAbsent(frame.getStreamId(), streamId -> new AcceptedFrame());
+            }
+            // Old stream of the camera may still be processing its last frames
+            synchronized (last) {
+                if (frame.getSequence() <= last.sequence) {
+                    // Update id of a later frame, which follows this one
+                    return last.updateID;
+                }
+                VectorTS updateID = grpcController.handleCamReportFrame(frame, lastUpdateID).getUpdateID();
+                last.sequence = frame.getSequence();
+                last.updateID = updateID;
+                return updateID;
+            }
+        }
+    }
+
+    /* Last frame of a report stream accepted, guarded by itself */
+    private static class AcceptedFrame {
+
+        private long sequence = 0;
+        private VectorTS updateID;
+    }
+
+    /**
+     * Answers a query once the replica applied the updates its client saw,
+     * or once the wait expired. A query cancelled meanwhile is not answered
+     */
+    private void whenApplied(VectorTS prev, int maxWait, StreamObserver<?> responseObserver, Runnable query) {
+        ServerCallStreamObserver<?> observer = (ServerCallStreamObserver<?>) responseObserver;
+        // Answering a cancelled call does not throw once a handler is set
+        observer.setOnCancelHandler(() -> {});
+        grpcController.whenApplied(prev, maxWait, () -> {
+            if (observer.isCancelled()) return;
+            try {
+                query.run();
+            } catch (RuntimeException exception) {
+                // Runs on the query executor, nobody else would answer the client
+                onRuntimeException(exception, responseObserver);
+            }
+        });
+    }
+
     /* Methods for general exception handling */
 
     private void onCameraAlreadyExistsException(CameraAlreadyExistsException exception,
@@ -153,6 +333,12 @@ public class SiloServerServiceImpl extends SiloGrpc.SiloImplBase {
         }
     }
 
+    private void onRuntimeException(RuntimeException exception, StreamObserver<?> responseObserver) {
+        synchronized (this) {
+            responseObserver.onError(INTERNAL.withDescription(exception.getMessage()).asRuntimeException());
+        }
+    }
+
     private void onInvalidArgumentsException(InvalidArgumentsException exception,
                                              StreamObserver<?> responseObserver) {
         synchronized (this) {
@@ -160,6 +346,20 @@ public class SiloServerServiceImpl extends SiloGrpc.SiloImplBase {
         }
     }
 
+    private void onReplicaOverloadedException(ReplicaOverloadedException exception,
+                                              StreamObserver<?> responseObserver) {
+        // Tells the client how long to wait before sending the update again
+        long delay = exception.getRetryDelay();
+        Metadata trailers = new Metadata();
+        trailers.put(ProtoUtils.keyForProto(RetryInfo.getDefaultInstance()), RetryInfo.newBuilder()
+                .setRetryDelay(Duration.newBuilder().setSeconds(delay / 1000).setNanos((int) (delay % 1000) * 1000000))
+                .build());
+        synchronized (this) {
+            responseObserver.onError(RESOURCE_EXHAUSTED.withDescription(exception.getMessage())
+                    .asRuntimeException(trailers));
+        }
+    }
+
     private void onObjectNotFoundException(ObjectNotFoundException exception,
                                            StreamObserver<?> responseObserver) {
         synchronized (this) {
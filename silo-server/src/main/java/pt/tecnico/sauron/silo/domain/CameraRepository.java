@@ -1,5 +1,7 @@
 package pt.tecnico.sauron.silo.domain;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -53,6 +55,13 @@ public class CameraRepository {
         return repository.containsKey(name);
     }
 
+    /**
+     * @return copy of all the cameras in the repository
+     */
+    public List<Camera> list() {
+        return new ArrayList<>(repository.values());
+    }
+
     /**
      * Clears all the cameras from repository
      */
@@ -0,0 +1,101 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static pt.tecnico.sauron.silo.domain.WildcardMatcher.ALPHABET_SIZE;
+
+/**
+ * Concurrent prefix tree over the string representation of observation ids.
+ * Secondary index for the observation repositories so that wildcard searches
+ * only walk the subtrees that can match the given pattern
+ * @param <I> Id class for the observations
+ */
+public class IdTrie<I> {
+
+    private final AtomicReference<Node<I>> root = new AtomicReference<>(new Node<>());
+
+    /**
+     * Adds an id to the index. Adding an existing id has no effect
+     * @param id to add
+     * @param version of the repository when the id was added
+     */
+    public void insert(I id, long version) {
+        String key = id.toString();
+        Node<I> node = root.get();
+        for (int i = 0; i < key.length(); i++) {
+            node = node.getOrCreateChild(indexOf(key.charAt(i)));
+        }
+        if (node.id == null) {
+            // Version is written before the volatile id so readers of the id also see it
+            node.version = version;
+            node.id = id;
+        }
+    }
+
+    /**
+     * Finds all the ids accepted by a matcher. The path to each node is unique
+     * so every node is visited at most once, and the subtrees where the matcher
+     * can no longer accept are pruned. A pattern with a leading wildcard is the
+     * only one that needs to visit every id
+     * @param matcher to accept the ids
+     * @param snapshot version, ids added after it are left out
+     * @return ids matching the pattern sorted by their string representation
+     */
+    public List<I> match(WildcardMatcher matcher, long snapshot) {
+        List<I> matches = new ArrayList<>();
+        walk(root.get(), matcher, matcher.start(), snapshot, matches);
+        return matches;
+    }
+
+    /**
+     * Removes all the ids from the index
+     */
+    public void clear() {
+        root.set(new Node<>());
+    }
+
+    private void walk(Node<I> node, WildcardMatcher matcher, int state, long snapshot, List<I> matches) {
+        I id = node.id;
+        if (id != null && node.version <= snapshot && matcher.isAccepting(state)) {
+            matches.add(id);
+        }
+        for (int i = 0; i < ALPHABET_SIZE; i++) {
+            Node<I> child = node.children.get(i);
+            if (child != null) {
+                int next = matcher.step(state, WildcardMatcher.charOf(i));
+                if (!matcher.isDead(next)) {
+                    walk(child, matcher, next, snapshot, matches);
+                }
+            }
+        }
+    }
+
+    private static int indexOf(char c) {
+        int index = WildcardMatcher.symbolOf(c);
+        if (index < 0) {
+            throw new IllegalArgumentException(String.format("Unsupported id character: '%c'", c));
+        }
+        return index;
+    }
+
+    private static class Node<I> {
+
+        private final AtomicReferenceArray<Node<I>> children = new AtomicReferenceArray<>(ALPHABET_SIZE);
+        // Id ending in this node or null if no id ends here
+        private volatile I id;
+        // Version of the repository when the id was added
+        private long version;
+
+        private Node<I> getOrCreateChild(int index) {
+            Node<I> child = children.get(index);
+            if (child == null) {
+                Node<I> created = new Node<>();
+                child = children.compareAndSet(index, null, created) ? created : children.get(index);
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Observations of a single id sorted by increasing timestamp. Stored in
+ * fixed size chunks so that growing never copies the observations.
+ * Observations arrive almost always in timestamp order and are appended
+ * at the end, the rare out of order ones are inserted in place
+ * @param <T> Observation class
+ */
+public class ObservationLog<T extends SavedObservation<?>> {
+
+    private static final int CHUNK_SHIFT = 4;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private Object[][] chunks = new Object[1][];
+    private int size = 0;
+    // Observation with the highest timestamp, read without locking
+    private volatile T latest;
+
+    // Epoch of the repository when the log last changed
+    private long epoch = -1;
+    // Observations before the first change in the current epoch, only kept during a snapshot
+    private List<T> previous;
+    private long previousEpoch = -1;
+
+    /**
+     * Adds an observation keeping the log sorted. Observations with the
+     * same timestamp are kept in the order they were added
+     * @param observation to add
+     * @param epoch of the repository
+     * @param preserve true if the observations before the epoch must be kept for a snapshot
+     */
+    public synchronized void add(T observation, long epoch, boolean preserve) {
+        if (epoch != this.epoch) {
+            // First change since the epoch started
+            previous = preserve ? copy() : null;
+            previousEpoch = this.epoch;
+            this.epoch = epoch;
+        }
+        Instant timestamp = observation.getTimestamp();
+        if (size == 0 || !timestamp.isBefore(get(size - 1).getTimestamp())) {
+            append(observation);
+            latest = observation;
+        }
+        else {
+            insert(upperBound(timestamp), observation);
+        }
+    }
+
+    /**
+     * @return the observation with the highest timestamp or null if empty
+     */
+    public T getLatest() {
+        return latest;
+    }
+
+    /**
+     * Reads the observations in a range by decreasing timestamp. The bounds
+     * of the range are found by binary search so only the returned
+     * observations are visited
+     * @param range of the observations to read
+     * @return copy of the observations in the range and the cursor for the next page
+     */
+    public synchronized TracePage<T> read(TraceRange range) {
+        int first = range.getSince() == null ? 0 : lowerBound(range.getSince());
+        int end = range.getUntil() == null ? size : lowerBound(range.getUntil());
+        TraceCursor cursor = range.getCursor();
+        if (cursor != null) {
+            // Skip the observations with the cursor timestamp already returned
+            int cursorEnd = Math.max(upperBound(cursor.getTimestamp()) - cursor.getSkip(),
+                    lowerBound(cursor.getTimestamp()));
+            end = Math.min(end, cursorEnd);
+        }
+
+        int count = Math.max(end - first, 0);
+        if (range.isLimited()) {
+            count = Math.min(count, range.getLimit());
+        }
+        List<T> observations = new ArrayList<>(count);
+        for (int i = end - 1; i >= end - count; i--) {
+            observations.add(get(i));
+        }
+
+        TraceCursor next = null;
+        int last = end - count;
+        if (count > 0 && last > first) {
+            Instant timestamp = get(last).getTimestamp();
+            next = new TraceCursor(timestamp, upperBound(timestamp) - last);
+        }
+        return new TracePage<>(observations, next);
+    }
+
+    /**
+     * Lazily reads the observations in a range by decreasing timestamp. The
+     * log is only locked while copying each page, so reports to this id can
+     * go on while the stream is being consumed
+     * @param range of the observations to read
+     * @param pageSize max number of observations copied at a time
+     * @return stream of the observations in the range
+     */
+    public Stream<T> stream(TraceRange range, int pageSize) {
+        Iterator<T> iterator = new Iterator<>() {
+            private Iterator<T> page = Collections.emptyIterator();
+            private TraceCursor cursor = range.getCursor();
+            private int remaining = range.isLimited() ? range.getLimit() : Integer.MAX_VALUE;
+            private boolean lastPage = false;
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && !lastPage && remaining > 0) {
+                    TraceRange pageRange = new TraceRange(range.getSince(), range.getUntil(),
+                            Math.min(pageSize, remaining), cursor);
+                    TracePage<T> next = read(pageRange);
+                    remaining -= next.getObservations().size();
+                    cursor = next.getNext().orElse(null);
+                    lastPage = cursor == null;
+                    page = next.getObservations().iterator();
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Reads the observations as they were at the end of an epoch
+     * @param epoch to read
+     * @return copy of the observations by increasing timestamp
+     */
+    public synchronized List<T> readAt(long epoch) {
+        if (this.epoch <= epoch) {
+            return copy();
+        }
+        if (previous != null && previousEpoch <= epoch) {
+            return previous;
+        }
+        // Log was created after the epoch
+        return List.of();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private List<T> copy() {
+        List<T> observations = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            observations.add(get(i));
+        }
+        return observations;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T get(int index) {
+        return (T) chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    private void set(int index, T observation) {
+        chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK] = observation;
+    }
+
+    private void append(T observation) {
+        int chunk = size >>> CHUNK_SHIFT;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Object[CHUNK_SIZE];
+        }
+        set(size, observation);
+        size++;
+    }
+
+    /* Shifts every observation after the index one position to the right */
+    private void insert(int index, T observation) {
+        append(get(size - 1));
+        for (int i = size - 2; i > index; i--) {
+            set(i, get(i - 1));
+        }
+        set(index, observation);
+    }
+
+    /* First index with a timestamp not before the given one */
+    private int lowerBound(Instant timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (get(middle).getTimestamp().isBefore(timestamp)) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /* First index with a timestamp after the given one */
+    private int upperBound(Instant timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (get(middle).getTimestamp().isAfter(timestamp)) {
+                high = middle;
+            }
+            else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+}
@@ -1,9 +1,12 @@
 package pt.tecnico.sauron.silo.domain;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 
 /**
@@ -14,65 +17,128 @@ import java.util.stream.Stream;
  */
 public class ObservationRepository<I extends Comparable<I>, T extends SavedObservation<I>> {
 
-    // Priority Queue so that the first element always has the highest timestamp
-    private ConcurrentHashMap<I, PriorityBlockingQueue<T>> repository = new ConcurrentHashMap<>();
-    // Lock for methods with multiple operations on the repository
-    private final Object lock = new Object();
+    // Log sorted by timestamp so that the last observation is always at hand
+    private volatile ConcurrentHashMap<I, ObservationLog<T>> repository = new ConcurrentHashMap<>();
+    // Index of the ids to search by wildcard patterns
+    private final IdTrie<I> index = new IdTrie<>();
+    // Incremented for every new id, each id in the index is stamped with its version
+    private final AtomicLong version = new AtomicLong();
+    // Shared by the threads adding new ids, exclusive only while taking a match snapshot
+    private final ReadWriteLock versionLock = new ReentrantReadWriteLock();
+    // Incremented by every snapshot, logs changed after a snapshot started are in a later epoch
+    private volatile long epoch = 0;
+    // True while a snapshot is open, so changed logs keep their observations from before it
+    private volatile boolean preserving = false;
 
     public void report(T observation) {
-        // Lock doesnt allow report while matching
-        synchronized (lock) {
-            addObservation(observation);
-        }
+        // Reports of known ids never lock, only the first report of an id is indexed
+        addObservation(observation);
     }
 
     public Optional<T> track(I id) {
-        return repository.containsKey(id) ? Optional.of(getLastObservation(id)) : Optional.empty();
+        return Optional.ofNullable(getLastObservation(id));
     }
 
-    public Stream<T> match(String regex) {
-        // Lock so that no observations can be inserted while matching
-        // Lock to enable gets
-        synchronized (lock) {
-            return repository.keySet().stream()
-                    .filter(id -> id.toString().matches(regex))
-                    .map(this::getLastObservation);
-        }
+    /**
+     * Finds the last observation of every id accepted by a wildcard matcher.
+     * The ids are the ones in the repository when the search started, ids
+     * first reported during the search are left out
+     * @param matcher compiled from the wildcard pattern
+     * @return the last observations sorted by id string
+     */
+    public Stream<T> match(WildcardMatcher matcher) {
+        long snapshot = takeSnapshot();
+        return index.match(matcher, snapshot).stream()
+                .map(this::getLastObservation)
+                .filter(Objects::nonNull);
     }
 
-    public Stream<T> trace(I id) {
-        if (!repository.containsKey(id)) {
-            return Stream.empty();
-        }
+    /**
+     * Finds the observations of an id in a range
+     * @param id of the observations
+     * @param range of the observations to read
+     * @return page of observations sorted by decreasing timestamp
+     */
+    public TracePage<T> trace(I id, TraceRange range) {
+        ObservationLog<T> observationLog = repository.get(id);
+        return observationLog == null ? new TracePage<>(List.of(), null) : observationLog.read(range);
+    }
 
-        PriorityBlockingQueue<T> observationList = repository.get(id);
-        // Lock observation list so that no one can insert while copying
-        synchronized (observationList) {
-            return new ArrayList<>(observationList).stream();
-        }
+    /**
+     * Lazily finds the observations of an id in a range
+     * @param id of the observations
+     * @param range of the observations to read
+     * @param pageSize max number of observations read from the log at a time
+     * @return stream of observations sorted by decreasing timestamp
+     */
+    public Stream<T> traceStream(I id, TraceRange range, int pageSize) {
+        ObservationLog<T> observationLog = repository.get(id);
+        return observationLog == null ? Stream.empty() : observationLog.stream(range, pageSize);
+    }
+
+    /**
+     * Takes a snapshot of the observations. The snapshot only copies the
+     * logs changed while it is open, so it must be released once read.
+     * No observation can be reported while the snapshot is being taken
+     * @return the snapshot of the repository
+     */
+    public ObservationSnapshot<T> snapshot() {
+        long cut = epoch;
+        preserving = true;
+        epoch = cut + 1;
+        return new ObservationSnapshot<>(repository.values(), cut, () -> preserving = false);
     }
 
     public void clear() {
-        repository.clear();
+        // Replaced instead of cleared so that an open snapshot still has the logs
+        repository = new ConcurrentHashMap<>();
+        index.clear();
     }
 
     private void addObservation(T observation) {
         I observationId = observation.getId();
 
-        if (repository.containsKey(observationId)) {
-            repository.get(observationId).add(observation);
-        }
-        else {
-            PriorityBlockingQueue<T> list = new PriorityBlockingQueue<>();
-            list.add(observation);
-            if (repository.putIfAbsent(observationId, list) != null) {
-                repository.get(observationId).add(observation);
+        long currentEpoch = epoch;
+        boolean preserve = preserving;
+        ObservationLog<T> observationLog = repository.get(observationId);
+        if (observationLog == null) {
+            ObservationLog<T> log = new ObservationLog<>();
+            log.add(observation, currentEpoch, preserve);
+            observationLog = repository.putIfAbsent(observationId, log);
+            if (observationLog == null) {
+                // Only index after the id has an observation
+                indexId(observationId);
+                return;
             }
         }
+        observationLog.add(observation, currentEpoch, preserve);
+    }
+
+    private void indexId(I id) {
+        // Many ids can be added at the same time, the version is only
+        // visible to a snapshot once the id is in the index
+        versionLock.readLock().lock();
+        try {
+            index.insert(id, version.incrementAndGet());
+        } finally {
+            versionLock.readLock().unlock();
+        }
+    }
+
+    private long takeSnapshot() {
+        // No id is halfway added while holding the write lock, so every
+        // id with a version up to the snapshot is already in the index
+        versionLock.writeLock().lock();
+        try {
+            return version.get();
+        } finally {
+            versionLock.writeLock().unlock();
+        }
     }
 
     private T getLastObservation(I id) {
-        PriorityBlockingQueue<T> observationList = repository.get(id);
-        return observationList.peek();
+        ObservationLog<T> observationLog = repository.get(id);
+        // Null if the id was never reported or the repository was cleared
+        return observationLog == null ? null : observationLog.getLatest();
     }
 }
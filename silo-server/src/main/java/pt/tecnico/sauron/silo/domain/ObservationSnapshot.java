@@ -0,0 +1,64 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Point in time view of an observation repository. Iterates over the
+ * observations of each id as they were when the snapshot was taken,
+ * while new observations keep being reported
+ * @param <T> Observation class
+ */
+public class ObservationSnapshot<T extends SavedObservation<?>> implements Iterable<List<T>>, AutoCloseable {
+
+    private final Collection<ObservationLog<T>> logs;
+    private final long epoch;
+    private final Runnable release;
+
+    ObservationSnapshot(Collection<ObservationLog<T>> logs, long epoch, Runnable release) {
+        this.logs = logs;
+        this.epoch = epoch;
+        this.release = release;
+    }
+
+    /**
+     * @return iterator over the observations of each id by increasing timestamp,
+     * ids first reported after the snapshot are left out
+     */
+    @Override
+    public Iterator<List<T>> iterator() {
+        Iterator<ObservationLog<T>> iterator = logs.iterator();
+        return new Iterator<>() {
+            private List<T> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && iterator.hasNext()) {
+                    List<T> observations = iterator.next().readAt(epoch);
+                    next = observations.isEmpty() ? null : observations;
+                }
+                return next != null;
+            }
+
+            @Override
+            public List<T> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                List<T> observations = next;
+                next = null;
+                return observations;
+            }
+        };
+    }
+
+    /**
+     * Stops keeping the observations changed after the snapshot
+     */
+    @Override
+    public void close() {
+        release.run();
+    }
+}
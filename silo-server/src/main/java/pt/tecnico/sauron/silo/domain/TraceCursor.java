@@ -0,0 +1,35 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.time.Instant;
+
+/**
+ * Position where a trace page ended. The next page starts at the
+ * observations with the given timestamp, after skipping the ones
+ * with that same timestamp that were already returned
+ */
+public class TraceCursor {
+
+    private final Instant timestamp;
+    private final int skip;
+
+    public TraceCursor(Instant timestamp, int skip) {
+        this.timestamp = timestamp;
+        this.skip = skip;
+    }
+
+    public Instant getTimestamp() {
+        return timestamp;
+    }
+
+    public int getSkip() {
+        return skip;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceCursor{" +
+                "timestamp=" + timestamp +
+                ", skip=" + skip +
+                '}';
+    }
+}
@@ -0,0 +1,39 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Observations of a trace query sorted by decreasing timestamp,
+ * with the cursor for the next page if the range has more
+ * @param <T> Observation class
+ */
+public class TracePage<T extends SavedObservation<?>> {
+
+    private final List<T> observations;
+    private final TraceCursor next;
+
+    public TracePage(List<T> observations, TraceCursor next) {
+        this.observations = observations;
+        this.next = next;
+    }
+
+    public List<T> getObservations() {
+        return observations;
+    }
+
+    /**
+     * @return the cursor for the next page or empty if this is the last page
+     */
+    public Optional<TraceCursor> getNext() {
+        return Optional.ofNullable(next);
+    }
+
+    @Override
+    public String toString() {
+        return "TracePage{" +
+                "observations=" + observations +
+                ", next=" + next +
+                '}';
+    }
+}
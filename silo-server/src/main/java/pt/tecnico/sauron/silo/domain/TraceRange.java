@@ -0,0 +1,65 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.time.Instant;
+
+/**
+ * Window of a trace query. Observations are read by decreasing timestamp,
+ * from the cursor or the upper bound, until the lower bound or the limit
+ */
+public class TraceRange {
+
+    private static final TraceRange ALL = new TraceRange(null, null, 0, null);
+
+    // Inclusive lower bound or null if unbounded
+    private final Instant since;
+    // Exclusive upper bound or null if unbounded
+    private final Instant until;
+    // Max number of observations or 0 if unlimited
+    private final int limit;
+    // Where the previous page ended or null for the first page
+    private final TraceCursor cursor;
+
+    public TraceRange(Instant since, Instant until, int limit, TraceCursor cursor) {
+        this.since = since;
+        this.until = until;
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
+    /**
+     * @return range with every observation
+     */
+    public static TraceRange all() {
+        return ALL;
+    }
+
+    public Instant getSince() {
+        return since;
+    }
+
+    public Instant getUntil() {
+        return until;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TraceCursor getCursor() {
+        return cursor;
+    }
+
+    public boolean isLimited() {
+        return limit > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceRange{" +
+                "since=" + since +
+                ", until=" + until +
+                ", limit=" + limit +
+                ", cursor=" + cursor +
+                '}';
+    }
+}
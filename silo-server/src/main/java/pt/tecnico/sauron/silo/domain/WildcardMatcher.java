@@ -0,0 +1,177 @@
+package pt.tecnico.sauron.silo.domain;
+
+import java.util.*;
+
+/**
+ * Deterministic automaton compiled from a spotter wildcard pattern,
+ * where '*' matches any sequence of characters. Only digits and upper
+ * case letters are accepted, the same characters allowed in the ids.
+ * Matching is a table lookup per character and allocates no objects
+ */
+public class WildcardMatcher {
+
+    static final int ALPHABET_SIZE = 36;
+
+    private static final char WILDCARD = '*';
+    // State with no possible match, loops to itself for every character
+    private static final int DEAD = 0;
+
+    private final String pattern;
+    // transitions[state * ALPHABET_SIZE + symbol] is the next state
+    private final int[] transitions;
+    private final boolean[] accepting;
+    private final int start;
+
+    private WildcardMatcher(String pattern, int[] transitions, boolean[] accepting, int start) {
+        this.pattern = pattern;
+        this.transitions = transitions;
+        this.accepting = accepting;
+        this.start = start;
+    }
+
+    /**
+     * Compiles a wildcard pattern to an automaton with the subset construction
+     * @param pattern with only digits, upper case letters and wildcards
+     * @return the compiled matcher
+     */
+    public static WildcardMatcher compile(String pattern) {
+        String collapsed = collapseWildcards(pattern);
+        int length = collapsed.length();
+
+        // Each automaton state is a set of active pattern positions, where
+        // position p is active if the first p characters were matched
+        Map<BitSet, Integer> states = new HashMap<>();
+        List<BitSet> pending = new ArrayList<>();
+        List<int[]> rows = new ArrayList<>();
+
+        BitSet dead = new BitSet();
+        states.put(dead, DEAD);
+        pending.add(dead);
+
+        BitSet initial = new BitSet();
+        initial.set(0);
+        closure(collapsed, initial);
+        int start = states.computeIfAbsent(initial, set -> { pending.add(set); return pending.size() - 1; });
+
+        for (int state = 0; state < pending.size(); state++) {
+            BitSet current = pending.get(state);
+            int[] row = new int[ALPHABET_SIZE];
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                BitSet next = step(collapsed, current, charOf(symbol));
+                row[symbol] = states.computeIfAbsent(next, set -> { pending.add(set); return pending.size() - 1; });
+            }
+            rows.add(row);
+        }
+
+        int[] transitions = new int[rows.size() * ALPHABET_SIZE];
+        boolean[] accepting = new boolean[rows.size()];
+        for (int state = 0; state < rows.size(); state++) {
+            System.arraycopy(rows.get(state), 0, transitions, state * ALPHABET_SIZE, ALPHABET_SIZE);
+            accepting[state] = pending.get(state).get(length);
+        }
+        return new WildcardMatcher(pattern, transitions, accepting, start);
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return state before reading any character
+     */
+    public int start() {
+        return start;
+    }
+
+    /**
+     * @param state current state
+     * @param c character read
+     * @return the state after reading the character
+     */
+    public int step(int state, char c) {
+        int symbol = symbolOf(c);
+        return symbol < 0 ? DEAD : transitions[state * ALPHABET_SIZE + symbol];
+    }
+
+    /**
+     * @param state to check
+     * @return true if the characters read so far match the pattern
+     */
+    public boolean isAccepting(int state) {
+        return accepting[state];
+    }
+
+    /**
+     * @param state to check
+     * @return true if no continuation of the characters read can match
+     */
+    public boolean isDead(int state) {
+        return state == DEAD;
+    }
+
+    /**
+     * @param id string representation of the id to check
+     * @return true if the whole id matches the pattern
+     */
+    public boolean matches(CharSequence id) {
+        int state = start;
+        for (int i = 0; i < id.length() && state != DEAD; i++) {
+            state = step(state, id.charAt(i));
+        }
+        return accepting[state];
+    }
+
+    /* Auxiliary functions for the subset construction */
+
+    private static BitSet step(String pattern, BitSet positions, char c) {
+        BitSet next = new BitSet();
+        for (int p = positions.nextSetBit(0); p >= 0 && p < pattern.length(); p = positions.nextSetBit(p + 1)) {
+            char expected = pattern.charAt(p);
+            if (expected == WILDCARD) {
+                next.set(p);
+            } else if (expected == c) {
+                next.set(p + 1);
+            }
+        }
+        closure(pattern, next);
+        return next;
+    }
+
+    /* A wildcard can match the empty string so the position after it is also active */
+    private static void closure(String pattern, BitSet positions) {
+        for (int p = positions.nextSetBit(0); p >= 0 && p < pattern.length(); p = positions.nextSetBit(p + 1)) {
+            if (pattern.charAt(p) == WILDCARD) {
+                positions.set(p + 1);
+            }
+        }
+    }
+
+    private static String collapseWildcards(String pattern) {
+        StringBuilder builder = new StringBuilder(pattern.length());
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c != WILDCARD || builder.length() == 0 || builder.charAt(builder.length() - 1) != WILDCARD) {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    static int symbolOf(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'Z') return c - 'A' + 10;
+        return -1;
+    }
+
+    static char charOf(int symbol) {
+        return (char) (symbol < 10 ? '0' + symbol : 'A' + symbol - 10);
+    }
+
+    @Override
+    public String toString() {
+        return "WildcardMatcher{" +
+                "pattern='" + pattern + '\'' +
+                ", states=" + accepting.length +
+                '}';
+    }
+}
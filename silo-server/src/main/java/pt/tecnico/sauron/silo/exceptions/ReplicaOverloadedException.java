@@ -0,0 +1,20 @@
+package pt.tecnico.sauron.silo.exceptions;
+
+public class ReplicaOverloadedException extends Exception {
+
+    private static final String MESSAGE = "Replica overloaded, %d updates waiting";
+
+    private final long retryDelay;
+
+    public ReplicaOverloadedException(int waiting, long retryDelay) {
+        super(String.format(MESSAGE, waiting));
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * @return milliseconds to wait before sending the update again
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+}
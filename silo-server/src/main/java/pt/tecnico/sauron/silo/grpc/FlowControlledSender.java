@@ -0,0 +1,121 @@
+package pt.tecnico.sauron.silo.grpc;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Iterator;
+
+/**
+ * Sends the messages of a server stream only while the transport is
+ * ready for them. Each message is built when it is about to be sent, so
+ * a slow client holds back the server instead of filling its buffers
+ * @param <T> Message class
+ */
+public class FlowControlledSender<T> implements Runnable {
+
+    private final ServerCallStreamObserver<T> observer;
+    private final Runnable onFinished;
+    // Null until the sender is started
+    private Iterator<T> messages;
+    private boolean done = false;
+
+    private FlowControlledSender(ServerCallStreamObserver<T> observer, Runnable onFinished) {
+        this.observer = observer;
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Starts sending the messages. Must be called from the service
+     * method, before it returns, so that the handlers are registered
+     * @param responseObserver of the server stream
+     * @param messages to send, built lazily
+     * @param <T> Message class
+     */
+    public static <T> void send(StreamObserver<T> responseObserver, Iterator<T> messages) {
+        send(responseObserver, messages, () -> {});
+    }
+
+    /**
+     * Starts sending the messages. Must be called from the service
+     * method, before it returns, so that the handlers are registered
+     * @param responseObserver of the server stream
+     * @param messages to send, built lazily
+     * @param onFinished called once the stream is completed, failed or cancelled
+     * @param <T> Message class
+     */
+    public static <T> void send(StreamObserver<T> responseObserver, Iterator<T> messages, Runnable onFinished) {
+        FlowControlledSender<T> sender = register(responseObserver, onFinished);
+        sender.start(messages);
+    }
+
+    /**
+     * Registers the handlers of a stream whose messages are only known
+     * later. Must be called from the service method, before it returns
+     * @param responseObserver of the server stream
+     * @param <T> Message class
+     * @return the sender, started once the messages are known
+     */
+    public static <T> FlowControlledSender<T> register(StreamObserver<T> responseObserver) {
+        return register(responseObserver, () -> {});
+    }
+
+    private static <T> FlowControlledSender<T> register(StreamObserver<T> responseObserver, Runnable onFinished) {
+        ServerCallStreamObserver<T> observer = (ServerCallStreamObserver<T>) responseObserver;
+        FlowControlledSender<T> sender = new FlowControlledSender<>(observer, onFinished);
+        observer.setOnCancelHandler(sender::cancel);
+        observer.setOnReadyHandler(sender);
+        return sender;
+    }
+
+    /**
+     * Starts sending the messages, unless the stream was cancelled meanwhile
+     * @param messages to send, built lazily
+     */
+    public synchronized void start(Iterator<T> messages) {
+        this.messages = messages;
+        run();
+    }
+
+    /**
+     * @return true if the stream was cancelled, completed or failed
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Sends messages until the transport is no longer ready.
+     * Called again by gRPC every time the transport becomes ready
+     */
+    @Override
+    public synchronized void run() {
+        // Not started yet
+        if (messages == null) return;
+        try {
+            while (!done && observer.isReady()) {
+                if (messages.hasNext()) {
+                    observer.onNext(messages.next());
+                }
+                else {
+                    finish();
+                    observer.onCompleted();
+                }
+            }
+        } catch (RuntimeException exception) {
+            finish();
+            observer.onError(Status.INTERNAL.withDescription(exception.getMessage()).asRuntimeException());
+        }
+    }
+
+    private synchronized void cancel() {
+        finish();
+    }
+
+    private void finish() {
+        if (!done) {
+            done = true;
+            onFinished.run();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package pt.tecnico.sauron.silo.grpc;
+
+/**
+ * Encoding of the gossip messages sent to a replica. The log is either sent
+ * as full operations or as a compact log, and the messages may be compressed
+ * with gzip. Written as the encoding name with an optional '+gzip' suffix
+ */
+public class GossipEncoding {
+
+    public static final GossipEncoding FULL = new GossipEncoding(false, false);
+    public static final GossipEncoding COMPACT = new GossipEncoding(true, false);
+
+    private static final String GZIP = "gzip";
+
+    private final boolean compact;
+    private final boolean gzip;
+
+    private GossipEncoding(boolean compact, boolean gzip) {
+        this.compact = compact;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Parses an encoding, such as 'full', 'compact' or 'compact+gzip'
+     * @param value to parse
+     * @return the encoding
+     * @throws IllegalArgumentException if the value is not an encoding
+     */
+    public static GossipEncoding parse(String value) {
+        String[] parts = value.trim().toLowerCase().split("\\+");
+        boolean gzip = parts.length == 2 && parts[1].equals(GZIP);
+        if (parts.length > 2 || (parts.length == 2 && !gzip)) {
+            throw new IllegalArgumentException(String.format("Unknown gossip encoding: '%s'", value));
+        }
+        switch (parts[0]) {
+            case "full":
+                return new GossipEncoding(false, gzip);
+            case "compact":
+                return new GossipEncoding(true, gzip);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown gossip encoding: '%s'", value));
+        }
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * @return name of the compressor to use or null for none
+     */
+    String getCompressor() {
+        return gzip ? GZIP : null;
+    }
+
+    @Override
+    public String toString() {
+        return (compact ? "compact" : "full") + (gzip ? "+" + GZIP : "");
+    }
+}
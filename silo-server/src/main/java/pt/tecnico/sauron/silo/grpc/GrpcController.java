@@ -9,8 +9,10 @@ import pt.tecnico.sauron.silo.utils.CheckUtils;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static pt.tecnico.sauron.silo.grpc.GrpcFields.*;
 
@@ -20,6 +22,11 @@ import static pt.tecnico.sauron.silo.grpc.GrpcFields.*;
  */
 public class GrpcController {
 
+    /* Max number of observations in each chunk of a stream */
+    private static final int OBSERVATION_CHUNK_SIZE = 64;
+    /* Max number of observations in each chunk of a state transfer */
+    private static final int STATE_CHUNK_SIZE = 1024;
+
     private ReplicaService replicaService;
 
     public GrpcController(ReplicaService replicaService) {
@@ -28,6 +35,17 @@ public class GrpcController {
 
     /* Query operations */
 
+    /**
+     * Runs a query once the replica applied the updates of its prev, or once the wait expired
+     * @param prev timestamp of the query
+     * @param maxWait milliseconds the query may wait, 0 to run it at once
+     * @param query to run
+     */
+    public void whenApplied(VectorTS prev, int maxWait, Runnable query) {
+        // The wait is unsigned in the request
+        replicaService.whenApplied(new VectorTimestamp(prev.getTimestampList()), Integer.toUnsignedLong(maxWait), query);
+    }
+
     /**
      * Process cam info request
      * @param request to process
@@ -139,18 +157,19 @@ public class GrpcController {
         // Parse request
         ObjectInfo objectInfo = CheckUtils.notNull(request.getObjectInfo(), OBJECT_INFO);
         ObjectType objectType = CheckUtils.notNull(objectInfo.getType(), OBJECT_TYPE);
-        List<? extends SavedObservation<?>> observations;
+        TraceRange range = buildTraceRange(request);
+        TracePage<? extends SavedObservation<?>> page;
         VectorTS ts;
         // Execute request and build response params
         switch (objectType) {
             case PERSON:
-                QueryResponse<List<Person>> responsePerson = replicaService.tracePerson(objectInfo.getNumericId());
-                observations = responsePerson.getData();
+                QueryResponse<TracePage<Person>> responsePerson = replicaService.tracePerson(objectInfo.getNumericId(), range);
+                page = responsePerson.getData();
                 ts = GrpcMessageBuilder.buildVectorTimestamp(responsePerson.getNewTS().toList());
                 break;
             case CAR:
-                QueryResponse<List<Car>> responseCar = replicaService.traceCar(objectInfo.getAlphanumericId());
-                observations = responseCar.getData();
+                QueryResponse<TracePage<Car>> responseCar = replicaService.traceCar(objectInfo.getAlphanumericId(), range);
+                page = responseCar.getData();
                 ts = GrpcMessageBuilder.buildVectorTimestamp(responseCar.getNewTS().toList());
                 break;
             case UNKNOWN_TYPE:
@@ -158,10 +177,79 @@ public class GrpcController {
                 throw new UnknownObjectTypeException(objectType);
         }
         // Build response
-        List<ObservationInfo> observationInfos = observations.stream()
+        List<ObservationInfo> observationInfos = page.getObservations().stream()
                 .map(GrpcMessageBuilder::buildObservationInfo)
                 .collect(Collectors.toList());
-        return GrpcMessageBuilder.buildSpotterTraceResponse(observationInfos, ts);
+        return page.getNext()
+                .map(cursor -> GrpcMessageBuilder.buildTraceCursor(cursor.getTimestamp(), cursor.getSkip()))
+                .map(next -> GrpcMessageBuilder.buildSpotterTraceResponse(observationInfos, ts, next))
+                .orElseGet(() -> GrpcMessageBuilder.buildSpotterTraceResponse(observationInfos, ts));
+    }
+
+    /**
+     * Process spotter track match stream request
+     * @param request to process
+     * @return the chunks of the response, built as they are iterated
+     * @throws InvalidPersonIdRegexException if the given person id regex is invalid
+     * @throws InvalidCarPlateRegexException if the given car plate regex is invalid
+     * @throws UnknownObjectTypeException if the object type is unknown
+     * @throws MissingRequiredFieldException if a field is missing
+     */
+    public Iterator<ObservationChunk> handleSpotterTrackMatchStream(SpotterTrackMatchRequest request)
+            throws InvalidPersonIdRegexException, InvalidCarPlateRegexException,
+            UnknownObjectTypeException, MissingRequiredFieldException {
+        // Parse request
+        ObjectType objectType = CheckUtils.notNull(request.getObjectType(), OBJECT_TYPE);
+        // Execute request
+        QueryResponse<? extends Stream<? extends SavedObservation<?>>> response;
+        switch (objectType) {
+            case PERSON:
+                response = replicaService.streamPersonMatch(request.getRegex());
+                break;
+            case CAR:
+                response = replicaService.streamCarMatch(request.getRegex());
+                break;
+            case UNKNOWN_TYPE:
+            default:
+                throw new UnknownObjectTypeException(objectType);
+        }
+        // Build response chunks
+        VectorTS ts = GrpcMessageBuilder.buildVectorTimestamp(response.getNewTS().toList());
+        return new ObservationChunkIterator(response.getData().iterator(), ts, OBSERVATION_CHUNK_SIZE);
+    }
+
+    /**
+     * Process spotter trace stream request
+     * @param request to process
+     * @return the chunks of the response, built as they are iterated
+     * @throws InvalidPersonIdException if the given person id is invalid
+     * @throws InvalidCarPlateException if the given car plate is invalid
+     * @throws UnknownObjectTypeException if the object type is unknown
+     * @throws MissingRequiredFieldException if a field is missing
+     */
+    public Iterator<ObservationChunk> handleSpotterTraceStream(SpotterTraceRequest request)
+            throws InvalidPersonIdException, InvalidCarPlateException,
+            UnknownObjectTypeException, MissingRequiredFieldException {
+        // Parse request
+        ObjectInfo objectInfo = CheckUtils.notNull(request.getObjectInfo(), OBJECT_INFO);
+        ObjectType objectType = CheckUtils.notNull(objectInfo.getType(), OBJECT_TYPE);
+        TraceRange range = buildTraceRange(request);
+        // Execute request
+        QueryResponse<? extends Stream<? extends SavedObservation<?>>> response;
+        switch (objectType) {
+            case PERSON:
+                response = replicaService.streamPersonTrace(objectInfo.getNumericId(), range);
+                break;
+            case CAR:
+                response = replicaService.streamCarTrace(objectInfo.getAlphanumericId(), range);
+                break;
+            case UNKNOWN_TYPE:
+            default:
+                throw new UnknownObjectTypeException(objectType);
+        }
+        // Build response chunks
+        VectorTS ts = GrpcMessageBuilder.buildVectorTimestamp(response.getNewTS().toList());
+        return new ObservationChunkIterator(response.getData().iterator(), ts, OBSERVATION_CHUNK_SIZE);
     }
 
     /* Update Operations */
@@ -173,9 +261,11 @@ public class GrpcController {
      * @throws CameraAlreadyExistsException if the camera name is duplicate
      * @throws CameraInvalidArgumentsException if camera has invalid arguments
      * @throws MissingRequiredFieldException if a required field is missing
+     * @throws ReplicaOverloadedException if the replica refuses new updates for now
      */
     public CamJoinResponse handleCamJoin(CamJoinRequest request)
-            throws CameraAlreadyExistsException, CameraInvalidArgumentsException, MissingRequiredFieldException {
+            throws CameraAlreadyExistsException, CameraInvalidArgumentsException, MissingRequiredFieldException,
+            ReplicaOverloadedException {
         // Parse request
         VectorTimestamp prev = new VectorTimestamp(request.getPrev().getTimestampList());
         CamInfo camInfo = CheckUtils.notNull(request.getInfo(), CAM_INFO);
@@ -197,10 +287,12 @@ public class GrpcController {
      * @throws CameraNotFoundException if no camera with the given name exists
      * @throws UnknownObjectTypeException if the given object type is not known
      * @throws MissingRequiredFieldException if a required field is missing
+     * @throws ReplicaOverloadedException if the replica refuses new updates for now
      */
     public CamReportResponse handleCamReport(CamReportRequest request)
             throws InvalidPersonIdException, InvalidCarPlateException, CameraInvalidArgumentsException,
-            CameraNotFoundException, UnknownObjectTypeException, MissingRequiredFieldException {
+            CameraNotFoundException, UnknownObjectTypeException, MissingRequiredFieldException,
+            ReplicaOverloadedException {
         // Parse request
         VectorTimestamp prev = new VectorTimestamp(request.getPrev().getTimestampList());
         String name = CheckUtils.notNull(request.getCamName(), CAM_NAME);
@@ -215,6 +307,30 @@ public class GrpcController {
         return GrpcMessageBuilder.buildCamReportResponse(ts);
     }
 
+    /**
+     * Process a frame of a cam report stream. A frame without prev
+     * happens after the previous frame of the same stream
+     * @param request frame to process
+     * @param lastUpdateID update id of the previous frame or null if it is the first
+     * @return response to send if no error occurred
+     * @throws CameraNotFoundException if the camera is not found
+     * @throws CameraInvalidArgumentsException if camera has invalid arguments
+     * @throws InvalidPersonIdException if a person id is invalid
+     * @throws InvalidCarPlateException if a car plate is invalid
+     * @throws UnknownObjectTypeException if an object type is unknown
+     * @throws MissingRequiredFieldException if a field is missing
+     * @throws ReplicaOverloadedException if the replica refuses new updates for now
+     */
+    public CamReportResponse handleCamReportFrame(CamReportRequest request, VectorTS lastUpdateID)
+            throws InvalidPersonIdException, InvalidCarPlateException, CameraInvalidArgumentsException,
+            CameraNotFoundException, UnknownObjectTypeException, MissingRequiredFieldException,
+            ReplicaOverloadedException {
+        if (request.getPrev().getTimestampCount() == 0 && lastUpdateID != null) {
+            request = request.toBuilder().setPrev(lastUpdateID).build();
+        }
+        return handleCamReport(request);
+    }
+
     /**
      * Process clear request
      * @param request to process
@@ -260,6 +376,22 @@ public class GrpcController {
         return GrpcMessageBuilder.buildInitResponse(ts);
     }
 
+    /**
+     * Process ping request
+     * @param request to process
+     * @return response to send if no error has occurred
+     * @throws MissingRequiredFieldException if the message is missing
+     */
+    public PingResponse handlePing(PingRequest request) throws MissingRequiredFieldException {
+        // Parse request
+        String message = CheckUtils.notNullOrBlank(request.getMessage(), "Message");
+        // Execute request
+        VectorTimestamp value = replicaService.getValueTimestamp();
+        // Build response
+        VectorTS ts = GrpcMessageBuilder.buildVectorTimestamp(value.toList());
+        return GrpcMessageBuilder.buildPingResponse("Hello " + message + "!", ts);
+    }
+
     /**
      * Process gossip request
      * @param request to process
@@ -272,12 +404,25 @@ public class GrpcController {
         // Parse request
         VectorTimestamp timestamp = new VectorTimestamp(request.getTs().getTimestampList());
         int replicaInstance = request.getReplicaInstance();
-        List<Operation> log = request.getLogList();
-        List<Update> updateLog = buildUpdateLog(log);
+        List<Update> updateLog = request.hasCompactLog()
+                ? buildUpdateLog(request.getCompactLog(), timestamp)
+                : buildUpdateLog(request.getLogList());
         // Execute request
-        replicaService.gossip(updateLog, timestamp, replicaInstance);
+        VectorTimestamp acknowledged = replicaService.gossip(updateLog, timestamp, replicaInstance);
         // Build response
-        return GrpcMessageBuilder.buildGossipResponse();
+        return GrpcMessageBuilder.buildGossipResponse(GrpcMessageBuilder.buildVectorTimestamp(acknowledged.toList()));
+    }
+
+    /**
+     * Process state transfer request
+     * @param request to process
+     * @return chunks of the replica state, to be closed once sent
+     */
+    public StateChunkIterator handleStateTransfer(StateTransferRequest request) {
+        // Execute request
+        ReplicaSnapshot snapshot = replicaService.transferState(request.getReplicaInstance());
+        // Build response
+        return new StateChunkIterator(snapshot, STATE_CHUNK_SIZE);
     }
 
     /* Auxiliary functions to parse requests */
@@ -292,6 +437,69 @@ public class GrpcController {
         return updates;
     }
 
+    private List<Update> buildUpdateLog(CompactLog log, VectorTimestamp timestamp)
+            throws MissingRequiredFieldException {
+        List<String> strings = log.getStringsList();
+        List<Long> lastTimestamp = timestamp.toList();
+        long lastSeconds = 0;
+        List<Update> updates = new ArrayList<>();
+        for (CompactOperation operation : log.getOperationsList()) {
+            if (operation.getTsCount() != lastTimestamp.size() || operation.getPrevCount() != lastTimestamp.size()) {
+                throw new MissingRequiredFieldException(OPERATION_TIMESTAMP);
+            }
+            // Timestamps are differences to the previous operation
+            List<Long> ts = new ArrayList<>(lastTimestamp.size());
+            List<Long> prev = new ArrayList<>(lastTimestamp.size());
+            for (int i = 0; i < lastTimestamp.size(); i++) {
+                ts.add(lastTimestamp.get(i) + operation.getTs(i));
+                prev.add(ts.get(i) + operation.getPrev(i));
+            }
+            lastTimestamp = ts;
+            int replicaInstance = operation.getReplicaInstance();
+            VectorTimestamp updateTimestamp = new VectorTimestamp(ts);
+            VectorTimestamp updatePrev = new VectorTimestamp(prev);
+            switch (operation.getOperation()) {
+                case CAM_JOIN:
+                    updates.add(new CamJoin(stringAt(strings, operation.getCamera(), CAM_NAME),
+                            operation.getCoordinates().getLatitude(), operation.getCoordinates().getLongitude(),
+                            replicaInstance, updateTimestamp, updatePrev));
+                    break;
+                case CAM_REPORT:
+                    lastSeconds += operation.getSeconds();
+                    List<String> carPlates = new ArrayList<>();
+                    for (int plate : operation.getPlatesList()) {
+                        carPlates.add(stringAt(strings, plate, CAR_PLATE));
+                    }
+                    Timestamp reportTimestamp = Timestamp.newBuilder()
+                            .setSeconds(lastSeconds).setNanos(operation.getNanos()).build();
+                    updates.add(new CamReport(stringAt(strings, operation.getCamera(), CAM_NAME),
+                            new ArrayList<>(operation.getPeopleList()), carPlates,
+                            GrpcMessageBuilder.buildInstant(reportTimestamp),
+                            replicaInstance, updateTimestamp, updatePrev));
+                    break;
+                case CLEAR:
+                    updates.add(new Clear(replicaInstance, updateTimestamp, updatePrev));
+                    break;
+                case INIT:
+                    Operation init = Operation.newBuilder().setInitData(operation.getInitData()).build();
+                    updates.add(buildInitUpdate(init, replicaInstance, updateTimestamp, updatePrev));
+                    break;
+                case UNKNOWN_OP:
+                default:
+                    break;
+            }
+        }
+        return updates;
+    }
+
+    private String stringAt(List<String> strings, int index, String fieldName)
+            throws MissingRequiredFieldException {
+        if (index < 0 || index >= strings.size()) {
+            throw new MissingRequiredFieldException(fieldName);
+        }
+        return strings.get(index);
+    }
+
     private Update buildUpdate(Operation operation)
             throws MissingRequiredFieldException, UnknownObjectTypeException {
         VectorTimestamp prev = new VectorTimestamp(operation.getPrev().getTimestampList());
@@ -334,7 +542,7 @@ public class GrpcController {
         String name = camReportData.getName();
         List<Observation> observations = camReportData.getObservationsList();
         Timestamp observationTimestamp = observations.get(0).getTimestamp();
-        Instant instant = buildInstant(observationTimestamp);
+        Instant instant = GrpcMessageBuilder.buildInstant(observationTimestamp);
         List<ObjectInfo> objectInfos = observations.stream()
                 .map(Observation::getObjectInfo).collect(Collectors.toList());
         List<Long> peopleIds = new ArrayList<>();
@@ -405,13 +613,13 @@ public class GrpcController {
 
     private Person buildPeople(ObservationInfo observationInfo) {
         return new Person(observationInfo.getObservation().getObjectInfo().getNumericId(),
-                buildInstant(observationInfo.getObservation().getTimestamp()),
+                GrpcMessageBuilder.buildInstant(observationInfo.getObservation().getTimestamp()),
                 buildCamera(observationInfo.getCamInfo()));
     }
 
     private Car buildCar(ObservationInfo observationInfo) {
         return new Car(observationInfo.getObservation().getObjectInfo().getAlphanumericId(),
-                buildInstant(observationInfo.getObservation().getTimestamp()),
+                GrpcMessageBuilder.buildInstant(observationInfo.getObservation().getTimestamp()),
                 buildCamera(observationInfo.getCamInfo()));
     }
 
@@ -421,8 +629,19 @@ public class GrpcController {
                 camInfo.getCoordinates().getLongitude());
     }
 
-    private Instant buildInstant(Timestamp timestamp) {
-        return Instant.ofEpochSecond(timestamp.getSeconds());
+    private TraceRange buildTraceRange(SpotterTraceRequest request) {
+        Instant since = request.hasSince() ? GrpcMessageBuilder.buildInstant(request.getSince()) : null;
+        Instant until = request.hasUntil() ? GrpcMessageBuilder.buildInstant(request.getUntil()) : null;
+        // Unsigned limits above the int range are the same as no limit
+        int limit = request.getLimit() < 0 ? 0 : request.getLimit();
+        // Domain cursor has the same name as the message in this package
+        pt.tecnico.sauron.silo.domain.TraceCursor cursor = null;
+        if (request.hasCursor()) {
+            int skip = request.getCursor().getSkip() < 0 ? Integer.MAX_VALUE : request.getCursor().getSkip();
+            cursor = new pt.tecnico.sauron.silo.domain.TraceCursor(
+                    GrpcMessageBuilder.buildInstant(request.getCursor().getTimestamp()), skip);
+        }
+        return new TraceRange(since, until, limit, cursor);
     }
 
     /* Auxiliary methods for null checking */
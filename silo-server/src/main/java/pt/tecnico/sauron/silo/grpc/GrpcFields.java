@@ -25,4 +25,6 @@ public class GrpcFields {
     static final String OBSERVATION = "Observation";
     static final String OBSERVATION_LIST = "Observations List";
     static final String OBSERVATION_TIMESTAMP = "Observation Timestamp";
+
+    static final String OPERATION_TIMESTAMP = "Operation Timestamp";
 }
@@ -1,81 +1,335 @@
 package pt.tecnico.sauron.silo.grpc;
 
+import com.google.protobuf.ByteString;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.Car;
+import pt.tecnico.sauron.silo.domain.Person;
+import pt.tecnico.sauron.silo.persistence.UpdateCodec;
 import pt.tecnico.sauron.silo.replication.*;
 import pt.tecnico.sauron.silo.service.GossipSender;
 import pt.ulisboa.tecnico.sdis.zk.ZKNaming;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 import pt.ulisboa.tecnico.sdis.zk.ZKRecord;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 /**
- * Class to send gossip messages to other replicas
+ * Class to send gossip messages to other replicas. A channel to each
+ * replica is kept between rounds, the replicas are looked up again
+ * in zoo keeper periodically or once a replica can not be reached
  */
 public class GrpcGossipSender implements GossipSender {
 
+    // Milliseconds a replica has to send its whole state
+    private static final long TRANSFER_DEADLINE = 60000;
+
     private final ZKNaming zkNaming;
     // Base path to search other replicas in zoo keeper
     private final String replicasBasePath;
     // This replica path in order not to send to itself
     private final String replicaPath;
     private final int replicaInstance;
+    // Milliseconds after which the replicas are looked up again
+    private final long refreshInterval;
+    // Milliseconds each replica has to answer a gossip message
+    private final long deadline;
+    // Encoding of the messages to each replica, default for the ones not in the map
+    private final GossipEncoding encoding;
+    private final Map<Integer, GossipEncoding> peerEncodings;
+
+    // Other replicas by instance, guarded by this
+    private final Map<Integer, Peer> peers = new HashMap<>();
+    private long lastRefresh;
+    private boolean stale = true;
 
     public GrpcGossipSender(String zooHost, String zooPort,
-                            String replicasBasePath, int replicaInstance) {
+                            String replicasBasePath, int replicaInstance, long refreshInterval, long deadline,
+                            GossipEncoding encoding, Map<Integer, GossipEncoding> peerEncodings) {
         this.zkNaming = new ZKNaming(zooHost, zooPort);
         this.replicasBasePath = replicasBasePath;
         this.replicaInstance = replicaInstance;
         this.replicaPath = replicasBasePath + "/" + replicaInstance;
+        this.refreshInterval = refreshInterval;
+        this.deadline = deadline;
+        this.encoding = encoding;
+        this.peerEncodings = peerEncodings;
     }
 
     @Override
-    public void send(List<Update> possibleUpdatesToSend, VectorTimestamp replicaTimestamp, VectorTimestamp[] tableTS) {
-        String targetPath;
+    public CompletableFuture<Boolean> send(GossipLog gossipLog) {
+        // Sent to every replica at once, a slow replica does not delay the others
+        CompletableFuture<?>[] sent = getPeers().stream()
+                .map(peer -> sendSingleReplica(gossipLog, peer))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(sent).thenApply(ignored -> Arrays.stream(sent)
+                .anyMatch(partial -> (Boolean) partial.join()));
+    }
+
+    /* Completed with true if the replica received a batch and more updates are waiting */
+    private CompletableFuture<Boolean> sendSingleReplica(GossipLog gossipLog, Peer peer) {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        // Never two batches at once to the same replica, they would have the same updates
+        if (!peer.sending.compareAndSet(false, true)) {
+            System.out.println(String.format("INFO: Skipping replica %d, last gossip not finished", peer.instance));
+            done.complete(false);
+            return done;
+        }
+        // Only the updates added since the last acknowledged batch
+        GossipLog.Batch batch;
+        try {
+            batch = gossipLog.nextBatch(peer.instance);
+        } catch (IllegalArgumentException exception) {
+            System.out.println(String.format("WARNING: Ignoring '%s', not a known replica", peer.path));
+            peer.sending.set(false);
+            done.complete(false);
+            return done;
+        } catch (UncheckedIOException exception) {
+            System.out.println(String.format("WARNING: Unable to read the spilled updates for replica %d: %s",
+                    peer.instance, exception.getMessage()));
+            peer.sending.set(false);
+            done.complete(false);
+            return done;
+        }
+        List<Update> updatesToSend = batch.getUpdates();
+        GossipRequest request = buildGossipRequest(batch, peer.encoding);
+        System.out.println(String.format("INFO: Sending %d updates to replica %d in %d bytes (%s)",
+                updatesToSend.size(), peer.instance, request.getSerializedSize(), peer.encoding));
+        long start = System.nanoTime();
+        // Execute request, the response has the timestamp of the target replica
+        peer.asyncStub.withDeadlineAfter(deadline, TimeUnit.MILLISECONDS).gossip(request, new StreamObserver<>() {
+            @Override
+            public void onNext(GossipResponse response) {
+                gossipLog.acknowledge(batch, new VectorTimestamp(response.getTs().getTimestampList()));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                peer.sending.set(false);
+                System.out.println(String.format("WARNING: Unable to send logs to '%s' at '%s': %s",
+                        peer.path, peer.target, Status.fromThrowable(throwable).getCode()));
+                markStale();
+                done.complete(false);
+            }
+
+            @Override
+            public void onCompleted() {
+                peer.sending.set(false);
+                System.out.println(String.format("INFO: Replica %d received %d updates in %d ms", peer.instance,
+                        updatesToSend.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                done.complete(!batch.isComplete());
+            }
+        });
+        return done;
+    }
+
+    private GossipRequest buildGossipRequest(GossipLog.Batch batch, GossipEncoding encoding) {
+        VectorTS ts = GrpcMessageBuilder.buildVectorTimestamp(batch.getTimestamp().toList());
+        if (encoding.isCompact()) {
+            CompactLog log = GrpcMessageBuilder.buildCompactLog(batch.getUpdates(), batch.getTimestamp());
+            return GrpcMessageBuilder.buildGossipRequest(log, ts, replicaInstance);
+        }
+        List<Operation> log = batch.getUpdates().stream()
+                .map(update -> GrpcMessageBuilder.buildOperation(update, replicaInstance))
+                .collect(Collectors.toList());
+        return GrpcMessageBuilder.buildGossipRequest(log, ts, replicaInstance);
+    }
+
+    @Override
+    public Optional<ReplicaSnapshot> fetchState() {
+        // Transfers are rare, make sure every replica is known
+        markStale();
+        for (Peer peer : getPeers()) {
+            Optional<ReplicaSnapshot> state = fetchSingleReplica(peer);
+            if (state.isPresent()) {
+                return state;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Optional<ReplicaSnapshot> fetchSingleReplica(Peer peer) {
+        // Cancelled once done, a transfer given up early does not keep streaming
+        Context.CancellableContext context = Context.current().withCancellation();
+        Context previous = context.attach();
+        try {
+            System.out.println(String.format("INFO: Fetching state from '%s' at '%s'", peer.path, peer.target));
+            Iterator<StateChunk> chunks = peer.stub.withDeadlineAfter(TRANSFER_DEADLINE, TimeUnit.MILLISECONDS)
+                    .stateTransfer(GrpcMessageBuilder.buildStateTransferRequest(replicaInstance));
+            // First chunk is always sent and has the timestamps
+            if (!chunks.hasNext()) {
+                throw new IOException("No state chunks");
+            }
+            StateChunk first = chunks.next();
+            List<Camera> cameras = new ArrayList<>();
+            List<Person> people = new ArrayList<>();
+            List<Car> cars = new ArrayList<>();
+            addChunk(first, cameras, people, cars);
+            List<Update> pending = new ArrayList<>();
+            for (ByteString bytes : first.getPendingList()) {
+                pending.add(UpdateCodec.decode(bytes.toByteArray()));
+            }
+            // Cameras in the first chunk are the ones in the repository
+            List<Camera> repositoryCameras = new ArrayList<>(cameras.subList(0, first.getCamerasCount()));
+            while (chunks.hasNext()) {
+                addChunk(chunks.next(), cameras, people, cars);
+            }
+            return Optional.of(new ReplicaSnapshot(
+                    new VectorTimestamp(first.getValueTS().getTimestampList()),
+                    new VectorTimestamp(first.getReplicaTS().getTimestampList()),
+                    new VectorTimestamp[0], pending, repositoryCameras, List.of(people), List.of(cars), () -> {}));
+        } catch (StatusRuntimeException exception) {
+            System.out.println(String.format("WARNING: Unable to fetch state from '%s' at '%s'", peer.path, peer.target));
+            markStale();
+            return Optional.empty();
+        } catch (IOException | IndexOutOfBoundsException exception) {
+            // Observations of cameras not sent as well
+            System.out.println(String.format("WARNING: Invalid state from '%s' at '%s': %s",
+                    peer.path, peer.target, exception.getMessage()));
+            return Optional.empty();
+        } finally {
+            context.detach(previous);
+            context.cancel(null);
+        }
+    }
+
+    /**
+     * Closes the channels to the other replicas
+     */
+    @Override
+    public synchronized void close() {
+        peers.values().forEach(Peer::close);
+        peers.clear();
+    }
+
+    private synchronized void markStale() {
+        stale = true;
+    }
+
+    /* Gets the other replicas, looking them up if they might have changed */
+    private synchronized List<Peer> getPeers() {
+        if (stale || System.currentTimeMillis() - lastRefresh >= refreshInterval) {
+            refreshPeers();
+        }
+        return new ArrayList<>(peers.values());
+    }
+
+    /* Opens channels to new replicas and closes the ones to replicas that left or moved */
+    private void refreshPeers() {
+        Map<Integer, ZKRecord> records = new HashMap<>();
         try {
             for (ZKRecord record : zkNaming.listRecords(replicasBasePath)) {
-                targetPath = record.getPath();
                 // Check if sending to ourselves
-                if (!replicaPath.equals(targetPath)) {
-                    sendSingleReplica(possibleUpdatesToSend, replicaTimestamp, tableTS, targetPath, record.getURI());
+                if (replicaPath.equals(record.getPath())) continue;
+                int instance = parseReplicaInstance(record.getPath());
+                if (instance < 1) {
+                    System.out.println(String.format("WARNING: Ignoring '%s', not a replica path", record.getPath()));
+                } else {
+                    records.put(instance, record);
                 }
             }
         } catch (ZKNamingException exception) {
             System.out.println("SEVERE: Unable to connect to zooKeeper: " + exception.getMessage());
             exception.printStackTrace();
+            // Keep the known replicas until zoo keeper is back
+            return;
         }
+        peers.entrySet().removeIf(entry -> {
+            ZKRecord record = records.get(entry.getKey());
+            if (record == null || !record.getURI().equals(entry.getValue().target)) {
+                entry.getValue().close();
+                return true;
+            }
+            return false;
+        });
+        records.forEach((instance, record) ->
+                peers.computeIfAbsent(instance, i -> new Peer(i, record.getPath(), record.getURI(),
+                        peerEncodings.getOrDefault(i, encoding))));
+        lastRefresh = System.currentTimeMillis();
+        stale = false;
     }
 
-    private void sendSingleReplica(List<Update> possibleUpdatesToSend, VectorTimestamp replicaTimestamp, VectorTimestamp[] tableTS, String targetPath, String target) {
-        // Build connection
-        ManagedChannel channel = ManagedChannelBuilder.forTarget(target)
-                .usePlaintext()
-                .build();
-        GossipGrpc.GossipBlockingStub stub = GossipGrpc.newBlockingStub(channel);
-        // Get target replica instance
-        int targetReplicaInstance = Character.getNumericValue(target.charAt(target.length() - 1));
-        // Get target replica timestamp
-        VectorTimestamp targetTimestamp = tableTS[targetReplicaInstance - 1];
+    /* Replica instance at the end of its path or -1 if there is none */
+    private static int parseReplicaInstance(String path) {
         try {
-            // Build request
-            VectorTS ts = GrpcMessageBuilder.buildVectorTimestamp(replicaTimestamp.toList());
-            List<Operation> updatesToSend = possibleUpdatesToSend.stream()
-                    // Only send update if it does not happen before target timestamp
-                    // Don't send updates the target replica already has
-                    .filter(update -> !update.getTimestamp().happensBefore(targetTimestamp))
-                    .map(update -> GrpcMessageBuilder.buildOperation(update, replicaInstance))
-                    .collect(Collectors.toList());
-            System.out.println(String.format("INFO: Sending %d updates to replica %d ", updatesToSend.size(), targetReplicaInstance));
-            GossipRequest request = GrpcMessageBuilder.buildGossipRequest(updatesToSend, ts, replicaInstance);
-            // Execute request, no need to check response (empty)
-            stub.gossip(request);
-        } catch (StatusRuntimeException exception) {
-            System.out.println(String.format("WARNING: Unable to send logs to '%s' at '%s'", targetPath, target));
+            return Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+        } catch (NumberFormatException exception) {
+            return -1;
         }
-        channel.shutdown();
     }
 
+    private void addChunk(StateChunk chunk, List<Camera> cameras, List<Person> people, List<Car> cars) {
+        for (CamInfo camInfo : chunk.getCamerasList()) {
+            cameras.add(new Camera(camInfo.getName(),
+                    camInfo.getCoordinates().getLatitude(),
+                    camInfo.getCoordinates().getLongitude()));
+        }
+        for (StateObservation observation : chunk.getObservationsList()) {
+            Instant timestamp = GrpcMessageBuilder.buildInstant(observation.getTimestamp());
+            Camera camera = cameras.get(observation.getCamera());
+            ObjectInfo objectInfo = observation.getObjectInfo();
+            switch (objectInfo.getType()) {
+                case PERSON:
+                    people.add(new Person(objectInfo.getNumericId(), timestamp, camera));
+                    break;
+                case CAR:
+                    cars.add(new Car(objectInfo.getAlphanumericId(), timestamp, camera));
+                    break;
+                default:
+                    System.out.println(String.format("WARNING: Ignoring transferred observation of type '%s'",
+                            objectInfo.getType()));
+            }
+        }
+    }
+
+    /* Channel to another replica, kept between gossip rounds */
+    private static class Peer {
+
+        private final int instance;
+        private final String path;
+        private final String target;
+        private final GossipEncoding encoding;
+        private final ManagedChannel channel;
+        private final GossipGrpc.GossipBlockingStub stub;
+        private final GossipGrpc.GossipStub asyncStub;
+        // Set while a gossip message to the replica has no answer
+        private final AtomicBoolean sending = new AtomicBoolean(false);
+
+        private Peer(int instance, String path, String target, GossipEncoding encoding) {
+            this.instance = instance;
+            this.path = path;
+            this.target = target;
+            this.encoding = encoding;
+            this.channel = ManagedChannelBuilder.forTarget(target)
+                    .usePlaintext()
+                    .build();
+            this.stub = GossipGrpc.newBlockingStub(channel);
+            GossipGrpc.GossipStub gossipStub = GossipGrpc.newStub(channel);
+            this.asyncStub = encoding.isGzip() ? gossipStub.withCompression(encoding.getCompressor()) : gossipStub;
+        }
+
+        private void close() {
+            channel.shutdown();
+            try {
+                if (!channel.awaitTermination(1, TimeUnit.SECONDS)) {
+                    channel.shutdownNow();
+                }
+            } catch (InterruptedException exception) {
+                channel.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
@@ -9,217 +9,175 @@ import pt.tecnico.sauron.silo.domain.Person;
 import pt.tecnico.sauron.silo.replication.*;
 
 import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * Builder for grpc messages
- * Static methods only to be used whenever a message needs to be constructed
+ * Static methods only to be used whenever a message needs to be constructed.
+ * Every call uses its own protobuf builder so that messages can be built
+ * concurrently by the calls and streams being served
  */
 public class GrpcMessageBuilder {
 
-    /* Builders for Gossip Service */
-
-    private static final GossipRequest.Builder gossipRequestBuilder
-            = GossipRequest.newBuilder();
-
-    private static final GossipResponse.Builder gossipResponseBuilder
-            = GossipResponse.newBuilder();
-
-    private static final Operation.Builder operationBuilder
-            = Operation.newBuilder();
-
-    /* Builders for Silo Service */
-
-    private static final CamJoinData.Builder camJoinDataBuilder
-            = CamJoinData.newBuilder();
-
-    private static final CamJoinResponse.Builder camJoinResponseBuilder
-            = CamJoinResponse.newBuilder();
-
-    private static final CamInfoResponse.Builder camInfoResponseBuilder
-            = CamInfoResponse.newBuilder();
-
-    private static final CamReportData.Builder camReportDataBuilder
-            = CamReportData.newBuilder();
-
-    private static final CamReportResponse.Builder camReportResponseBuilder
-            = CamReportResponse.newBuilder();
-
-    private static final SpotterTrackResponse.Builder spotterTrackResponseBuilder
-            = SpotterTrackResponse.newBuilder();
-
-    private static final SpotterTrackMatchResponse.Builder spotterTrackMatchResponseBuilder
-            = SpotterTrackMatchResponse.newBuilder();
-
-    private static final SpotterTraceResponse.Builder spotterTraceResponseBuilder
-            = SpotterTraceResponse.newBuilder();
-
-    private static final PingResponse.Builder pingResponseBuilder
-            = PingResponse.newBuilder();
-
-    private static final ClearResponse.Builder clearResponseBuilder
-            = ClearResponse.newBuilder();
-
-    private static final InitData.Builder initDataBuilder
-            = InitData.newBuilder();
-
-    private static final InitResponse.Builder initResponseBuilder
-            = InitResponse.newBuilder();
-
-    private static final CamInfo.Builder camInfoBuilder
-            = CamInfo.newBuilder();
-
-    private static final Coordinates.Builder coordinatesBuilder
-            = Coordinates.newBuilder();
-
-    private static final ObservationInfo.Builder observationInfoBuilder
-            = ObservationInfo.newBuilder();
-
-    private static final Observation.Builder observationBuilder
-            = Observation.newBuilder();
-
-    private static final ObjectInfo.Builder objectInfoBuilder
-            = ObjectInfo.newBuilder();
-
-    private static final Timestamp.Builder timestampBuilder
-            = Timestamp.newBuilder();
-
-    private static final VectorTS.Builder vectorTimestampBuilder
-            = VectorTS.newBuilder();
-
-    /* Aux classes */
-
-    private static final AuxObservationInfoBuilder auxObservationInfoBuilder
-            = new AuxObservationInfoBuilder();
-
-    private static final AuxOperationBuilder auxOperationBuilder
-            = new AuxOperationBuilder();
-
     private GrpcMessageBuilder() {}
 
     /* Gossip Responses */
 
     public static GossipRequest buildGossipRequest(List<Operation> log, VectorTS ts, int replicaInstance) {
-        return gossipRequestBuilder.clear().addAllLog(log).setTs(ts).setReplicaInstance(replicaInstance).build();
+        return GossipRequest.newBuilder().addAllLog(log).setTs(ts).setReplicaInstance(replicaInstance).build();
+    }
+
+    public static GossipRequest buildGossipRequest(CompactLog log, VectorTS ts, int replicaInstance) {
+        return GossipRequest.newBuilder().setCompactLog(log).setTs(ts).setReplicaInstance(replicaInstance).build();
     }
 
-    public static GossipResponse buildGossipResponse() {
-        return gossipResponseBuilder.clear().build();
+    /**
+     * Builds the compact encoding of a log
+     * @param updates of the log
+     * @param timestamp of the gossip request, the timestamp of the first update is sent as a difference to it
+     * @return the compact log
+     */
+    public static CompactLog buildCompactLog(List<Update> updates, VectorTimestamp timestamp) {
+        return new AuxCompactLogBuilder(timestamp).buildCompactLog(updates);
+    }
+
+    public static GossipResponse buildGossipResponse(VectorTS ts) {
+        return GossipResponse.newBuilder().setTs(ts).build();
     }
 
     /* Update Responses */
 
     public static CamJoinResponse buildCamJoinResponse(VectorTS updateId) {
-        return camJoinResponseBuilder.clear().setUpdateID(updateId).build();
+        return CamJoinResponse.newBuilder().setUpdateID(updateId).build();
     }
 
     public static CamReportResponse buildCamReportResponse(VectorTS updateId) {
-        return camReportResponseBuilder.clear().setUpdateID(updateId).build();
+        return CamReportResponse.newBuilder().setUpdateID(updateId).build();
+    }
+
+    public static CamReportStreamResponse buildCamReportStreamResponse(VectorTS updateId, long acknowledged) {
+        return CamReportStreamResponse.newBuilder().setUpdateID(updateId).setAcknowledged(acknowledged).build();
     }
 
     public static ClearResponse buildClearResponse(VectorTS updateId) {
-        return clearResponseBuilder.clear().setUpdateID(updateId).build();
+        return ClearResponse.newBuilder().setUpdateID(updateId).build();
     }
 
     public static InitResponse buildInitResponse(VectorTS updateId) {
-        return initResponseBuilder.clear().setUpdateID(updateId).build();
+        return InitResponse.newBuilder().setUpdateID(updateId).build();
     }
 
     /* Query Responses */
 
     public static CamInfoResponse buildCamInfoResponse(Coordinates coordinates, VectorTS newTS) {
-        return camInfoResponseBuilder.clear().setCoordinates(coordinates).setNew(newTS).build();
+        return CamInfoResponse.newBuilder().setCoordinates(coordinates).setNew(newTS).build();
     }
 
     public static SpotterTrackResponse buildSpotterTrackResponse(ObservationInfo observationInfo, VectorTS newTS) {
-        return spotterTrackResponseBuilder.clear().setObservationInfo(observationInfo).setNew(newTS).build();
+        return SpotterTrackResponse.newBuilder().setObservationInfo(observationInfo).setNew(newTS).build();
     }
 
     public static SpotterTrackMatchResponse buildSpotterTrackMatchResponse(List<ObservationInfo> observationInfos, VectorTS newTS) {
-        return spotterTrackMatchResponseBuilder.clear().addAllObservationInfos(observationInfos).setNew(newTS).build();
+        return SpotterTrackMatchResponse.newBuilder().addAllObservationInfos(observationInfos).setNew(newTS).build();
     }
 
     public static SpotterTraceResponse buildSpotterTraceResponse(List<ObservationInfo> observationInfos, VectorTS newTS) {
-        return spotterTraceResponseBuilder.clear().addAllObservationInfos(observationInfos).setNew(newTS).build();
+        return SpotterTraceResponse.newBuilder().addAllObservationInfos(observationInfos).setNew(newTS).build();
+    }
+
+    public static SpotterTraceResponse buildSpotterTraceResponse(List<ObservationInfo> observationInfos, VectorTS newTS,
+                                                                 TraceCursor next) {
+        return SpotterTraceResponse.newBuilder().addAllObservationInfos(observationInfos).setNew(newTS)
+                .setNext(next).build();
+    }
+
+    public static ObservationChunk buildObservationChunk(List<ObservationInfo> observationInfos, VectorTS newTS) {
+        return ObservationChunk.newBuilder().addAllObservationInfos(observationInfos).setNew(newTS).build();
     }
 
     /* Ping Response */
 
-    public static PingResponse buildPingResponse(String message) {
-        return pingResponseBuilder.clear().setMessage(message).build();
+    public static PingResponse buildPingResponse(String message, VectorTS value) {
+        return PingResponse.newBuilder().setMessage(message).setValue(value).build();
     }
 
     /* Build Sub messages */
 
     public static Operation buildOperation(Op operation, CamJoinData camInfoData,
                                            VectorTS prev, VectorTS ts, int replicaInstance) {
-        return operationBuilder.clear().setOperation(operation).setCamJoinData(camInfoData)
+        return Operation.newBuilder().setOperation(operation).setCamJoinData(camInfoData)
                 .setPrev(prev).setTs(ts).setReplicaInstance(replicaInstance).build();
     }
 
     public static Operation buildOperation(Op operation, CamReportData camReportData,
                                            VectorTS prev, VectorTS ts, int replicaInstance) {
-        return operationBuilder.clear().setOperation(operation).setCamReportData(camReportData)
+        return Operation.newBuilder().setOperation(operation).setCamReportData(camReportData)
                 .setPrev(prev).setTs(ts).setReplicaInstance(replicaInstance).build();
     }
 
     public static Operation buildOperation(Op operation, VectorTS prev, VectorTS ts, int replicaInstance) {
-        return operationBuilder.clear().setOperation(operation)
+        return Operation.newBuilder().setOperation(operation)
                 .setPrev(prev).setTs(ts).setReplicaInstance(replicaInstance).build();
     }
 
     public static Operation buildOperation(Op operation, InitData initData,
                                            VectorTS prev, VectorTS ts, int replicaInstance) {
-        return operationBuilder.clear().setOperation(operation).setInitData(initData)
+        return Operation.newBuilder().setOperation(operation).setInitData(initData)
                 .setPrev(prev).setTs(ts).setReplicaInstance(replicaInstance).build();
     }
 
     public static Operation buildOperation(Update update, int replicaInstance) {
-        return auxOperationBuilder.buildOperationFromUpdate(update, replicaInstance);
+        return new AuxOperationBuilder().buildOperationFromUpdate(update, replicaInstance);
     }
 
     public static CamJoinData buildCamJoinData(String name, Coordinates coordinates) {
-        return camJoinDataBuilder.clear().setName(name).setCoordinates(coordinates).build();
+        return CamJoinData.newBuilder().setName(name).setCoordinates(coordinates).build();
     }
 
     public static CamReportData buildCamReportData(String camName, List<Observation> observations) {
-        return camReportDataBuilder.clear().setName(camName).addAllObservations(observations).build();
+        return CamReportData.newBuilder().setName(camName).addAllObservations(observations).build();
     }
 
     public static InitData buildInitData(List<CamInfo> cameras, List<ObservationInfo> observations) {
-        return initDataBuilder.clear().addAllCameras(cameras).addAllObservationInfos(observations).build();
+        return InitData.newBuilder().addAllCameras(cameras).addAllObservationInfos(observations).build();
     }
 
     public static VectorTS buildVectorTimestamp(List<Long> timestamps) {
-        return vectorTimestampBuilder.clear()
+        return VectorTS.newBuilder()
                 .addAllTimestamp(timestamps)
                 .build();
     }
 
     public static CamInfo buildCamInfo(String name, Coordinates coordinates) {
-        return camInfoBuilder.clear().setName(name).setCoordinates(coordinates).build();
+        return CamInfo.newBuilder().setName(name).setCoordinates(coordinates).build();
     }
 
     public static Coordinates buildCoordinates(Double latitude, Double longitude) {
-        return coordinatesBuilder.clear().setLatitude(latitude).setLongitude(longitude).build();
+        return Coordinates.newBuilder().setLatitude(latitude).setLongitude(longitude).build();
     }
 
     public static ObservationInfo buildObservationInfo(Observation observation, CamInfo camInfo) {
-        return observationInfoBuilder.clear().setObservation(observation).setCamInfo(camInfo).build();
+        return ObservationInfo.newBuilder().setObservation(observation).setCamInfo(camInfo).build();
     }
 
     public static Observation buildObservation(ObjectInfo objectInfo, Timestamp timestamp) {
-        return observationBuilder.clear().setObjectInfo(objectInfo).setTimestamp(timestamp).build();
+        return Observation.newBuilder().setObjectInfo(objectInfo).setTimestamp(timestamp).build();
+    }
+
+    public static TraceCursor buildTraceCursor(Instant timestamp, int skip) {
+        return TraceCursor.newBuilder().setTimestamp(buildTimeStamp(timestamp)).setSkip(skip).build();
     }
 
     public static ObjectInfo buildObjectInfo(ObjectType objectType, Long numericId) {
-        return objectInfoBuilder.clear().setType(objectType).setNumericId(numericId).build();
+        return ObjectInfo.newBuilder().setType(objectType).setNumericId(numericId).build();
     }
 
     public static ObjectInfo buildObjectInfo(ObjectType objectType, String alphanumericId) {
-        return objectInfoBuilder.clear().setType(objectType).setAlphanumericId(alphanumericId).build();
+        return ObjectInfo.newBuilder().setType(objectType).setAlphanumericId(alphanumericId).build();
     }
 
     public static ObjectType buildObjectType(SavedObservation.Type type) {
@@ -233,12 +191,26 @@ public class GrpcMessageBuilder {
         }
     }
 
+    /* Keeps the nanos, replicas must have the same observations and cursors
+       tell apart observations of the same second by them */
     public static Timestamp buildTimeStamp(Instant instant) {
-        return timestampBuilder.clear().setSeconds(instant.getEpochSecond()).build();
+        return Timestamp.newBuilder().setSeconds(instant.getEpochSecond()).setNanos(instant.getNano()).build();
+    }
+
+    public static Instant buildInstant(Timestamp timestamp) {
+        return Instant.ofEpochSecond(timestamp.getSeconds(), timestamp.getNanos());
     }
 
     public static ObservationInfo buildObservationInfo(SavedObservation<?> savedObservation) {
-        return auxObservationInfoBuilder.buildObservationInfoFromSavedObservation(savedObservation);
+        return new AuxObservationInfoBuilder().buildObservationInfoFromSavedObservation(savedObservation);
+    }
+
+    public static ObjectInfo buildObjectInfo(SavedObservation<?> savedObservation) {
+        return new AuxObservationInfoBuilder().buildObjectInfoFromSavedObservation(savedObservation);
+    }
+
+    public static StateTransferRequest buildStateTransferRequest(int replicaInstance) {
+        return StateTransferRequest.newBuilder().setReplicaInstance(replicaInstance).build();
     }
 
     private static class AuxObservationInfoBuilder implements SavedObservationVisitor {
@@ -250,12 +222,17 @@ public class GrpcMessageBuilder {
             Camera camera = savedObservation.getCamera();
             Coordinates coordinates = buildCoordinates(camera.getLatitude(), camera.getLongitude());
             CamInfo camInfo = buildCamInfo(camera.getName(), coordinates);
+            ObjectInfo objectInfo = buildObjectInfoFromSavedObservation(savedObservation);
+            Timestamp timestamp = buildTimeStamp(savedObservation.getTimestamp());
+            Observation observation = buildObservation(objectInfo, timestamp);
+            return buildObservationInfo(observation, camInfo);
+        }
+
+        private ObjectInfo buildObjectInfoFromSavedObservation(SavedObservation<?> savedObservation) {
             lastObjectType = buildObjectType(savedObservation.getType());
             /* Generate last object info */
             savedObservation.accept(this);
-            Timestamp timestamp = buildTimeStamp(savedObservation.getTimestamp());
-            Observation observation = buildObservation(lastObjectInfo, timestamp);
-            return buildObservationInfo(observation, camInfo);
+            return lastObjectInfo;
         }
 
         @Override
@@ -338,4 +315,74 @@ public class GrpcMessageBuilder {
                     .collect(Collectors.toList());
         }
     }
+
+    private static class AuxCompactLogBuilder implements UpdateVisitor {
+
+        private final CompactLog.Builder log = CompactLog.newBuilder();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private List<Long> lastTimestamp;
+        private long lastSeconds = 0;
+        private CompactOperation.Builder operation;
+
+        private AuxCompactLogBuilder(VectorTimestamp timestamp) {
+            this.lastTimestamp = timestamp.toList();
+        }
+
+        private CompactLog buildCompactLog(List<Update> updates) {
+            for (Update update : updates) {
+                List<Long> ts = update.getTimestamp().toList();
+                List<Long> prev = update.getPrev().toList();
+                operation = CompactOperation.newBuilder().setReplicaInstance(update.getReplicaInstance());
+                for (int i = 0; i < ts.size(); i++) {
+                    operation.addTs(ts.get(i) - lastTimestamp.get(i));
+                    operation.addPrev(prev.get(i) - ts.get(i));
+                }
+                lastTimestamp = ts;
+                update.accept(this);
+                log.addOperations(operation);
+            }
+            return log.build();
+        }
+
+        @Override
+        public void visit(CamJoin camJoin) {
+            operation.setOperation(Op.CAM_JOIN)
+                    .setCamera(indexOf(camJoin.getName()))
+                    .setCoordinates(buildCoordinates(camJoin.getLatitude(), camJoin.getLongitude()));
+        }
+
+        @Override
+        public void visit(CamReport camReport) {
+            Timestamp timestamp = buildTimeStamp(camReport.getInstant());
+            operation.setOperation(Op.CAM_REPORT)
+                    .setCamera(indexOf(camReport.getName()))
+                    .setSeconds(timestamp.getSeconds() - lastSeconds)
+                    .setNanos(timestamp.getNanos())
+                    .addAllPeople(camReport.getPeopleIds());
+            for (String plate : camReport.getCarPlates()) {
+                operation.addPlates(indexOf(plate));
+            }
+            lastSeconds = timestamp.getSeconds();
+        }
+
+        @Override
+        public void visit(Clear clear) {
+            operation.setOperation(Op.CLEAR);
+        }
+
+        @Override
+        public void visit(Init init) {
+            // Rare and only sent once, kept in the full encoding
+            operation.setOperation(Op.INIT)
+                    .setInitData(new AuxOperationBuilder().buildOperationFromUpdate(init, 0).getInitData());
+        }
+
+        /* Index of the string in the log, adding it the first time */
+        private int indexOf(String string) {
+            return strings.computeIfAbsent(string, key -> {
+                log.addStrings(key);
+                return strings.size();
+            });
+        }
+    }
 }
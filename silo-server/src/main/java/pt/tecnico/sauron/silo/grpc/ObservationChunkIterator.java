@@ -0,0 +1,45 @@
+package pt.tecnico.sauron.silo.grpc;
+
+import pt.tecnico.sauron.silo.domain.SavedObservation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Groups the observations of a query in chunks, building each chunk
+ * only when it is requested. There is always at least one chunk so
+ * that the client receives the timestamp even with no observations
+ */
+class ObservationChunkIterator implements Iterator<ObservationChunk> {
+
+    private final Iterator<? extends SavedObservation<?>> observations;
+    private final VectorTS ts;
+    private final int chunkSize;
+    private boolean first = true;
+
+    ObservationChunkIterator(Iterator<? extends SavedObservation<?>> observations, VectorTS ts, int chunkSize) {
+        this.observations = observations;
+        this.ts = ts;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return first || observations.hasNext();
+    }
+
+    @Override
+    public ObservationChunk next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        first = false;
+        List<ObservationInfo> observationInfos = new ArrayList<>(chunkSize);
+        while (observationInfos.size() < chunkSize && observations.hasNext()) {
+            observationInfos.add(GrpcMessageBuilder.buildObservationInfo(observations.next()));
+        }
+        return GrpcMessageBuilder.buildObservationChunk(observationInfos, ts);
+    }
+}
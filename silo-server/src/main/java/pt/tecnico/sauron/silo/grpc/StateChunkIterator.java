@@ -0,0 +1,86 @@
+package pt.tecnico.sauron.silo.grpc;
+
+import com.google.protobuf.ByteString;
+import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.SavedObservation;
+import pt.tecnico.sauron.silo.persistence.UpdateCodec;
+import pt.tecnico.sauron.silo.replication.ReplicaSnapshot;
+
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Splits a snapshot of the replica in chunks to transfer, building each
+ * chunk only when it is requested. The first chunk has the timestamps, the
+ * pending updates and the cameras of the repository, cameras only known by observations are
+ * sent in the chunk of their first observation
+ */
+public class StateChunkIterator implements Iterator<StateChunk>, AutoCloseable {
+
+    private final ReplicaSnapshot snapshot;
+    private final Iterator<? extends SavedObservation<?>> observations;
+    private final int chunkSize;
+    // Index of each camera sent, in the order they were sent
+    private final Map<Camera, Integer> cameraIds = new IdentityHashMap<>();
+    private boolean first = true;
+
+    StateChunkIterator(ReplicaSnapshot snapshot, int chunkSize) {
+        this.snapshot = snapshot;
+        this.chunkSize = chunkSize;
+        this.observations = Stream.concat(flatten(snapshot.getPeople()), flatten(snapshot.getCars())).iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return first || observations.hasNext();
+    }
+
+    @Override
+    public StateChunk next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        StateChunk.Builder chunk = StateChunk.newBuilder();
+        if (first) {
+            first = false;
+            chunk.setValueTS(GrpcMessageBuilder.buildVectorTimestamp(snapshot.getValueTimestamp().toList()))
+                    .setReplicaTS(GrpcMessageBuilder.buildVectorTimestamp(snapshot.getReplicaTimestamp().toList()));
+            snapshot.getPending().forEach(update -> chunk.addPending(ByteString.copyFrom(UpdateCodec.encode(update))));
+            snapshot.getCameras().forEach(camera -> addCamera(chunk, camera));
+        }
+        while (chunk.getObservationsCount() < chunkSize && observations.hasNext()) {
+            SavedObservation<?> observation = observations.next();
+            Integer cameraId = cameraIds.get(observation.getCamera());
+            if (cameraId == null) {
+                cameraId = addCamera(chunk, observation.getCamera());
+            }
+            ObjectInfo objectInfo = GrpcMessageBuilder.buildObjectInfo(observation);
+            chunk.addObservations(StateObservation.newBuilder()
+                    .setObjectInfo(objectInfo)
+                    .setTimestamp(GrpcMessageBuilder.buildTimeStamp(observation.getTimestamp()))
+                    .setCamera(cameraId));
+        }
+        return chunk.build();
+    }
+
+    /**
+     * Releases the snapshot
+     */
+    @Override
+    public void close() {
+        snapshot.close();
+    }
+
+    private int addCamera(StateChunk.Builder chunk, Camera camera) {
+        int cameraId = cameraIds.size();
+        cameraIds.put(camera, cameraId);
+        chunk.addCameras(GrpcMessageBuilder.buildCamInfo(camera.getName(),
+                GrpcMessageBuilder.buildCoordinates(camera.getLatitude(), camera.getLongitude())));
+        return cameraId;
+    }
+
+    private static <T> Stream<T> flatten(Iterable<List<T>> groups) {
+        return StreamSupport.stream(groups.spliterator(), false).flatMap(List::stream);
+    }
+}
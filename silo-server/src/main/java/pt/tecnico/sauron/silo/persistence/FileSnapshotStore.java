@@ -0,0 +1,350 @@
+package pt.tecnico.sauron.silo.persistence;
+
+import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.Car;
+import pt.tecnico.sauron.silo.domain.Person;
+import pt.tecnico.sauron.silo.domain.SavedObservation;
+import pt.tecnico.sauron.silo.replication.ReplicaSnapshot;
+import pt.tecnico.sauron.silo.replication.Update;
+import pt.tecnico.sauron.silo.replication.VectorTimestamp;
+import pt.tecnico.sauron.silo.service.SnapshotStore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps snapshots of the replica state in numbered binary files. A snapshot
+ * is written to a temporary file and only renamed once synced, so a crash
+ * never leaves a partial snapshot in place. The header holds the offset of
+ * each section and the CRC32 of the body, and snapshots are memory mapped
+ * to be read. Cameras are written once and referenced by index
+ */
+public class FileSnapshotStore implements SnapshotStore {
+
+    private static final int MAGIC = 0x53534e31;
+    private static final int VERSION = 2;
+    // Magic, version, people offset, cars offset, end and checksum of the body
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 4 * Long.BYTES;
+    private static final String SNAPSHOT_FORMAT = "%020d.snap";
+    private static final Pattern SNAPSHOT_PATTERN = Pattern.compile("(\\d{20})\\.snap");
+    private static final String TEMPORARY_FILE = "snapshot.tmp";
+    // The previous snapshot is kept in case the newest one is damaged
+    private static final int SNAPSHOTS_KEPT = 2;
+    // Camera reference followed by the camera itself
+    private static final int NEW_CAMERA = -1;
+
+    private final Path directory;
+
+    /**
+     * @param directory where the snapshots are kept, created if missing
+     * @throws IOException if the directory can not be created
+     */
+    public FileSnapshotStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public void save(ReplicaSnapshot snapshot) {
+        try {
+            List<Long> snapshots = listSnapshots();
+            long next = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1) + 1;
+            Path temporary = directory.resolve(TEMPORARY_FILE);
+            write(temporary, snapshot);
+            Files.move(temporary, directory.resolve(String.format(SNAPSHOT_FORMAT, next)),
+                    StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            deleteOldSnapshots();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    @Override
+    public Optional<ReplicaSnapshot> loadLatest() {
+        try {
+            List<Long> snapshots = listSnapshots();
+            for (int i = snapshots.size() - 1; i >= 0; i--) {
+                Path path = directory.resolve(String.format(SNAPSHOT_FORMAT, snapshots.get(i)));
+                try {
+                    return Optional.of(load(path));
+                } catch (IOException exception) {
+                    System.out.println(String.format("WARNING: Ignoring damaged snapshot '%s': %s",
+                            path, exception.getMessage()));
+                }
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return Optional.empty();
+    }
+
+    private void write(Path path, ReplicaSnapshot snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // Header is written last, once the offsets are known
+            channel.position(HEADER_SIZE);
+            CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(channel), new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+
+            writeTimestamp(out, snapshot.getValueTimestamp());
+            writeTimestamp(out, snapshot.getReplicaTimestamp());
+            out.writeInt(snapshot.getTimestampTable().length);
+            for (VectorTimestamp timestamp : snapshot.getTimestampTable()) {
+                writeTimestamp(out, timestamp);
+            }
+            out.writeInt(snapshot.getPending().size());
+            for (Update update : snapshot.getPending()) {
+                byte[] bytes = UpdateCodec.encode(update);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            Map<Camera, Integer> cameraIds = new IdentityHashMap<>();
+            out.writeInt(snapshot.getCameras().size());
+            for (Camera camera : snapshot.getCameras()) {
+                writeCamera(out, camera);
+                cameraIds.put(camera, cameraIds.size());
+            }
+
+            out.flush();
+            long peopleOffset = channel.position();
+            writeObservations(out, snapshot.getPeople(), cameraIds, (o, person) -> o.writeLong(person.getId()));
+            out.flush();
+            long carsOffset = channel.position();
+            writeObservations(out, snapshot.getCars(), cameraIds, (o, car) -> writeString(o, car.getId()));
+            out.flush();
+            long end = channel.position();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(peopleOffset)
+                    .putLong(carsOffset)
+                    .putLong(end)
+                    .putLong(checked.getChecksum().getValue());
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+            channel.force(true);
+        }
+    }
+
+    /* Each group of observations of an id is its size followed by the observations, ended by an empty group */
+    private <T extends SavedObservation<?>> void writeObservations(DataOutputStream out, Iterable<List<T>> groups,
+                                                                   Map<Camera, Integer> baseCameraIds,
+                                                                   IdWriter<T> idWriter) throws IOException {
+        // Cameras only known by observations are numbered by section, so sections can be read alone
+        Map<Camera, Integer> cameraIds = new IdentityHashMap<>(baseCameraIds);
+        for (List<T> group : groups) {
+            out.writeInt(group.size());
+            for (T observation : group) {
+                idWriter.write(out, observation);
+                out.writeLong(observation.getTimestamp().getEpochSecond());
+                out.writeInt(observation.getTimestamp().getNano());
+                Integer cameraId = cameraIds.get(observation.getCamera());
+                if (cameraId == null) {
+                    out.writeInt(NEW_CAMERA);
+                    writeCamera(out, observation.getCamera());
+                    cameraIds.put(observation.getCamera(), cameraIds.size());
+                }
+                else {
+                    out.writeInt(cameraId);
+                }
+            }
+        }
+        out.writeInt(0);
+    }
+
+    private ReplicaSnapshot load(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Missing header");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Unknown format");
+            }
+            long peopleOffset = header.getLong();
+            long carsOffset = header.getLong();
+            long end = header.getLong();
+            long checksum = header.getLong();
+            if (end != channel.size() || MappedInput.checksum(channel, HEADER_SIZE, end) != checksum) {
+                throw new IOException("Checksum mismatch");
+            }
+
+            MappedInput in = new MappedInput(channel, HEADER_SIZE);
+            VectorTimestamp valueTimestamp = readTimestamp(in);
+            VectorTimestamp replicaTimestamp = readTimestamp(in);
+            VectorTimestamp[] timestampTable = new VectorTimestamp[in.readInt()];
+            for (int i = 0; i < timestampTable.length; i++) {
+                timestampTable[i] = readTimestamp(in);
+            }
+            int pendingCount = in.readInt();
+            List<Update> pending = new ArrayList<>();
+            for (int i = 0; i < pendingCount; i++) {
+                pending.add(UpdateCodec.decode(in.readBytes()));
+            }
+            int cameraCount = in.readInt();
+            List<Camera> cameras = new ArrayList<>(cameraCount);
+            for (int i = 0; i < cameraCount; i++) {
+                cameras.add(readCamera(in));
+            }
+
+            Iterable<List<Person>> people = () -> new ObservationIterator<>(channel, peopleOffset, cameras,
+                    MappedInput::readLong, Person::new);
+            Iterable<List<Car>> cars = () -> new ObservationIterator<>(channel, carsOffset, cameras,
+                    MappedInput::readString, Car::new);
+            return new ReplicaSnapshot(valueTimestamp, replicaTimestamp, timestampTable, pending,
+                    cameras, people, cars, () -> closeQuietly(channel));
+        } catch (IOException | RuntimeException exception) {
+            closeQuietly(channel);
+            throw exception;
+        }
+    }
+
+    private List<Long> listSnapshots() throws IOException {
+        List<Long> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Matcher matcher = SNAPSHOT_PATTERN.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    snapshots.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        snapshots.sort(null);
+        return snapshots;
+    }
+
+    private void deleteOldSnapshots() throws IOException {
+        List<Long> snapshots = listSnapshots();
+        for (int i = 0; i < snapshots.size() - SNAPSHOTS_KEPT; i++) {
+            Files.deleteIfExists(directory.resolve(String.format(SNAPSHOT_FORMAT, snapshots.get(i))));
+        }
+    }
+
+    /* Makes the rename durable */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException exception) {
+            // Not every platform can sync a directory
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException exception) {
+            System.out.println("WARNING: Unable to close snapshot: " + exception.getMessage());
+        }
+    }
+
+    private static void writeTimestamp(DataOutputStream out, VectorTimestamp timestamp) throws IOException {
+        out.writeInt(timestamp.size());
+        for (int i = 1; i <= timestamp.size(); i++) {
+            out.writeLong(timestamp.getReplicaInstanceValue(i));
+        }
+    }
+
+    private static VectorTimestamp readTimestamp(MappedInput in) throws IOException {
+        int size = in.readInt();
+        List<Long> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readLong());
+        }
+        return new VectorTimestamp(values);
+    }
+
+    private static void writeCamera(DataOutputStream out, Camera camera) throws IOException {
+        writeString(out, camera.getName());
+        out.writeDouble(camera.getLatitude());
+        out.writeDouble(camera.getLongitude());
+    }
+
+    private static Camera readCamera(MappedInput in) throws IOException {
+        return new Camera(in.readString(), in.readDouble(), in.readDouble());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private interface IdWriter<T> {
+        void write(DataOutputStream out, T observation) throws IOException;
+    }
+
+    private interface IdReader<I> {
+        I read(MappedInput in) throws IOException;
+    }
+
+    private interface ObservationFactory<I, T> {
+        T create(I id, Instant timestamp, Camera camera);
+    }
+
+    /* Reads the groups of observations of a section, straight from the mapped file */
+    private static class ObservationIterator<I, T> implements Iterator<List<T>> {
+
+        private final MappedInput in;
+        private final List<Camera> cameras;
+        private final IdReader<I> idReader;
+        private final ObservationFactory<I, T> factory;
+        private int nextSize;
+
+        private ObservationIterator(FileChannel channel, long offset, List<Camera> baseCameras,
+                                    IdReader<I> idReader, ObservationFactory<I, T> factory) {
+            this.cameras = new ArrayList<>(baseCameras);
+            this.idReader = idReader;
+            this.factory = factory;
+            try {
+                this.in = new MappedInput(channel, offset);
+                this.nextSize = in.readInt();
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextSize > 0;
+        }
+
+        @Override
+        public List<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                List<T> observations = new ArrayList<>(nextSize);
+                for (int i = 0; i < nextSize; i++) {
+                    I id = idReader.read(in);
+                    Instant timestamp = Instant.ofEpochSecond(in.readLong(), in.readInt());
+                    int cameraId = in.readInt();
+                    if (cameraId == NEW_CAMERA) {
+                        cameras.add(readCamera(in));
+                        cameraId = cameras.size() - 1;
+                    }
+                    observations.add(factory.create(id, timestamp, cameras.get(cameraId)));
+                }
+                nextSize = in.readInt();
+                return observations;
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+    }
+}
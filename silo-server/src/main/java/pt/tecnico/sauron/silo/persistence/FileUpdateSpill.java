@@ -0,0 +1,137 @@
+package pt.tecnico.sauron.silo.persistence;
+
+import pt.tecnico.sauron.silo.replication.Update;
+import pt.tecnico.sauron.silo.replication.UpdateSpill;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the spilled updates of the gossip log in a single file, written
+ * without syncing since it is not needed after a restart. The offset of
+ * every update still needed is kept in memory, and the file is emptied
+ * once every update in it was discarded
+ */
+public class FileUpdateSpill implements UpdateSpill {
+
+    private static final String SPILL_FILE = "gossip.spill";
+
+    private final FileChannel channel;
+    // Offsets of the updates from the first one still needed, followed by the end of the file
+    private long[] offsets = new long[1024];
+    private int start = 0;
+    private int count = 0;
+    // Number of the update at the start of the offsets
+    private long first = 0;
+
+    /**
+     * @param directory where the file is kept, created if missing
+     * @throws IOException if the file can not be created
+     */
+    public FileUpdateSpill(Path directory) throws IOException {
+        Path path = Files.createDirectories(directory).resolve(SPILL_FILE);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public synchronized long append(List<Update> updates) {
+        List<byte[]> records = new ArrayList<>(updates.size());
+        int size = 0;
+        for (Update update : updates) {
+            byte[] record = UpdateCodec.encode(update);
+            records.add(record);
+            size += record.length;
+        }
+        ensureCapacity(updates.size());
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        long end = offsets[start + count];
+        for (byte[] record : records) {
+            buffer.put(record);
+            end += record.length;
+            offsets[start + ++count] = end;
+        }
+        buffer.flip();
+        try {
+            long position = offsets[start + count - records.size()];
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException exception) {
+            // Updates that failed are not kept
+            count -= records.size();
+            throw new UncheckedIOException(exception);
+        }
+        return first + count - records.size();
+    }
+
+    @Override
+    public synchronized List<Update> read(long index, int readCount) {
+        int from = start + (int) (index - first);
+        if (index < first || readCount < 0 || from + readCount > start + count) {
+            throw new IllegalArgumentException(String.format("Updates not in the spill: %d to %d",
+                    index, index + readCount));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) (offsets[from + readCount] - offsets[from]));
+        try {
+            long position = offsets[from];
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) throw new EOFException();
+                position += read;
+            }
+            buffer.flip();
+            List<Update> updates = new ArrayList<>(readCount);
+            for (int i = from; i < from + readCount; i++) {
+                byte[] record = new byte[(int) (offsets[i + 1] - offsets[i])];
+                buffer.get(record);
+                updates.add(UpdateCodec.decode(record));
+            }
+            return updates;
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    @Override
+    public synchronized void discard(long index) {
+        int discarded = (int) Math.min(Math.max(0, index - first), count);
+        start += discarded;
+        count -= discarded;
+        first += discarded;
+        if (count == 0) {
+            // Nothing left to read, the file starts over
+            try {
+                channel.truncate(0);
+            } catch (IOException exception) {
+                System.out.println("WARNING: Unable to truncate gossip spill: " + exception.getMessage());
+            }
+            offsets[0] = 0;
+            start = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException exception) {
+            System.out.println("WARNING: Unable to close gossip spill: " + exception.getMessage());
+        }
+    }
+
+    private void ensureCapacity(int added) {
+        if (start + count + added + 1 <= offsets.length) return;
+        // Drops the discarded offsets before growing
+        long[] grown = count + added + 1 <= offsets.length / 2
+                ? offsets
+                : new long[Math.max(offsets.length * 2, count + added + 1)];
+        System.arraycopy(offsets, start, grown, 0, count + 1);
+        offsets = grown;
+        start = 0;
+    }
+}
@@ -0,0 +1,99 @@
+package pt.tecnico.sauron.silo.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Sequential reader of a memory mapped file. The file is mapped in
+ * windows, so files bigger than a single mapping can be read
+ */
+class MappedInput {
+
+    private static final long WINDOW_SIZE = 256L << 20;
+    // Longest string accepted, so that a damaged length can not exhaust the memory
+    private static final int MAX_STRING_LENGTH = 1 << 16;
+
+    private final FileChannel channel;
+    private final long size;
+    private long windowStart;
+    private MappedByteBuffer window;
+
+    MappedInput(FileChannel channel, long position) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        map(position);
+    }
+
+    /**
+     * Computes the CRC32 of a region of a file without copying it to the heap
+     * @param channel of the file
+     * @param from first byte of the region
+     * @param to end of the region, exclusive
+     * @return the CRC32 of the region
+     * @throws IOException if the file can not be mapped
+     */
+    static long checksum(FileChannel channel, long from, long to) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long position = from; position < to; position += WINDOW_SIZE) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, to - position)));
+        }
+        return crc.getValue();
+    }
+
+    int readInt() throws IOException {
+        ensure(Integer.BYTES);
+        return window.getInt();
+    }
+
+    long readLong() throws IOException {
+        ensure(Long.BYTES);
+        return window.getLong();
+    }
+
+    double readDouble() throws IOException {
+        ensure(Double.BYTES);
+        return window.getDouble();
+    }
+
+    String readString() throws IOException {
+        int length = readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException(String.format("Invalid string length: %d", length));
+        }
+        ensure(length);
+        byte[] bytes = new byte[length];
+        window.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    byte[] readBytes() throws IOException {
+        int length = readInt();
+        if (length < 0 || length > WINDOW_SIZE) {
+            throw new IOException(String.format("Invalid length: %d", length));
+        }
+        ensure(length);
+        byte[] bytes = new byte[length];
+        window.get(bytes);
+        return bytes;
+    }
+
+    /* Maps a new window if the current one ends before the next bytes */
+    private void ensure(int bytes) throws IOException {
+        if (window.remaining() < bytes) {
+            long position = windowStart + window.position();
+            if (position + bytes > size) {
+                throw new EOFException();
+            }
+            map(position);
+        }
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+    }
+}
@@ -0,0 +1,206 @@
+package pt.tecnico.sauron.silo.persistence;
+
+import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.Car;
+import pt.tecnico.sauron.silo.domain.Person;
+import pt.tecnico.sauron.silo.replication.*;
+
+import java.io.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of the updates written to disk. Every update starts
+ * with its type, replica and timestamps followed by its own fields
+ */
+public final class UpdateCodec {
+
+    private static final byte CAM_JOIN = 1;
+    private static final byte CAM_REPORT = 2;
+    private static final byte CLEAR = 3;
+    private static final byte INIT = 4;
+
+    private UpdateCodec() {
+    }
+
+    /**
+     * @param update to encode
+     * @return the bytes of the update
+     */
+    public static byte[] encode(Update update) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        update.accept(new Encoder(new DataOutputStream(bytes)));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes of an update
+     * @return the decoded update
+     * @throws IOException if the bytes are not a valid update
+     */
+    public static Update decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte type = in.readByte();
+        int replicaInstance = in.readInt();
+        VectorTimestamp timestamp = readTimestamp(in);
+        VectorTimestamp prev = readTimestamp(in);
+        switch (type) {
+            case CAM_JOIN:
+                return new CamJoin(in.readUTF(), in.readDouble(), in.readDouble(),
+                        replicaInstance, timestamp, prev);
+            case CAM_REPORT:
+                String name = in.readUTF();
+                Instant instant = readInstant(in);
+                int peopleCount = in.readInt();
+                List<Long> peopleIds = new ArrayList<>(peopleCount);
+                for (int i = 0; i < peopleCount; i++) {
+                    peopleIds.add(in.readLong());
+                }
+                int carCount = in.readInt();
+                List<String> carPlates = new ArrayList<>(carCount);
+                for (int i = 0; i < carCount; i++) {
+                    carPlates.add(in.readUTF());
+                }
+                return new CamReport(name, peopleIds, carPlates, instant, replicaInstance, timestamp, prev);
+            case CLEAR:
+                return new Clear(replicaInstance, timestamp, prev);
+            case INIT:
+                int cameraCount = in.readInt();
+                List<Camera> cameras = new ArrayList<>(cameraCount);
+                for (int i = 0; i < cameraCount; i++) {
+                    cameras.add(readCamera(in));
+                }
+                int personCount = in.readInt();
+                List<Person> people = new ArrayList<>(personCount);
+                for (int i = 0; i < personCount; i++) {
+                    people.add(new Person(in.readLong(), readInstant(in), readCamera(in)));
+                }
+                int plateCount = in.readInt();
+                List<Car> cars = new ArrayList<>(plateCount);
+                for (int i = 0; i < plateCount; i++) {
+                    cars.add(new Car(in.readUTF(), readInstant(in), readCamera(in)));
+                }
+                return new Init(cameras, people, cars, replicaInstance, timestamp, prev);
+            default:
+                throw new IOException(String.format("Unknown update type: %d", type));
+        }
+    }
+
+    private static VectorTimestamp readTimestamp(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<Long> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readLong());
+        }
+        return new VectorTimestamp(values);
+    }
+
+    private static Instant readInstant(DataInputStream in) throws IOException {
+        return Instant.ofEpochSecond(in.readLong(), in.readInt());
+    }
+
+    private static Camera readCamera(DataInputStream in) throws IOException {
+        return new Camera(in.readUTF(), in.readDouble(), in.readDouble());
+    }
+
+    /* Writes the fields of each update type, the stream is in memory so it never fails */
+    private static class Encoder implements UpdateVisitor {
+
+        private final DataOutputStream out;
+
+        private Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void visit(CamJoin camJoin) {
+            try {
+                writeHeader(CAM_JOIN, camJoin);
+                out.writeUTF(camJoin.getName());
+                out.writeDouble(camJoin.getLatitude());
+                out.writeDouble(camJoin.getLongitude());
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+
+        @Override
+        public void visit(CamReport camReport) {
+            try {
+                writeHeader(CAM_REPORT, camReport);
+                out.writeUTF(camReport.getName());
+                writeInstant(camReport.getInstant());
+                out.writeInt(camReport.getPeopleIds().size());
+                for (Long id : camReport.getPeopleIds()) {
+                    out.writeLong(id);
+                }
+                out.writeInt(camReport.getCarPlates().size());
+                for (String plate : camReport.getCarPlates()) {
+                    out.writeUTF(plate);
+                }
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+
+        @Override
+        public void visit(Clear clear) {
+            try {
+                writeHeader(CLEAR, clear);
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+
+        @Override
+        public void visit(Init init) {
+            try {
+                writeHeader(INIT, init);
+                out.writeInt(init.getCameras().size());
+                for (Camera camera : init.getCameras()) {
+                    writeCamera(camera);
+                }
+                out.writeInt(init.getPeople().size());
+                for (Person person : init.getPeople()) {
+                    out.writeLong(person.getId());
+                    writeInstant(person.getTimestamp());
+                    writeCamera(person.getCamera());
+                }
+                out.writeInt(init.getCars().size());
+                for (Car car : init.getCars()) {
+                    out.writeUTF(car.getId());
+                    writeInstant(car.getTimestamp());
+                    writeCamera(car.getCamera());
+                }
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+
+        private void writeHeader(byte type, Update update) throws IOException {
+            out.writeByte(type);
+            out.writeInt(update.getReplicaInstance());
+            writeTimestamp(update.getTimestamp());
+            writeTimestamp(update.getPrev());
+        }
+
+        private void writeTimestamp(VectorTimestamp timestamp) throws IOException {
+            out.writeInt(timestamp.size());
+            for (int i = 1; i <= timestamp.size(); i++) {
+                out.writeLong(timestamp.getReplicaInstanceValue(i));
+            }
+        }
+
+        private void writeInstant(Instant instant) throws IOException {
+            out.writeLong(instant.getEpochSecond());
+            out.writeInt(instant.getNano());
+        }
+
+        private void writeCamera(Camera camera) throws IOException {
+            out.writeUTF(camera.getName());
+            out.writeDouble(camera.getLatitude());
+            out.writeDouble(camera.getLongitude());
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package pt.tecnico.sauron.silo.persistence;
+
+import pt.tecnico.sauron.silo.replication.Update;
+import pt.tecnico.sauron.silo.replication.VectorTimestamp;
+import pt.tecnico.sauron.silo.service.UpdateJournal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the updates accepted by a replica, split in numbered
+ * segment files. Each record is the length and CRC32 of the encoded update
+ * followed by the update itself, so a record torn by a crash is detected
+ * and dropped on recovery. A single writer thread takes every append
+ * waiting at the time and makes them durable with one sync. The merged
+ * timestamp of the updates in each segment is kept, so that segments
+ * covered by a snapshot are deleted whole
+ */
+public class WriteAheadLog implements UpdateJournal {
+
+    private static final int SEGMENT_MAGIC = 0x53574131;
+    private static final int SEGMENT_HEADER_SIZE = Integer.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final String SEGMENT_FORMAT = "%020d.wal";
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("(\\d{20})\\.wal");
+
+    private final Path directory;
+    private final long segmentSize;
+    private final boolean sync;
+    // Segments before this one were written before this replica started
+    private final long firstSegment;
+
+    private final BlockingQueue<Append> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    // Guarded by the pending queue
+    private boolean closed = false;
+
+    // Merge of the timestamps of the updates in each segment
+    private final Map<Long, VectorTimestamp> segmentTimestamps = new ConcurrentSkipListMap<>();
+    // Segment being written, never deleted
+    private volatile long currentSegment = -1;
+    // Set to start a new segment on the next write, so the current one can be deleted
+    private volatile boolean rollRequested = false;
+
+    // Only used by the writer thread
+    private FileChannel channel;
+    private long nextSegment;
+
+    /**
+     * @param directory where the segments are kept, created if missing
+     * @param segmentSize size after which a new segment is started
+     * @param sync true to sync every write to the disk, false to leave it to the OS
+     * @throws IOException if the directory can not be read
+     */
+    public WriteAheadLog(Path directory, long segmentSize, boolean sync) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        List<Long> segments = listSegments();
+        // Never append to a segment that might end with a torn record
+        this.firstSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        this.nextSegment = firstSegment;
+        this.writer = new Thread(this::writeLoop, "wal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void append(List<Update> updates) {
+        // Encode in the calling thread so the writer only copies bytes
+        List<byte[]> records = new ArrayList<>(updates.size());
+        VectorTimestamp timestamp = null;
+        for (Update update : updates) {
+            records.add(UpdateCodec.encode(update));
+            timestamp = merge(timestamp, update.getTimestamp());
+        }
+        Append append = new Append(records, timestamp);
+        synchronized (pending) {
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            pending.add(append);
+        }
+        try {
+            append.done.join();
+        } catch (CompletionException exception) {
+            Throwable cause = exception.getCause();
+            throw cause instanceof IOException
+                    ? new UncheckedIOException((IOException) cause)
+                    : new UncheckedIOException(new IOException(cause));
+        }
+    }
+
+    @Override
+    public List<Update> recover() {
+        List<Update> updates = new ArrayList<>();
+        try {
+            for (Long segment : listSegments()) {
+                if (segment < firstSegment) {
+                    recoverSegment(segment, updates);
+                }
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return updates;
+    }
+
+    @Override
+    public void truncate(VectorTimestamp timestamp) {
+        rollRequested = true;
+        for (Map.Entry<Long, VectorTimestamp> segment : segmentTimestamps.entrySet()) {
+            if (segment.getKey() != currentSegment && segment.getValue().happensBefore(timestamp)) {
+                try {
+                    Files.deleteIfExists(segmentPath(segment.getKey()));
+                    segmentTimestamps.remove(segment.getKey());
+                } catch (IOException exception) {
+                    System.out.println("WARNING: Unable to delete write-ahead log segment: " + exception.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the pending appends to be written and closes the current segment
+     */
+    @Override
+    public void close() {
+        synchronized (pending) {
+            if (closed) return;
+            // No append is queued after the close mark
+            closed = true;
+            pending.add(Append.CLOSE);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Append> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            pending.drainTo(batch);
+            running = !batch.remove(Append.CLOSE);
+            try {
+                write(batch);
+                batch.forEach(append -> append.done.complete(null));
+            } catch (IOException exception) {
+                System.out.println("SEVERE: Unable to write to the write-ahead log: " + exception.getMessage());
+                batch.forEach(append -> append.done.completeExceptionally(exception));
+                // The segment may end in a partial write, continue in a new one
+                closeSegment();
+            }
+            batch.clear();
+        }
+        closeSegment();
+    }
+
+    private void write(List<Append> batch) throws IOException {
+        int size = 0;
+        for (Append append : batch) {
+            for (byte[] record : append.records) {
+                size += RECORD_HEADER_SIZE + record.length;
+            }
+        }
+        if (size == 0) return;
+
+        if (channel == null || (channel.position() > SEGMENT_HEADER_SIZE
+                && (rollRequested || channel.position() + size > segmentSize))) {
+            rollRequested = false;
+            openSegment();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (Append append : batch) {
+            for (byte[] record : append.records) {
+                crc.reset();
+                crc.update(record);
+                buffer.putInt(record.length);
+                buffer.putInt((int) crc.getValue());
+                buffer.put(record);
+            }
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        for (Append append : batch) {
+            if (append.timestamp != null) {
+                segmentTimestamps.merge(currentSegment, append.timestamp, WriteAheadLog::merge);
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        closeSegment();
+        currentSegment = nextSegment++;
+        channel = FileChannel.open(segmentPath(currentSegment),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE).putInt(SEGMENT_MAGIC);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private void closeSegment() {
+        if (channel == null) return;
+        try {
+            if (sync) {
+                channel.force(true);
+            }
+            channel.close();
+        } catch (IOException exception) {
+            System.out.println("WARNING: Unable to close write-ahead log segment: " + exception.getMessage());
+        }
+        channel = null;
+    }
+
+    /* Reads the records of a segment written before this replica started, deleting it if empty */
+    private void recoverSegment(long segment, List<Update> updates) throws IOException {
+        int start = updates.size();
+        readSegment(segmentPath(segment), updates);
+        if (updates.size() == start) {
+            Files.deleteIfExists(segmentPath(segment));
+            return;
+        }
+        VectorTimestamp timestamp = null;
+        for (Update update : updates.subList(start, updates.size())) {
+            timestamp = merge(timestamp, update.getTimestamp());
+        }
+        segmentTimestamps.put(segment, timestamp);
+    }
+
+    /* Reads the records of a segment, truncating it at the first one that is torn */
+    private void readSegment(Path path, List<Update> updates) throws IOException {
+        long fileSize = Files.size(path);
+        long position = 0;
+        long validEnd = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != SEGMENT_MAGIC) {
+                System.out.println(String.format("WARNING: Ignoring '%s', not a write-ahead log segment", path));
+                return;
+            }
+            position = validEnd = SEGMENT_HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || position + RECORD_HEADER_SIZE + length > fileSize) break;
+                byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) break;
+                updates.add(UpdateCodec.decode(record));
+                position += RECORD_HEADER_SIZE + length;
+                validEnd = position;
+            }
+        } catch (EOFException exception) {
+            // End of the segment, possibly in the middle of a record
+        }
+        if (validEnd < fileSize) {
+            System.out.println(String.format("WARNING: Dropping torn records at the end of '%s'", path));
+            try (FileChannel truncate = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                truncate.truncate(validEnd);
+            }
+        }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Matcher matcher = SEGMENT_PATTERN.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    segments.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static VectorTimestamp merge(VectorTimestamp merged, VectorTimestamp timestamp) {
+        if (merged == null) {
+            return VectorTimestamp.copyOf(timestamp);
+        }
+        VectorTimestamp result = VectorTimestamp.copyOf(merged);
+        result.merge(timestamp);
+        return result;
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format(SEGMENT_FORMAT, segment));
+    }
+
+    /* Records of one append call, completed once they are written */
+    private static class Append {
+
+        // Marks the end of the appends, the writer stops once it is taken
+        private static final Append CLOSE = new Append(List.of(), null);
+
+        private final List<byte[]> records;
+        // Merge of the timestamps of the updates or null if there are none
+        private final VectorTimestamp timestamp;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Append(List<byte[]> records, VectorTimestamp timestamp) {
+            this.records = records;
+            this.timestamp = timestamp;
+        }
+    }
+}
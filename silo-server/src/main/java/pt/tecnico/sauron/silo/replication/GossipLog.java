@@ -0,0 +1,267 @@
+package pt.tecnico.sauron.silo.replication;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Log of the updates accepted by a replica that other replicas might not
+ * have yet. Each update gets a sequence number in the order it is accepted
+ * and each peer has a cursor with the first update not yet sent to it, so
+ * a gossip round only sends the updates added since the last one. Updates
+ * are discarded once every peer acknowledged them. While a peer is down
+ * the log grows, so the oldest updates are spilled out of memory once
+ * there are too many, and a batch never holds more than a bounded number
+ */
+public class GossipLog {
+
+    private final int replicaInstance;
+    private final UpdateSpill spill;
+    private final int maxInMemory;
+    private final int maxBatch;
+    /* Updates in the order they were accepted, the ones before head were acknowledged by every peer */
+    private final List<Entry> updates = new ArrayList<>();
+    private int head = 0;
+    /* The updates from head to here were spilled */
+    private int firstInMemory = 0;
+    /* Sequence number of the update at the head */
+    private long firstSequence = 0;
+    /* Merge of the timestamps of every update added, so that the timestamp
+       sent in a gossip message never has updates that were not sent */
+    private final VectorTimestamp timestamp;
+    /* Sequence number of the first update not yet sent to each peer */
+    private final long[] cursors;
+    /* Last timestamp known of each peer, updates that happen before it are not sent */
+    private final VectorTimestamp[] acknowledged;
+
+    /**
+     * Constructs a log that keeps every update in memory and sends them all at once
+     * @param replicaInstance of this replica
+     * @param replicas number of replicas
+     */
+    public GossipLog(int replicaInstance, int replicas) {
+        this(replicaInstance, replicas, UpdateSpill.NONE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param replicaInstance of this replica
+     * @param replicas number of replicas
+     * @param spill where the oldest updates are kept once there are too many
+     * @param maxInMemory number of updates kept in memory before spilling
+     * @param maxBatch most updates considered for a single batch
+     */
+    public GossipLog(int replicaInstance, int replicas, UpdateSpill spill, int maxInMemory, int maxBatch) {
+        this.replicaInstance = replicaInstance;
+        this.spill = spill;
+        this.maxInMemory = Math.max(1, maxInMemory);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.timestamp = new VectorTimestamp(replicas);
+        this.cursors = new long[replicas];
+        this.acknowledged = new VectorTimestamp[replicas];
+        for (int i = 0; i < replicas; i++) {
+            acknowledged[i] = new VectorTimestamp(replicas);
+        }
+    }
+
+    /**
+     * Adds accepted updates to the log
+     * @param newUpdates in the order they were accepted
+     */
+    public synchronized void addAll(Collection<Update> newUpdates) {
+        for (Update update : newUpdates) {
+            updates.add(new Entry(update));
+            timestamp.merge(update.getTimestamp());
+        }
+        discardAcknowledged();
+        if (updates.size() - firstInMemory > maxInMemory && spill != UpdateSpill.NONE) {
+            // Spills more than the excess, so that it is not done again on every update
+            spillOldest(updates.size() - firstInMemory - maxInMemory * 3 / 4);
+        }
+    }
+
+    public void add(Update update) {
+        addAll(List.of(update));
+    }
+
+    /**
+     * Takes the updates to send to a peer, the ones added after the last batch
+     * it acknowledged that it does not have yet, up to the most a batch holds
+     * @param peer replica instance of the peer
+     * @return the batch to send, to acknowledge once the peer received it
+     * @throws IllegalArgumentException if there is no such peer
+     * @throws UncheckedIOException if the spilled updates could not be read
+     */
+    public synchronized Batch nextBatch(int peer) {
+        if (peer < 1 || peer > cursors.length || peer == replicaInstance) {
+            throw new IllegalArgumentException(String.format("Unknown replica: %d", peer));
+        }
+        VectorTimestamp peerTimestamp = acknowledged[peer - 1];
+        int start = head + (int) Math.max(0, cursors[peer - 1] - firstSequence);
+        int end = (int) Math.min(updates.size(), (long) start + maxBatch);
+        List<Update> spilled = start < firstInMemory
+                ? spill.read(updates.get(start).spillIndex, Math.min(end, firstInMemory) - start)
+                : List.of();
+        List<Update> batch = new ArrayList<>();
+        // A partial batch only claims the updates sent so far
+        VectorTimestamp batchTimestamp = end == updates.size()
+                ? VectorTimestamp.copyOf(timestamp)
+                : VectorTimestamp.copyOf(peerTimestamp);
+        for (int i = start; i < end; i++) {
+            Entry entry = updates.get(i);
+            if (entry.timestamp.happensBefore(peerTimestamp)) continue;
+            batch.add(i < firstInMemory ? spilled.get(i - start) : entry.update);
+            int c = entry.origin;
+            if (entry.timestamp.getReplicaInstanceValue(c) > batchTimestamp.getReplicaInstanceValue(c)) {
+                batchTimestamp.setReplicaInstanceValue(c, entry.timestamp.getReplicaInstanceValue(c));
+            }
+        }
+        return new Batch(peer, batch, batchTimestamp, firstSequence + (end - head), end == updates.size());
+    }
+
+    /**
+     * Marks a batch as received by the peer
+     * @param batch sent to the peer
+     * @param peerTimestamp replica timestamp of the peer after receiving the batch
+     */
+    public synchronized void acknowledge(Batch batch, VectorTimestamp peerTimestamp) {
+        int i = batch.getPeer() - 1;
+        acknowledged[i].merge(peerTimestamp);
+        cursors[i] = Math.max(cursors[i], batch.getEnd());
+        discardAcknowledged();
+    }
+
+    /**
+     * Updates the timestamp known of a peer without moving its cursor,
+     * when it is learned from a gossip message sent by the peer
+     * @param peer replica instance of the peer
+     * @param peerTimestamp replica timestamp of the peer
+     */
+    public synchronized void observe(int peer, VectorTimestamp peerTimestamp) {
+        acknowledged[peer - 1].merge(peerTimestamp);
+        discardAcknowledged();
+    }
+
+    public synchronized int size() {
+        return updates.size() - head;
+    }
+
+    /**
+     * @return number of updates spilled out of memory
+     */
+    public synchronized int spilled() {
+        return firstInMemory - head;
+    }
+
+    /* Moves the oldest updates in memory to the spill */
+    private void spillOldest(int count) {
+        List<Entry> entries = updates.subList(firstInMemory, firstInMemory + count);
+        List<Update> spilledUpdates = new ArrayList<>(count);
+        for (Entry entry : entries) {
+            spilledUpdates.add(entry.update);
+        }
+        long index;
+        try {
+            index = spill.append(spilledUpdates);
+        } catch (UncheckedIOException exception) {
+            // Kept in memory, the limit of the log still bounds them
+            System.out.println("WARNING: Unable to spill gossip log: " + exception.getMessage());
+            return;
+        }
+        for (Entry entry : entries) {
+            entry.update = null;
+            entry.spillIndex = index++;
+        }
+        firstInMemory += count;
+    }
+
+    /* Discards the oldest updates while every peer has them */
+    private void discardAcknowledged() {
+        long spillEnd = -1;
+        while (head < updates.size() && acknowledgedByAll(updates.get(head))) {
+            if (head < firstInMemory) spillEnd = updates.get(head).spillIndex + 1;
+            updates.set(head++, null);
+            firstSequence++;
+        }
+        if (spillEnd >= 0) spill.discard(spillEnd);
+        firstInMemory = Math.max(firstInMemory, head);
+        // Compact once most of the list was discarded
+        if (head > updates.size() / 2) {
+            updates.subList(0, head).clear();
+            firstInMemory -= head;
+            head = 0;
+        }
+    }
+
+    private boolean acknowledgedByAll(Entry entry) {
+        int c = entry.origin;
+        for (int i = 0; i < acknowledged.length; i++) {
+            if (i != replicaInstance - 1 && acknowledged[i].getReplicaInstanceValue(c)
+                    < entry.timestamp.getReplicaInstanceValue(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Update in the log, only the fields needed to choose what to send stay in memory once spilled */
+    private static class Entry {
+
+        private final int origin;
+        private final VectorTimestamp timestamp;
+        private Update update;
+        private long spillIndex = -1;
+
+        private Entry(Update update) {
+            this.origin = update.getReplicaInstance();
+            this.timestamp = update.getTimestamp();
+            this.update = update;
+        }
+    }
+
+    /**
+     * Updates to send to a peer in a gossip round
+     */
+    public static class Batch {
+
+        private final int peer;
+        private final List<Update> updates;
+        private final VectorTimestamp timestamp;
+        // Sequence number after the last update considered
+        private final long end;
+        private final boolean complete;
+
+        private Batch(int peer, List<Update> updates, VectorTimestamp timestamp, long end, boolean complete) {
+            this.peer = peer;
+            this.updates = updates;
+            this.timestamp = timestamp;
+            this.end = end;
+            this.complete = complete;
+        }
+
+        public int getPeer() {
+            return peer;
+        }
+
+        public List<Update> getUpdates() {
+            return updates;
+        }
+
+        /**
+         * @return merge of the timestamps of every update in the log, including the ones sent before,
+         * or only of the ones sent so far if the batch is not complete
+         */
+        public VectorTimestamp getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return false if the log had more updates than a batch holds, they are sent in the next one
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        long getEnd() {
+            return end;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package pt.tecnico.sauron.silo.replication;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the queries waiting for the replica to apply the updates their
+ * client already saw. Like the updates of the {@link UpdateScheduler}, a
+ * query waits in a {@link WaitingIndex} until the value timestamp reaches
+ * its prev. No thread waits for a query, whoever advances the value
+ * timestamp or removes a query runs it
+ */
+public class QueryScheduler {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /* Queries waiting for the value timestamp */
+    private final WaitingIndex<Query> waiting;
+
+    /**
+     * @param replicas number of replicas
+     */
+    public QueryScheduler(int replicas) {
+        this.waiting = new WaitingIndex<>(replicas, query -> query.prev);
+    }
+
+    /**
+     * Adds a query to wait, unless the replica already applied its prev
+     * @param query to add
+     * @return true if the query is ready, to run by the caller
+     */
+    public boolean add(Query query) {
+        lock.lock();
+        try {
+            return waiting.schedule(query);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the queries whose prev the new value timestamp reached
+     * @param valueTimestamp of the replica, never behind the last one given
+     * @return the queries released, to run by the caller
+     */
+    public List<Query> advance(VectorTimestamp valueTimestamp) {
+        lock.lock();
+        try {
+            return waiting.advance(valueTimestamp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a query that is still waiting, once it waited long enough
+     * @param query to remove
+     * @return true if the query was waiting, to run by the caller
+     */
+    public boolean remove(Query query) {
+        lock.lock();
+        try {
+            return waiting.remove(query);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every query waiting
+     * @return the queries removed, to run by the caller
+     */
+    public List<Query> removeAll() {
+        lock.lock();
+        try {
+            return waiting.removeIf(query -> true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Query waiting for the updates of its prev timestamp
+     */
+    public static class Query {
+
+        private final VectorTimestamp prev;
+        private final Runnable task;
+
+        /**
+         * @param prev timestamp of the client, of the same size as the value timestamp
+         * @param task answering the query
+         */
+        public Query(VectorTimestamp prev, Runnable task) {
+            this.prev = prev;
+            this.task = task;
+        }
+
+        public Runnable getTask() {
+            return task;
+        }
+    }
+}
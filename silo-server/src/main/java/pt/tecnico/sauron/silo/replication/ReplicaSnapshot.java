@@ -0,0 +1,85 @@
+package pt.tecnico.sauron.silo.replication;
+
+import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.Car;
+import pt.tecnico.sauron.silo.domain.Person;
+
+import java.util.List;
+
+/**
+ * Class to represent the state of a replica at a point in time: the
+ * repositories with the updates up to the value timestamp applied, the
+ * replication timestamps and the updates accepted but not yet applied
+ * at that point. Updates from a replica are not always applied in the
+ * order it accepted them, so the value timestamp may cover pending updates
+ */
+public class ReplicaSnapshot implements AutoCloseable {
+
+    private final VectorTimestamp valueTimestamp;
+    private final VectorTimestamp replicaTimestamp;
+    private final VectorTimestamp[] timestampTable;
+    private final List<Update> pending;
+    private final List<Camera> cameras;
+    // Observations grouped by id, each group sorted by increasing timestamp
+    private final Iterable<List<Person>> people;
+    private final Iterable<List<Car>> cars;
+    private final Runnable release;
+
+    public ReplicaSnapshot(VectorTimestamp valueTimestamp, VectorTimestamp replicaTimestamp,
+                           VectorTimestamp[] timestampTable, List<Update> pending, List<Camera> cameras,
+                           Iterable<List<Person>> people, Iterable<List<Car>> cars, Runnable release) {
+        this.valueTimestamp = valueTimestamp;
+        this.replicaTimestamp = replicaTimestamp;
+        this.timestampTable = timestampTable;
+        this.pending = pending;
+        this.cameras = cameras;
+        this.people = people;
+        this.cars = cars;
+        this.release = release;
+    }
+
+    public VectorTimestamp getValueTimestamp() {
+        return valueTimestamp;
+    }
+
+    public VectorTimestamp getReplicaTimestamp() {
+        return replicaTimestamp;
+    }
+
+    public VectorTimestamp[] getTimestampTable() {
+        return timestampTable;
+    }
+
+    public List<Update> getPending() {
+        return pending;
+    }
+
+    public List<Camera> getCameras() {
+        return cameras;
+    }
+
+    public Iterable<List<Person>> getPeople() {
+        return people;
+    }
+
+    public Iterable<List<Car>> getCars() {
+        return cars;
+    }
+
+    /**
+     * Releases the resources held to read the snapshot
+     */
+    @Override
+    public void close() {
+        release.run();
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicaSnapshot{" +
+                "value=" + valueTimestamp +
+                ", replica=" + replicaTimestamp +
+                ", cameras=" + cameras.size() +
+                '}';
+    }
+}
@@ -0,0 +1,194 @@
+package pt.tecnico.sauron.silo.replication;
+
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Holds the updates accepted by a replica until they are stable. An update
+ * that is not stable waits in a {@link WaitingIndex} until the value
+ * timestamp reaches its prev. Stable updates are
+ * taken in timestamp order, and are still held until they are done. The
+ * entries of the updates held are kept by the replica that accepted them,
+ * so the value timestamp never covers an update not yet done
+ */
+public class UpdateScheduler {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    /* Updates ready to be applied */
+    private final PriorityQueue<Update> ready = new PriorityQueue<>();
+    /* Updates waiting for the value timestamp */
+    private final WaitingIndex<Update> waiting;
+    /* Updates taken but not yet done */
+    private final Set<Update> taken = new HashSet<>();
+    /* Entries of the updates held, by the replica that accepted them */
+    private final List<TreeSet<Long>> held = new ArrayList<>();
+    private int size = 0;
+
+    /**
+     * @param replicas number of replicas
+     */
+    public UpdateScheduler(int replicas) {
+        this.waiting = new WaitingIndex<>(replicas, Update::getPrev);
+        for (int i = 0; i < replicas; i++) {
+            held.add(new TreeSet<>());
+        }
+    }
+
+    /**
+     * Adds an update, ready at once if it is stable
+     * @param update to add
+     */
+    public void add(Update update) {
+        addAll(List.of(update));
+    }
+
+    public void addAll(Collection<Update> updates) {
+        lock.lock();
+        try {
+            for (Update update : updates) {
+                schedule(update);
+                held.get(update.getReplicaInstance() - 1).add(entryOf(update));
+                size++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next stable update, waiting for one if there is none
+     * @return the update, to apply before the value timestamp is advanced
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Update take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (ready.isEmpty()) {
+                notEmpty.await();
+            }
+            Update update = ready.poll();
+            taken.add(update);
+            return update;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a taken update once it was applied or discarded
+     * @param update taken
+     */
+    public void done(Update update) {
+        lock.lock();
+        try {
+            if (taken.remove(update)) {
+                held.get(update.getReplicaInstance() - 1).remove(entryOf(update));
+                size--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the updates that became stable with the new value timestamp
+     * @param valueTimestamp of the replica, never behind the last one given
+     */
+    public void advance(VectorTimestamp valueTimestamp) {
+        lock.lock();
+        try {
+            waiting.advance(valueTimestamp).forEach(this::ready);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards the updates that match a condition, taken updates are left
+     * to whoever took them
+     * @param filter of the updates to discard
+     */
+    public void removeIf(Predicate<Update> filter) {
+        lock.lock();
+        try {
+            List<Update> removed = new ArrayList<>();
+            Predicate<Update> remove = update -> {
+                if (!filter.test(update)) return false;
+                removed.add(update);
+                return true;
+            };
+            ready.removeIf(remove);
+            removed.addAll(waiting.removeIf(filter));
+            for (Update update : removed) {
+                held.get(update.getReplicaInstance() - 1).remove(entryOf(update));
+            }
+            size -= removed.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param replicaInstance replica that accepted the updates
+     * @return the lowest entry of the updates held that the replica accepted,
+     *         or Long.MAX_VALUE if none is held
+     */
+    public long lowestHeld(int replicaInstance) {
+        lock.lock();
+        try {
+            TreeSet<Long> entries = held.get(replicaInstance - 1);
+            return entries.isEmpty() ? Long.MAX_VALUE : entries.first();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return copy of every update held, taken, ready or not
+     */
+    public List<Update> toList() {
+        lock.lock();
+        try {
+            List<Update> updates = new ArrayList<>(taken);
+            updates.addAll(ready);
+            waiting.forEach(updates::add);
+            return updates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Entry of the update given by the replica that accepted it, unique for that replica */
+    private static long entryOf(Update update) {
+        return update.getTimestamp().getReplicaInstanceValue(update.getReplicaInstance());
+    }
+
+    /* Puts the update in the ready queue or to wait on the first entry it needs */
+    private void schedule(Update update) {
+        if (waiting.schedule(update)) {
+            ready(update);
+        }
+    }
+
+    private void ready(Update update) {
+        ready.add(update);
+        notEmpty.signal();
+    }
+}
@@ -0,0 +1,61 @@
+package pt.tecnico.sauron.silo.replication;
+
+import java.util.List;
+
+/**
+ * Interface to keep the oldest updates of the gossip log out of memory,
+ * while a replica does not acknowledge them. Updates are numbered in the
+ * order they are appended. Nothing is kept between restarts, the journal
+ * has the updates again
+ */
+public interface UpdateSpill extends AutoCloseable {
+
+    /**
+     * Spill that keeps nothing, the gossip log keeps every update in memory
+     */
+    UpdateSpill NONE = new UpdateSpill() {
+        @Override
+        public long append(List<Update> updates) {
+            throw new UnsupportedOperationException("Updates are not spilled");
+        }
+
+        @Override
+        public List<Update> read(long index, int count) {
+            throw new UnsupportedOperationException("Updates are not spilled");
+        }
+
+        @Override
+        public void discard(long index) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Writes updates out of memory
+     * @param updates to write, in order
+     * @return number of the first update written
+     * @throws java.io.UncheckedIOException if the updates could not be written
+     */
+    long append(List<Update> updates);
+
+    /**
+     * Reads updates written before
+     * @param index number of the first update to read
+     * @param count of updates to read
+     * @return the updates in the order they were written
+     * @throws java.io.UncheckedIOException if the updates could not be read
+     */
+    List<Update> read(long index, int count);
+
+    /**
+     * Discards the updates before a number, they are no longer read
+     * @param index number of the first update still needed
+     */
+    void discard(long index);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,92 @@
+package pt.tecnico.sauron.silo.replication;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Replica timestamp shared by the threads accepting updates, without locks.
+ * Entries only grow, so a timestamp read from the clock is always covered
+ * by the clock from then on. Incrementing returns the new entry, so two
+ * updates accepted at the same time never get the same timestamp
+ */
+public class VectorClock {
+
+    private final AtomicLongArray clock;
+
+    /**
+     * Constructs a clock with all entries to 0
+     * @param size of the vector
+     */
+    public VectorClock(int size) {
+        this.clock = new AtomicLongArray(size);
+    }
+
+    public int size() {
+        return clock.length();
+    }
+
+    /**
+     * Increments the entry representing the replica instance
+     * @param replicaInstance replica instance number
+     * @return the new value of the entry
+     */
+    public long increment(int replicaInstance) {
+        return clock.incrementAndGet(replicaInstance - 1);
+    }
+
+    /**
+     * @param replicaInstance replica instance number
+     * @return the value of the entry with the given replica instance number
+     */
+    public long get(int replicaInstance) {
+        return clock.get(replicaInstance - 1);
+    }
+
+    /**
+     * Raises every entry to the one of the timestamp if it is higher
+     * @param timestamp to merge
+     */
+    public void merge(VectorTimestamp timestamp) {
+        checkSize(timestamp);
+        for (int i = 0; i < clock.length(); i++) {
+            long value = timestamp.getReplicaInstanceValue(i + 1);
+            long current = clock.get(i);
+            while (value > current && !clock.compareAndSet(i, current, value)) {
+                current = clock.get(i);
+            }
+        }
+    }
+
+    /**
+     * @param timestamp to compare
+     * @return true if the timestamp happens before the clock
+     */
+    public boolean covers(VectorTimestamp timestamp) {
+        checkSize(timestamp);
+        for (int i = 0; i < clock.length(); i++) {
+            if (timestamp.getReplicaInstanceValue(i + 1) > clock.get(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return copy of the clock, entries are read one at a time
+     */
+    public VectorTimestamp snapshot() {
+        long[] values = new long[clock.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = clock.get(i);
+        }
+        return new VectorTimestamp(values);
+    }
+
+    private void checkSize(VectorTimestamp timestamp) {
+        if (clock.length() != timestamp.size()) {
+            throw new IllegalArgumentException("VectorTimestamps must be of same size");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return clock.toString();
+    }
+}
@@ -3,19 +3,23 @@ package pt.tecnico.sauron.silo.replication;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.IntStream;
 
+/**
+ * Vector timestamp backed by a primitive array, comparisons never allocate.
+ * Not thread safe, a timestamp shared by threads is guarded by whoever owns
+ * it. The timestamps of an update are copies never changed after it is built,
+ * the clock incremented by the client updates is a {@link VectorClock}
+ */
 public class VectorTimestamp implements Comparable<VectorTimestamp> {
 
-    private final Long[] timestamp;
+    private final long[] timestamp;
 
     /**
      * Constructs VectorTimestamp with all entries to 0
      * @param size of the vector
      */
     public VectorTimestamp(int size) {
-        this.timestamp = new Long[size];
-        Arrays.fill(timestamp, 0L);
+        this.timestamp = new long[size];
     }
 
     /**
@@ -23,17 +27,30 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
      * @param timestamp to use
      */
     public VectorTimestamp(List<Long> timestamp) {
-        this.timestamp = timestamp.toArray(new Long[0]);
+        this.timestamp = new long[timestamp.size()];
+        for (int i = 0; i < this.timestamp.length; i++) {
+            this.timestamp[i] = timestamp.get(i);
+        }
     }
 
-    private VectorTimestamp(VectorTimestamp other) {
-        this.timestamp = Arrays.copyOf(other.timestamp, other.timestamp.length);
+    /* Takes ownership of the array */
+    VectorTimestamp(long[] timestamp) {
+        this.timestamp = timestamp;
     }
 
     public List<Long> toList() {
-        synchronized (this.timestamp) {
-            return new ArrayList<>(Arrays.asList(this.timestamp));
+        List<Long> values = new ArrayList<>(timestamp.length);
+        for (long value : timestamp) {
+            values.add(value);
         }
+        return values;
+    }
+
+    /**
+     * @return number of entries, one per replica
+     */
+    public int size() {
+        return timestamp.length;
     }
 
     /**
@@ -42,7 +59,7 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
      * @return a new VectorTimestamp
      */
     public static VectorTimestamp copyOf(VectorTimestamp other) {
-        return new VectorTimestamp(other);
+        return new VectorTimestamp(other.timestamp.clone());
     }
 
     /**
@@ -50,9 +67,7 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
      * @param replicaInstance replica instance number
      */
     public void incrementReplicaInstanceValue(int replicaInstance) {
-        synchronized (this.timestamp) {
-            this.timestamp[replicaInstance - 1]++;
-        }
+        this.timestamp[replicaInstance - 1]++;
     }
 
     /**
@@ -60,20 +75,16 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
      * @param replicaInstance replica instance number
      * @param value value to set the given entry
      */
-    public void setReplicaInstanceValue(int replicaInstance, Long value) {
-        synchronized (this.timestamp) {
-            this.timestamp[replicaInstance - 1] = value;
-        }
+    public void setReplicaInstanceValue(int replicaInstance, long value) {
+        this.timestamp[replicaInstance - 1] = value;
     }
 
     /**
      * @param replicaInstance replica instance number
      * @return the value of the entry with the given replica instance number
      */
-    public Long getReplicaInstanceValue(int replicaInstance) {
-        synchronized (this.timestamp) {
-            return this.timestamp[replicaInstance - 1];
-        }
+    public long getReplicaInstanceValue(int replicaInstance) {
+        return this.timestamp[replicaInstance - 1];
     }
 
     /**
@@ -82,11 +93,11 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
      * false otherwise
      */
     public boolean happensBefore(VectorTimestamp other) {
-        synchronized (this.timestamp) {
-            checkSize(other);
-            return IntStream.range(0, this.timestamp.length)
-                    .allMatch(index -> this.timestamp[index] <= other.timestamp[index]);
+        checkSize(other);
+        for (int i = 0; i < timestamp.length; i++) {
+            if (timestamp[i] > other.timestamp[i]) return false;
         }
+        return true;
     }
 
     /**
@@ -94,12 +105,8 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
      * @return true if this happens after other and
      * false otherwise
      */
-    public synchronized boolean happensAfter(VectorTimestamp other) {
-        synchronized (this.timestamp) {
-            checkSize(other);
-            return IntStream.range(0, this.timestamp.length)
-                    .allMatch(index -> this.timestamp[index] >= other.timestamp[index]);
-        }
+    public boolean happensAfter(VectorTimestamp other) {
+        return other.happensBefore(this);
     }
 
     /**
@@ -107,10 +114,12 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
      * this and other timestamps
      * @param other timestamp to merge
      */
-    public synchronized void merge(VectorTimestamp other) {
-        synchronized (this.timestamp) {
-            checkSize(other);
-            Arrays.setAll(this.timestamp, index -> Math.max(this.timestamp[index], other.timestamp[index]));
+    public void merge(VectorTimestamp other) {
+        checkSize(other);
+        for (int i = 0; i < timestamp.length; i++) {
+            if (other.timestamp[i] > timestamp[i]) {
+                timestamp[i] = other.timestamp[i];
+            }
         }
     }
 
@@ -128,18 +137,16 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
         // Assume both are true
         boolean happensBefore = true;
         boolean happensAfter = true;
-        synchronized (this.timestamp) {
-            for (int i = 0; i < this.timestamp.length; i++) {
-                // If entry in this.timestamp < entry in other.timestamp
-                // this.timestamp cant happen after other.timestamp
-                if (this.timestamp[i] < other.timestamp[i]) {
-                    happensAfter = false;
-                }
-                // If entry in this.timestamp > entry in other.timestamp
-                // this.timestamp cant happen before other.timestamp
-                else if (this.timestamp[i] > other.timestamp[i]) {
-                    happensBefore = false;
-                }
+        for (int i = 0; i < this.timestamp.length; i++) {
+            // If entry in this.timestamp < entry in other.timestamp
+            // this.timestamp cant happen after other.timestamp
+            if (this.timestamp[i] < other.timestamp[i]) {
+                happensAfter = false;
+            }
+            // If entry in this.timestamp > entry in other.timestamp
+            // this.timestamp cant happen before other.timestamp
+            else if (this.timestamp[i] > other.timestamp[i]) {
+                happensBefore = false;
             }
         }
         // If this.timestamp doesnt happen before or after other.timestamp
@@ -155,16 +162,12 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         VectorTimestamp that = (VectorTimestamp) o;
-        synchronized (this.timestamp) {
-            return Arrays.equals(timestamp, that.timestamp);
-        }
+        return Arrays.equals(timestamp, that.timestamp);
     }
 
     @Override
     public int hashCode() {
-        synchronized (this.timestamp) {
-            return Arrays.hashCode(timestamp);
-        }
+        return Arrays.hashCode(timestamp);
     }
 
     private void checkSize(VectorTimestamp other) {
@@ -175,8 +178,6 @@ public class VectorTimestamp implements Comparable<VectorTimestamp> {
 
     @Override
     public String toString() {
-        synchronized (this.timestamp) {
-            return Arrays.toString(timestamp);
-        }
+        return Arrays.toString(timestamp);
     }
-}
\ No newline at end of file
+}
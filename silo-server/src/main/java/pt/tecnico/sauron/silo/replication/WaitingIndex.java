@@ -0,0 +1,145 @@
+package pt.tecnico.sauron.silo.replication;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Index of the elements waiting for the value timestamp of the replica to
+ * reach their prev timestamp. An element waits on the first entry of its
+ * prev the value has not reached, indexed by the value it waits for, and is
+ * only looked at again once the value timestamp reaches it. Not thread safe,
+ * guarded by the scheduler that owns it
+ * @param <T> waiting element class
+ */
+class WaitingIndex<T> {
+
+    /* Elements waiting on each entry, by the value of the entry they wait for */
+    private final List<TreeMap<Long, List<T>>> waiting = new ArrayList<>();
+    /* Value timestamp known by the index */
+    private final long[] value;
+    private final Function<T, VectorTimestamp> prevOf;
+    private int size = 0;
+
+    /**
+     * @param replicas number of replicas
+     * @param prevOf prev timestamp of an element, of the same size as the value timestamp
+     */
+    WaitingIndex(int replicas, Function<T, VectorTimestamp> prevOf) {
+        this.value = new long[replicas];
+        this.prevOf = prevOf;
+        for (int i = 0; i < replicas; i++) {
+            waiting.add(new TreeMap<>());
+        }
+    }
+
+    /**
+     * Puts an element to wait on the first entry it needs
+     * @param element to schedule
+     * @return true if the value already reached its prev, the element is not kept
+     */
+    boolean schedule(T element) {
+        int entry = firstNeeded(element);
+        if (entry < 0) return true;
+        waiting.get(entry).computeIfAbsent(prevOf.apply(element).getReplicaInstanceValue(entry + 1),
+                key -> new ArrayList<>()).add(element);
+        size++;
+        return false;
+    }
+
+    /**
+     * Advances the value, the elements it reached are scheduled again
+     * @param valueTimestamp of the replica, never behind the last one given
+     * @return the elements whose prev the value reached, no longer kept
+     */
+    List<T> advance(VectorTimestamp valueTimestamp) {
+        if (size == 0) {
+            // Nothing waits, only the value is kept
+            for (int i = 0; i < value.length; i++) {
+                value[i] = Math.max(value[i], valueTimestamp.getReplicaInstanceValue(i + 1));
+            }
+            return List.of();
+        }
+        List<T> reachedElements = new ArrayList<>();
+        for (int i = 0; i < value.length; i++) {
+            long newValue = valueTimestamp.getReplicaInstanceValue(i + 1);
+            if (newValue > value[i]) {
+                value[i] = newValue;
+                // Elements waiting for values this entry reached
+                SortedMap<Long, List<T>> reached = waiting.get(i).headMap(value[i], true);
+                reached.values().forEach(reachedElements::addAll);
+                reached.clear();
+            }
+        }
+        size -= reachedElements.size();
+        // Reached elements might still wait on other entries
+        List<T> released = new ArrayList<>();
+        for (T element : reachedElements) {
+            if (schedule(element)) {
+                released.add(element);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * @param element to remove, compared by equality
+     * @return true if the element was waiting
+     */
+    boolean remove(T element) {
+        int entry = firstNeeded(element);
+        if (entry < 0) return false;
+        TreeMap<Long, List<T>> values = waiting.get(entry);
+        long waitsFor = prevOf.apply(element).getReplicaInstanceValue(entry + 1);
+        List<T> group = values.get(waitsFor);
+        if (group == null || !group.remove(element)) return false;
+        if (group.isEmpty()) values.remove(waitsFor);
+        size--;
+        return true;
+    }
+
+    /**
+     * @param filter of the elements to remove
+     * @return the elements removed
+     */
+    List<T> removeIf(Predicate<T> filter) {
+        List<T> removed = new ArrayList<>();
+        for (TreeMap<Long, List<T>> values : waiting) {
+            for (Iterator<List<T>> groups = values.values().iterator(); groups.hasNext(); ) {
+                List<T> group = groups.next();
+                group.removeIf(element -> {
+                    if (!filter.test(element)) return false;
+                    removed.add(element);
+                    return true;
+                });
+                if (group.isEmpty()) groups.remove();
+            }
+        }
+        size -= removed.size();
+        return removed;
+    }
+
+    /**
+     * @param action to run on every element waiting
+     */
+    void forEach(Consumer<T> action) {
+        for (TreeMap<Long, List<T>> values : waiting) {
+            values.values().forEach(group -> group.forEach(action));
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /* First entry of the prev of the element the value has not reached, -1 if none.
+       Entries before it are reached for good, so it is where the element waits */
+    private int firstNeeded(T element) {
+        VectorTimestamp prev = prevOf.apply(element);
+        for (int i = 0; i < value.length; i++) {
+            if (prev.getReplicaInstanceValue(i + 1) > value[i]) return i;
+        }
+        return -1;
+    }
+}
@@ -12,4 +12,5 @@ public class DomainFields {
     public static final String PERSON_SEARCH_REGEX = "Person Search Regex";
     public static final String CAR_SEARCH_REGEX = "Car Search Regex";
     public static final String OBSERVATION_CAMERA = "Observation camera";
+    public static final String TRACE_RANGE = "Trace range";
 }
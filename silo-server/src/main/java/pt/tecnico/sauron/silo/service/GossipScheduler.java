@@ -0,0 +1,120 @@
+package pt.tecnico.sauron.silo.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to run the gossip rounds. A round runs soon after updates
+ * are added, at once if many are waiting, and the delay between rounds
+ * doubles while there are no new updates, up to a maximum
+ */
+public class GossipScheduler implements AutoCloseable {
+
+    private final long minDelay;
+    private final long maxDelay;
+    private final int maxBacklog;
+    private final long maxAge;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "gossip-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Runnable round;
+    // Guarded by this
+    private ScheduledFuture<?> next;
+    private long nextTime;
+    private long delay;
+    private int backlog = 0;
+
+    /**
+     * @param minDelay milliseconds between rounds while there are new updates
+     * @param maxDelay milliseconds between rounds once there are none
+     * @param maxBacklog number of new updates that starts a round at once
+     * @param maxAge milliseconds a new update waits at most for a round
+     */
+    public GossipScheduler(long minDelay, long maxDelay, int maxBacklog, long maxAge) {
+        this.minDelay = minDelay;
+        this.maxDelay = Math.max(minDelay, maxDelay);
+        this.maxBacklog = maxBacklog;
+        this.maxAge = maxAge;
+        this.delay = this.maxDelay;
+    }
+
+    /**
+     * Starts running the rounds
+     * @param round to run, never runs twice at once
+     */
+    public synchronized void start(Runnable round) {
+        this.round = round;
+        schedule(delay);
+    }
+
+    /**
+     * Brings the next round forward if the new updates should not wait for it
+     * @param count of updates added
+     */
+    public synchronized void updatesAdded(int count) {
+        if (count == 0) return;
+        backlog += count;
+        if (round != null) {
+            schedule(backlog >= maxBacklog ? 0 : maxAge);
+        }
+    }
+
+    /**
+     * Runs the next round at once, when the last one could not send every update
+     */
+    public synchronized void moreToSend() {
+        if (round != null) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * @return most milliseconds between rounds
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void runRound() {
+        int sent;
+        synchronized (this) {
+            next = null;
+            sent = backlog;
+            backlog = 0;
+        }
+        try {
+            round.run();
+        } catch (RuntimeException exception) {
+            System.out.println("SEVERE: Gossip round failed: " + exception.getMessage());
+            exception.printStackTrace();
+        } finally {
+            synchronized (this) {
+                // Back off while idle
+                delay = sent > 0 ? minDelay : Math.min(Math.max(delay * 2, 1), maxDelay);
+                schedule(delay);
+            }
+        }
+    }
+
+    /* Schedules the next round unless one is already scheduled earlier */
+    private void schedule(long millis) {
+        long time = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        if (next != null) {
+            if (nextTime - time <= 0) return;
+            // A round that already started is not cancelled and schedules the next one itself
+            if (!next.cancel(false)) return;
+        }
+        nextTime = time;
+        next = executor.schedule(this::runRound, millis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,21 +1,32 @@
 package pt.tecnico.sauron.silo.service;
 
-import pt.tecnico.sauron.silo.replication.Update;
-import pt.tecnico.sauron.silo.replication.VectorTimestamp;
+import pt.tecnico.sauron.silo.replication.GossipLog;
+import pt.tecnico.sauron.silo.replication.ReplicaSnapshot;
 
-import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface to send gossip messages to other replicas
  */
-public interface GossipSender {
+public interface GossipSender extends AutoCloseable {
 
     /**
-     * Sends updates to the necessary replicas
-     * @param possibleUpdatesToSend list of updates that any replica might not know. Can be filtered
-     *                              for specific replicas according to their timestamp in tableTS
-     * @param replicaTimestamp timestamp of the replicas
-     * @param tableTS with the last received timestamps from other replicas
+     * Sends to each replica the updates it has not acknowledged, acknowledging
+     * them in the log once the replica received them. Returns without waiting
+     * for the replicas
+     * @param gossipLog with the updates any replica might not know
+     * @return completed once every replica received the updates or failed to,
+     * with true if a replica was not sent every update in a single batch
      */
-    void send(List<Update> possibleUpdatesToSend, VectorTimestamp replicaTimestamp, VectorTimestamp[] tableTS);
+    CompletableFuture<Boolean> send(GossipLog gossipLog);
+
+    /**
+     * Fetches the whole state of another replica
+     * @return the state of the first replica able to send it or empty if none was
+     */
+    Optional<ReplicaSnapshot> fetchState();
+
+    @Override
+    void close();
 }
@@ -0,0 +1,56 @@
+package pt.tecnico.sauron.silo.service;
+
+/**
+ * Bounds on the update logs of a replica. New updates from cameras are
+ * refused once a log is full, gossip from other replicas never is, since
+ * the updates it brings might be the ones the log is waiting for
+ */
+public class LogLimits {
+
+    /**
+     * Limits that never refuse an update and keep the whole gossip log in memory
+     */
+    public static final LogLimits NONE = new LogLimits(Integer.MAX_VALUE, Integer.MAX_VALUE,
+            Integer.MAX_VALUE, Integer.MAX_VALUE, 0);
+
+    private final int maxPending;
+    private final int maxUnconfirmed;
+    private final int maxInMemory;
+    private final int maxBatch;
+    private final long retryDelay;
+
+    /**
+     * @param maxPending updates waiting to be applied before refusing new ones
+     * @param maxUnconfirmed updates not acknowledged by every replica before refusing new ones
+     * @param maxInMemory updates not acknowledged kept in memory, the oldest are spilled
+     * @param maxBatch most updates sent to a replica in a single gossip message
+     * @param retryDelay milliseconds a camera is told to wait when refused
+     */
+    public LogLimits(int maxPending, int maxUnconfirmed, int maxInMemory, int maxBatch, long retryDelay) {
+        this.maxPending = maxPending;
+        this.maxUnconfirmed = maxUnconfirmed;
+        this.maxInMemory = maxInMemory;
+        this.maxBatch = maxBatch;
+        this.retryDelay = retryDelay;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public int getMaxUnconfirmed() {
+        return maxUnconfirmed;
+    }
+
+    public int getMaxInMemory() {
+        return maxInMemory;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+}
@@ -4,9 +4,9 @@ import pt.tecnico.sauron.silo.domain.*;
 import pt.tecnico.sauron.silo.exceptions.*;
 import pt.tecnico.sauron.silo.utils.CheckUtils;
 
-import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static pt.tecnico.sauron.silo.service.DomainFields.*;
 
@@ -15,13 +15,15 @@ import static pt.tecnico.sauron.silo.service.DomainFields.*;
  */
 public class QueryHandler {
 
-    /* Comparator to sort observations by decreasing timestamp */
-    private static final Comparator<SavedObservation<?>> TIMESTAMP_COMPARATOR =
-            (o1, o2) -> o2.getTimestamp().compareTo(o1.getTimestamp());
+    /* Max number of compiled search patterns to keep */
+    private static final int MATCHER_CACHE_SIZE = 256;
+    /* Max number of observations copied at a time when streaming a trace */
+    private static final int TRACE_PAGE_SIZE = 256;
 
     private final CameraRepository cameraRepository;
     private final ObservationRepository<Long, Person> personRepository;
     private final ObservationRepository<String, Car> carRepository;
+    private final WildcardMatcherCache matcherCache = new WildcardMatcherCache(MATCHER_CACHE_SIZE);
 
     public QueryHandler(CameraRepository cameraRepository,
                           ObservationRepository<Long, Person> personRepository,
@@ -86,9 +88,20 @@ public class QueryHandler {
      */
     public List<Person> trackPersonMatch(String regex)
             throws InvalidPersonIdRegexException, MissingRequiredFieldException {
+        return streamPersonMatch(regex).collect(Collectors.toList());
+    }
+
+    /**
+     * Lazily tracks all last person observations whose ids match a regular expression
+     * @param regex to match
+     * @return the stream of person whose ids match the regex
+     * @throws InvalidPersonIdRegexException if the regex is invalid
+     * @throws MissingRequiredFieldException if the regex is null
+     */
+    public Stream<Person> streamPersonMatch(String regex)
+            throws InvalidPersonIdRegexException, MissingRequiredFieldException {
         String checkedRegex = CheckUtils.checkPersonIdRegex(CheckUtils.notNullOrBlank(regex, PERSON_SEARCH_REGEX));
-        return personRepository.match(transformRegex(checkedRegex))
-                .collect(Collectors.toList());
+        return personRepository.match(matcherCache.get(checkedRegex));
     }
 
 
@@ -101,44 +114,75 @@ public class QueryHandler {
      */
     public List<Car> trackCarMatch(String regex)
             throws InvalidCarPlateRegexException, MissingRequiredFieldException {
+        return streamCarMatch(regex).collect(Collectors.toList());
+    }
+
+    /**
+     * Lazily tracks all last car observations whose ids match a regular expression
+     * @param regex to match
+     * @return the stream of car whose ids match the regex
+     * @throws InvalidCarPlateRegexException if the regex is invalid
+     * @throws MissingRequiredFieldException if the regex is null
+     */
+    public Stream<Car> streamCarMatch(String regex)
+            throws InvalidCarPlateRegexException, MissingRequiredFieldException {
         String checkedRegex = CheckUtils.checkCarPlateRegex(CheckUtils.notNullOrBlank(regex, CAR_SEARCH_REGEX));
-        return carRepository.match(transformRegex(checkedRegex))
-                .collect(Collectors.toList());
+        return carRepository.match(matcherCache.get(checkedRegex));
     }
 
     /**
-     * Traces the observations of a given person
+     * Traces the observations of a given person in a range
      * @param id of the person
-     * @return the list of that person observations
+     * @param range of the observations to trace
+     * @return the page of that person observations
      * @throws InvalidPersonIdException if the person id is invalid
-     * @throws MissingRequiredFieldException if the person id is null
+     * @throws MissingRequiredFieldException if the person id or range is null
      */
-    public List<Person> tracePerson(Long id)
+    public TracePage<Person> tracePerson(Long id, TraceRange range)
             throws InvalidPersonIdException, MissingRequiredFieldException {
         Long checkedId = CheckUtils.checkPersonId(CheckUtils.notNull(id, PERSON_ID));
-        return personRepository.trace(checkedId)
-                .sorted(TIMESTAMP_COMPARATOR)
-                .collect(Collectors.toList());
+        return personRepository.trace(checkedId, CheckUtils.notNull(range, TRACE_RANGE));
     }
 
     /**
-     * Traces the observations of a car
+     * Traces the observations of a car in a range
      * @param plate of the car
-     * @return the list of that car observations
+     * @param range of the observations to trace
+     * @return the page of that car observations
      * @throws InvalidCarPlateException if the car plate is invalid
-     * @throws MissingRequiredFieldException if the car plate is null
+     * @throws MissingRequiredFieldException if the car plate or range is null
      */
-    public List<Car> traceCar(String plate)
+    public TracePage<Car> traceCar(String plate, TraceRange range)
             throws InvalidCarPlateException, MissingRequiredFieldException {
         String checkedPlate = CheckUtils.checkCarPlate(CheckUtils.notNullOrBlank(plate, CAR_PLATE));
-        return carRepository.trace(checkedPlate)
-                .sorted(TIMESTAMP_COMPARATOR)
-                .collect(Collectors.toList());
+        return carRepository.trace(checkedPlate, CheckUtils.notNull(range, TRACE_RANGE));
     }
 
-    /* Auxiliary method to parse received regex */
+    /**
+     * Lazily traces the observations of a given person in a range
+     * @param id of the person
+     * @param range of the observations to trace
+     * @return the stream of that person observations
+     * @throws InvalidPersonIdException if the person id is invalid
+     * @throws MissingRequiredFieldException if the person id or range is null
+     */
+    public Stream<Person> streamPersonTrace(Long id, TraceRange range)
+            throws InvalidPersonIdException, MissingRequiredFieldException {
+        Long checkedId = CheckUtils.checkPersonId(CheckUtils.notNull(id, PERSON_ID));
+        return personRepository.traceStream(checkedId, CheckUtils.notNull(range, TRACE_RANGE), TRACE_PAGE_SIZE);
+    }
 
-    private String transformRegex(String regex) {
-        return regex.replace("*", ".*");
+    /**
+     * Lazily traces the observations of a car in a range
+     * @param plate of the car
+     * @param range of the observations to trace
+     * @return the stream of that car observations
+     * @throws InvalidCarPlateException if the car plate is invalid
+     * @throws MissingRequiredFieldException if the car plate or range is null
+     */
+    public Stream<Car> streamCarTrace(String plate, TraceRange range)
+            throws InvalidCarPlateException, MissingRequiredFieldException {
+        String checkedPlate = CheckUtils.checkCarPlate(CheckUtils.notNullOrBlank(plate, CAR_PLATE));
+        return carRepository.traceStream(checkedPlate, CheckUtils.notNull(range, TRACE_RANGE), TRACE_PAGE_SIZE);
     }
 }
@@ -4,134 +4,452 @@ import pt.tecnico.sauron.silo.domain.*;
 import pt.tecnico.sauron.silo.exceptions.*;
 import pt.tecnico.sauron.silo.replication.*;
 
+import java.io.UncheckedIOException;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-public class ReplicaService {
+/**
+ * Replica of the silo. All the state of a replica is kept by its instance,
+ * so several replicas can run in the same process, each with its own
+ * threads, started once the replica is built and stopped once it is closed.
+ * The gossip sender, scheduler, applier, journal and spill given to a
+ * replica are owned by the caller, who closes them after the replica
+ */
+public class ReplicaService implements AutoCloseable {
 
     private final StorageHandler storageHandler;
     private final QueryHandler queryHandler;
     private final GossipSender gossipSender;
+    private final UpdateJournal journal;
+    private final SnapshotStore snapshotStore;
 
-    /* Updates already applied to the repositories */
+    /* Updates already applied to the repositories. Updates of different cameras
+       are applied out of order, so each entry stops short of the first update of
+       that replica still in the log: reads, queries waiting and the update log
+       can trust every update it covers was applied */
     private final VectorTimestamp valueTimestamp;
+    /* Every update applied, it may cover updates still in the log. Snapshots
+       take it with the updates in the log as pending. Guarded by the value timestamp */
+    private final VectorTimestamp appliedTimestamp;
     /* Updates that have been accepted (may not be stable) */
-    private final VectorTimestamp replicaTimestamp;
+    private final VectorClock replicaTimestamp;
     /* Replicas timestamps received from gossip messages */
     private final VectorTimestamp[] timestampTable;
     /* Contains all update operations received that are not stable (not yet applied) */
-    private static final BlockingQueue<Update> updateLog = new PriorityBlockingQueue<>();
-    /* Contains all stable and applied updates operations not confirmed by all other replicas */
-    private static final Set<Update> unconfirmedOperations = ConcurrentHashMap.newKeySet();
+    private final UpdateScheduler updateLog;
+    /* Contains all accepted updates not yet acknowledged by all other replicas */
+    private final GossipLog gossipLog;
+    /* Entries of the local updates being accepted, they are added to the logs
+       in timestamp order. Guarded by itself */
+    private final TreeSet<Long> accepting = new TreeSet<>();
+    /* Queries waiting for the updates their client saw */
+    private final QueryScheduler queryScheduler;
     /* Executor service for the threads */
-    private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(2);
+    private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(3);
+    /* Runs the queries released by the updates, so that applying them is not held back */
+    private final ExecutorService queryExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+    /* Milliseconds a query waits at most, whatever the client asked for */
+    private static final long MAX_QUERY_WAIT = 5000;
 
     private final int replicaInstance;
-    private final int gossipRate;
-    private static boolean running = true;
-    private static final Object updateLogMonitor = new Object();
-
-    private static boolean setContext = false;
-    private static boolean multipleReplicas;
+    private final GossipScheduler gossipScheduler;
+    private final UpdateApplier updateApplier;
+    private final int snapshotInterval;
+    private final LogLimits logLimits;
+    /* Value timestamp of the last snapshot, to skip snapshots with no new updates */
+    private VectorTimestamp snapshotTimestamp;
+    /* Value timestamp of the snapshot before the last, the journal is kept after it
+       so that the replica can still recover if the last snapshot is damaged */
+    private VectorTimestamp previousSnapshotTimestamp;
+    /* Snapshot shared by the snapshot saver and the state transfers, the repositories
+       only keep one snapshot at a time. Guarded by the snapshot lock */
+    private final Object snapshotLock = new Object();
+    private ReplicaSnapshot openSnapshot;
+    private int snapshotReaders = 0;
+    /* Updates applied by the last state installed, still taken from the log
+       if they were accepted before it. Guarded by the value timestamp */
+    private Predicate<Update> installed = update -> false;
+    /* Set while fetching the state of another replica */
+    private final AtomicBoolean transferring = new AtomicBoolean(false);
+    /* Time since no update was applied while the log had updates */
+    private long stalledSince = System.currentTimeMillis();
+    private VectorTimestamp lastSentValue;
+    private static final int MAX_STALLED_ROUNDS = 3;
+    /* Set once the threads are started, cleared once the replica is closed */
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean running = true;
+    /* Notified every time the value timestamp advances */
+    private final Object updateLogMonitor = new Object();
 
     public ReplicaService(CameraRepository cameraRepository,
                           ObservationRepository<Long, Person> personRepository,
                           ObservationRepository<String, Car> carRepository,
                           VectorTimestamp valueTimestamp,
-                          VectorTimestamp replicaTimestamp,
+                          VectorClock replicaTimestamp,
                           VectorTimestamp[] timestampTable,
                           int replicaInstance,
                           GossipSender gossipSender,
-                          int gossipRate) {
+                          GossipScheduler gossipScheduler,
+                          UpdateApplier updateApplier,
+                          UpdateJournal journal,
+                          SnapshotStore snapshotStore,
+                          int snapshotInterval,
+                          UpdateSpill updateSpill,
+                          LogLimits logLimits) {
         this.storageHandler = new StorageHandler(cameraRepository, personRepository, carRepository);
         this.queryHandler = new QueryHandler(cameraRepository, personRepository, carRepository);
         this.gossipSender = gossipSender;
-        this.gossipRate = gossipRate;
+        this.gossipScheduler = gossipScheduler;
+        this.updateApplier = updateApplier;
+        this.journal = journal;
+        this.snapshotStore = snapshotStore;
+        this.snapshotInterval = snapshotInterval;
+        this.logLimits = logLimits;
 
         this.valueTimestamp = valueTimestamp;
+        this.appliedTimestamp = VectorTimestamp.copyOf(valueTimestamp);
         this.replicaTimestamp = replicaTimestamp;
         this.timestampTable = timestampTable;
         this.replicaInstance = replicaInstance;
-        this.timestampTable[this.replicaInstance - 1] = this.replicaTimestamp;
+        this.snapshotTimestamp = VectorTimestamp.copyOf(valueTimestamp);
+        this.gossipLog = new GossipLog(replicaInstance, timestampTable.length, updateSpill,
+                logLimits.getMaxInMemory(), logLimits.getMaxBatch());
+        this.updateLog = new UpdateScheduler(timestampTable.length);
+        this.queryScheduler = new QueryScheduler(timestampTable.length);
 
-        setContext();
+        recover();
     }
 
     /**
-     * Method to set the context of all the threads.
-     * All threads might wait but the method should only be called once
+     * Method to recover the state before a restart. The latest snapshot is
+     * restored and the updates accepted after it are applied again by the
+     * process log thread, in the same order as any other update
      */
-    private void setContext() {
-        synchronized (ReplicaService.class) {
-            // Only the first thread will run the method operations
-            if (!setContext) {
-                // Starts threads
-                executorService.execute(this::processLog);
-                executorService.scheduleAtFixedRate(this::sendLog, gossipRate, gossipRate, TimeUnit.SECONDS);
-                setContext = true;
-                multipleReplicas = (replicaTimestamp.toList().size() > 1);
+    private void recover() {
+        // Updates are equal by timestamp, so each one is only applied once
+        Set<Update> recovered = new LinkedHashSet<>();
+        snapshotStore.loadLatest().ifPresent(snapshot -> {
+            recovered.addAll(snapshot.getPending());
+            restore(snapshot);
+        });
+        for (Update update : journal.recover()) {
+            // Updates in the snapshot are already applied, unless pending
+            if (!update.getTimestamp().happensBefore(snapshotTimestamp)) {
+                recovered.add(update);
             }
         }
+        for (Update update : recovered) {
+            replicaTimestamp.merge(update.getTimestamp());
+        }
+        gossipLog.addAll(recovered);
+        updateLog.addAll(recovered);
+        // Pending updates of the snapshot hold the value back until they are applied again
+        advanceValue();
+        System.out.println(String.format("INFO: Recovered %d updates with timestamp '%s'",
+                recovered.size(), replicaTimestamp));
+    }
+
+    private void restore(ReplicaSnapshot snapshot) {
+        try (snapshot) {
+            storageHandler.restore(snapshot);
+            appliedTimestamp.merge(snapshot.getValueTimestamp());
+            replicaTimestamp.merge(snapshot.getReplicaTimestamp());
+            for (int i = 0; i < timestampTable.length; i++) {
+                if (i != replicaInstance - 1) {
+                    timestampTable[i] = snapshot.getTimestampTable()[i];
+                    // Updates the other replicas had are not sent again
+                    gossipLog.observe(i + 1, timestampTable[i]);
+                }
+            }
+            snapshotTimestamp = VectorTimestamp.copyOf(appliedTimestamp);
+            previousSnapshotTimestamp = snapshotTimestamp;
+        }
+        System.out.println(String.format("INFO: Restored snapshot with timestamp '%s'", snapshotTimestamp));
+    }
+
+    /**
+     * Starts the threads of the replica: applying the updates, gossip and
+     * snapshots. Only the first call starts them
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) return;
+        executorService.execute(this::processLog);
+        gossipScheduler.start(this::sendLog);
+        if (snapshotInterval > 0) {
+            executorService.scheduleWithFixedDelay(this::saveSnapshot,
+                    snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+        // A new replica starts from the state of another one instead of the log
+        if (timestampTable.length > 1 && updateLog.isEmpty()
+                && valueTimestamp.equals(new VectorTimestamp(timestampTable.length))) {
+            executorService.execute(this::fetchState);
+        }
+    }
+
+    /**
+     * Stops the threads of the replica. Updates accepted and not yet applied
+     * are in the journal, the components given to the replica are left open
+     */
+    @Override
+    public void close() {
+        running = false;
+        executorService.shutdownNow();
+        queryExecutor.shutdown();
+        synchronized (updateLogMonitor) {
+            updateLogMonitor.notifyAll();
+        }
+        // Waiting queries are answered with the updates applied so far
+        queryScheduler.removeAll().forEach(query -> query.getTask().run());
     }
 
     /**
      * Method to process the update log
-     * Waits on new updates and processing them when the are stable
+     * Waits on stable updates and hands them to the update applier, the
+     * update log only gives an update once the updates it depends on were applied
      */
     private void processLog() {
-        // Process log forever
+        // Process log until the replica is closed
         while (running) {
             try {
-                Update current = updateLog.take();
-                synchronized (valueTimestamp) {
-                    // Check if update is stable
-                    if (current.getPrev().happensBefore(valueTimestamp)) {
-                        // Executes the update
-                        current.accept(storageHandler);
-                        valueTimestamp.merge(current.getTimestamp());
-                        // If multiple replicas save for later gossip
-                        if (multipleReplicas) unconfirmedOperations.add(current);
-                        // Notify threads that might be waiting for updates
-                        synchronized (updateLogMonitor) {
-                            updateLogMonitor.notifyAll();
-                        }
-                    } else {
-                        // Most recent update cant be executed. Put back and wait for new updates.
-                        updateLog.add(current);
-                        valueTimestamp.wait();
-                    }
-                }
+                updateApplier.submit(updateLog.take(), this::apply);
             } catch (InterruptedException e) {
-                System.out.println("WARNING: Process log interrupted");
-                e.printStackTrace();
+                if (running) {
+                    System.out.println("WARNING: Process log interrupted");
+                    e.printStackTrace();
+                }
                 Thread.currentThread().interrupt();
+                return;
             }
         }
     }
 
+    /**
+     * Method to apply a stable update, called by the update applier
+     * @param update to apply
+     */
+    private void apply(Update update) {
+        boolean applied = false;
+        try {
+            boolean skipped;
+            synchronized (valueTimestamp) {
+                // Update was already applied by a state transfer
+                skipped = installed.test(update);
+            }
+            if (!skipped) {
+                // Executes the update, updates of other cameras might be executing
+                update.accept(storageHandler);
+                applied = true;
+            }
+        } finally {
+            List<QueryScheduler.Query> released;
+            synchronized (valueTimestamp) {
+                if (applied) appliedTimestamp.merge(update.getTimestamp());
+                // The update no longer holds back the value timestamp
+                updateLog.done(update);
+                released = advanceValue();
+            }
+            // Notify threads that might be waiting for updates
+            synchronized (updateLogMonitor) {
+                updateLogMonitor.notifyAll();
+            }
+            runQueries(released);
+        }
+    }
+
+    /**
+     * Raises the value timestamp to the updates applied, stopping each entry
+     * short of the first update of that replica still in the log, and releases
+     * the updates and queries waiting on it. Guarded by the value timestamp
+     * @return the queries released, to run outside the lock
+     */
+    private List<QueryScheduler.Query> advanceValue() {
+        for (int replica = 1; replica <= timestampTable.length; replica++) {
+            long reached = Math.min(appliedTimestamp.getReplicaInstanceValue(replica),
+                    updateLog.lowestHeld(replica) - 1);
+            if (reached > valueTimestamp.getReplicaInstanceValue(replica)) {
+                valueTimestamp.setReplicaInstanceValue(replica, reached);
+            }
+        }
+        // Release the updates waiting on the updates applied
+        updateLog.advance(valueTimestamp);
+        return queryScheduler.advance(valueTimestamp);
+    }
+
     /**
      * Method to send the logs to other replicas
      */
     private void sendLog() {
-        List<Update> updatesToSend;
-        VectorTimestamp timestamp;
-
-        // Copy timestamp so that if an update is received between the copy of updateLog
-        // and sending the gossip, the sent replica timestamp is not updated
-        synchronized (replicaTimestamp) {
-            timestamp = VectorTimestamp.copyOf(replicaTimestamp);
-            // copies updates to another list to release locks
-            // for update log and unconfirmed operations while sending
-            synchronized (updateLog) {
-                updatesToSend = new ArrayList<>(updateLog);
+        // Each replica is only sent the updates it has not acknowledged
+        gossipSender.send(gossipLog).thenAccept(partial -> {
+            if (partial) gossipScheduler.moreToSend();
+        });
+        checkStalled();
+    }
+
+    /**
+     * Method to fetch the state of another replica when updates wait for
+     * too long, because the updates they depend on are no longer in any log
+     */
+    private void checkStalled() {
+        VectorTimestamp value;
+        synchronized (valueTimestamp) {
+            value = VectorTimestamp.copyOf(valueTimestamp);
+        }
+        long now = System.currentTimeMillis();
+        if (updateLog.isEmpty() || !value.equals(lastSentValue)) {
+            stalledSince = now;
+        }
+        lastSentValue = value;
+        // Gossip had time to bring the missing updates
+        if (now - stalledSince >= MAX_STALLED_ROUNDS * gossipScheduler.getMaxDelay()) {
+            stalledSince = now;
+            executorService.execute(this::fetchState);
+        }
+    }
+
+    /**
+     * Method to replace the state of this replica with the state of another
+     * replica, if it is more recent. Updates the other replica had are dropped
+     * from the log, the rest are applied on top of the new state
+     */
+    private void fetchState() {
+        if (!transferring.compareAndSet(false, true)) return;
+        try {
+            gossipSender.fetchState().ifPresent(this::install);
+        } finally {
+            transferring.set(false);
+        }
+    }
+
+    private void install(ReplicaSnapshot snapshot) {
+        try (snapshot) {
+            List<QueryScheduler.Query> released;
+            // No update is applied while the state is replaced
+            updateApplier.pause();
+            try {
+                synchronized (valueTimestamp) {
+                    VectorTimestamp value = snapshot.getValueTimestamp();
+                    if (!appliedTimestamp.happensBefore(value) || appliedTimestamp.equals(value)) {
+                        System.out.println(String.format("INFO: Ignoring state with timestamp '%s', replica is at '%s'",
+                                value, appliedTimestamp));
+                        return;
+                    }
+                    storageHandler.restore(snapshot);
+                    appliedTimestamp.merge(value);
+                    // Updates pending in the other replica are not applied even if the value timestamp covers them
+                    Set<Update> pending = new HashSet<>(snapshot.getPending());
+                    installed = update -> update.getTimestamp().happensBefore(value) && !pending.contains(update);
+                    synchronized (updateLog) {
+                        replicaTimestamp.merge(value);
+                        updateLog.removeIf(installed);
+                        List<Update> newUpdates = new ArrayList<>(pending);
+                        newUpdates.removeAll(updateLog.toList());
+                        if (!newUpdates.isEmpty()) {
+                            journal.append(newUpdates);
+                        }
+                        for (Update update : newUpdates) {
+                            replicaTimestamp.merge(update.getTimestamp());
+                        }
+                        gossipLog.addAll(newUpdates);
+                        updateLog.addAll(newUpdates);
+                        gossipScheduler.updatesAdded(newUpdates.size());
+                    }
+                    // Pending updates of the other replica hold the value back until applied here
+                    released = advanceValue();
+                    System.out.println(String.format("INFO: Installed state with timestamp '%s'", appliedTimestamp));
+                }
+            } finally {
+                updateApplier.resume();
             }
+            synchronized (updateLogMonitor) {
+                updateLogMonitor.notifyAll();
+            }
+            runQueries(released);
         }
-        synchronized (unconfirmedOperations) {
-            updatesToSend.addAll(unconfirmedOperations);
+        // The journal does not have the transferred updates
+        if (snapshotInterval > 0) saveSnapshot();
+    }
+
+    /**
+     * Method to save a snapshot of the replica and discard the journaled
+     * updates the previous snapshot has. Only the snapshot is taken with the updates
+     * paused, it is saved while updates go on
+     */
+    private synchronized void saveSnapshot() {
+        synchronized (valueTimestamp) {
+            if (appliedTimestamp.equals(snapshotTimestamp)) return;
+        }
+        try (ReplicaSnapshot snapshot = takeSnapshot()) {
+            snapshotStore.save(snapshot);
+            if (previousSnapshotTimestamp != null) {
+                journal.truncate(previousSnapshotTimestamp);
+            }
+            previousSnapshotTimestamp = snapshot.getValueTimestamp();
+            snapshotTimestamp = snapshot.getValueTimestamp();
+            System.out.println(String.format("INFO: Saved snapshot with timestamp '%s'", snapshotTimestamp));
+        } catch (UncheckedIOException exception) {
+            System.out.println("SEVERE: Unable to save snapshot: " + exception.getMessage());
         }
-        gossipSender.send(updatesToSend, timestamp, timestampTable);
+    }
+
+    /**
+     * Takes a snapshot of the replica or shares the one already open. The
+     * snapshot is only taken with the updates paused, the replica
+     * goes on while it is read
+     * @return a snapshot, closing it releases it
+     */
+    private ReplicaSnapshot takeSnapshot() {
+        ReplicaSnapshot shared;
+        synchronized (snapshotLock) {
+            if (openSnapshot == null) {
+                // Only taken with no update halfway applied
+                updateApplier.pause();
+                try {
+                    synchronized (valueTimestamp) {
+                        VectorTimestamp replica = replicaTimestamp.snapshot();
+                        VectorTimestamp[] table = new VectorTimestamp[timestampTable.length];
+                        for (int i = 0; i < table.length; i++) {
+                            table[i] = i == replicaInstance - 1 ? replica : VectorTimestamp.copyOf(timestampTable[i]);
+                        }
+                        openSnapshot = storageHandler.snapshot(VectorTimestamp.copyOf(appliedTimestamp),
+                                replica, table, updateLog.toList());
+                    }
+                } finally {
+                    updateApplier.resume();
+                }
+            }
+            shared = openSnapshot;
+            snapshotReaders++;
+        }
+        AtomicBoolean released = new AtomicBoolean(false);
+        return new ReplicaSnapshot(shared.getValueTimestamp(), shared.getReplicaTimestamp(),
+                shared.getTimestampTable(), shared.getPending(), shared.getCameras(),
+                shared.getPeople(), shared.getCars(), () -> {
+            if (!released.compareAndSet(false, true)) return;
+            synchronized (snapshotLock) {
+                // The last reader releases the repositories
+                if (--snapshotReaders == 0) {
+                    openSnapshot = null;
+                    shared.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a snapshot of the replica to transfer to another replica
+     * @param otherReplica replica that asked for the state
+     * @return a snapshot that must be closed once it is sent
+     */
+    public ReplicaSnapshot transferState(int otherReplica) {
+        System.out.println(String.format("INFO: Transferring state to replica %d", otherReplica));
+        return takeSnapshot();
     }
 
     /* Query Operations */
@@ -149,7 +467,7 @@ public class ReplicaService {
         QueryResponse<CameraCoordinates> response = new QueryResponse<>();
         CameraCoordinates cameraCoordinates = queryHandler.camInfo(name);
         response.setData(cameraCoordinates);
-        response.setNewTS(valueTimestamp);
+        response.setNewTS(currentValue());
         return response;
     }
 
@@ -166,7 +484,7 @@ public class ReplicaService {
         QueryResponse<Person> response = new QueryResponse<>();
         Person person = queryHandler.trackPerson(id);
         response.setData(person);
-        response.setNewTS(valueTimestamp);
+        response.setNewTS(currentValue());
         return response;
     }
 
@@ -183,7 +501,7 @@ public class ReplicaService {
         QueryResponse<Car> response = new QueryResponse<>();
         Car car = queryHandler.trackCar(plate);
         response.setData(car);
-        response.setNewTS(valueTimestamp);
+        response.setNewTS(currentValue());
         return response;
     }
 
@@ -200,7 +518,7 @@ public class ReplicaService {
         QueryResponse<List<Person>> response = new QueryResponse<>();
         List<Person> people = queryHandler.trackPersonMatch(regex);
         response.setData(people);
-        response.setNewTS(valueTimestamp);
+        response.setNewTS(currentValue());
         return response;
     }
 
@@ -218,39 +536,105 @@ public class ReplicaService {
         QueryResponse<List<Car>> response = new QueryResponse<>();
         List<Car> cars = queryHandler.trackCarMatch(regex);
         response.setData(cars);
-        response.setNewTS(valueTimestamp);
+        response.setNewTS(currentValue());
         return response;
     }
 
     /**
-     * Traces the observations of a given person
+     * Traces the observations of a given person in a range
      * @param id of the person
-     * @return a list of person observations sorted by timestamp
+     * @param range of the observations to trace
+     * @return a page of person observations sorted by timestamp
      * @throws InvalidPersonIdException if the id is invalid
      * @throws MissingRequiredFieldException if the given param is null
      */
-    public QueryResponse<List<Person>> tracePerson(Long id)
+    public QueryResponse<TracePage<Person>> tracePerson(Long id, TraceRange range)
             throws InvalidPersonIdException, MissingRequiredFieldException {
-        QueryResponse<List<Person>> response = new QueryResponse<>();
-        List<Person> personList = queryHandler.tracePerson(id);
-        response.setData(personList);
-        response.setNewTS(valueTimestamp);
+        QueryResponse<TracePage<Person>> response = new QueryResponse<>();
+        TracePage<Person> personPage = queryHandler.tracePerson(id, range);
+        response.setData(personPage);
+        response.setNewTS(currentValue());
         return response;
     }
 
     /**
-     * Traces the observations of a car
+     * Traces the observations of a car in a range
      * @param plate of the car
-     * @return a list of car observations sorted by timestamp
+     * @param range of the observations to trace
+     * @return a page of car observations sorted by timestamp
      * @throws InvalidCarPlateException if the plate is invalid
      * @throws MissingRequiredFieldException if the given param is null
      */
-    public QueryResponse<List<Car>> traceCar(String plate)
+    public QueryResponse<TracePage<Car>> traceCar(String plate, TraceRange range)
             throws InvalidCarPlateException, MissingRequiredFieldException {
-        QueryResponse<List<Car>> response = new QueryResponse<>();
-        List<Car> carList = queryHandler.traceCar(plate);
-        response.setData(carList);
-        response.setNewTS(valueTimestamp);
+        QueryResponse<TracePage<Car>> response = new QueryResponse<>();
+        TracePage<Car> carPage = queryHandler.traceCar(plate, range);
+        response.setData(carPage);
+        response.setNewTS(currentValue());
+        return response;
+    }
+
+    /**
+     * Lazily tracks all last person observations whose ids match
+     * a regular expression
+     * @param regex to match
+     * @return a stream of person observations sorted by id
+     * @throws InvalidPersonIdRegexException if the id regex is invalid
+     * @throws MissingRequiredFieldException if the given param is null
+     */
+    public QueryResponse<Stream<Person>> streamPersonMatch(String regex)
+            throws InvalidPersonIdRegexException, MissingRequiredFieldException {
+        QueryResponse<Stream<Person>> response = new QueryResponse<>();
+        response.setData(queryHandler.streamPersonMatch(regex));
+        response.setNewTS(currentValue());
+        return response;
+    }
+
+    /**
+     * Lazily tracks all last car observations whose ids match
+     * a regular expression
+     * @param regex to match
+     * @return a stream of car observations sorted by plate
+     * @throws InvalidCarPlateRegexException if the plate regex is invalid
+     * @throws MissingRequiredFieldException if the given param is null
+     */
+    public QueryResponse<Stream<Car>> streamCarMatch(String regex)
+            throws InvalidCarPlateRegexException, MissingRequiredFieldException {
+        QueryResponse<Stream<Car>> response = new QueryResponse<>();
+        response.setData(queryHandler.streamCarMatch(regex));
+        response.setNewTS(currentValue());
+        return response;
+    }
+
+    /**
+     * Lazily traces the observations of a given person in a range
+     * @param id of the person
+     * @param range of the observations to trace
+     * @return a stream of person observations sorted by timestamp
+     * @throws InvalidPersonIdException if the id is invalid
+     * @throws MissingRequiredFieldException if the given param is null
+     */
+    public QueryResponse<Stream<Person>> streamPersonTrace(Long id, TraceRange range)
+            throws InvalidPersonIdException, MissingRequiredFieldException {
+        QueryResponse<Stream<Person>> response = new QueryResponse<>();
+        response.setData(queryHandler.streamPersonTrace(id, range));
+        response.setNewTS(currentValue());
+        return response;
+    }
+
+    /**
+     * Lazily traces the observations of a car in a range
+     * @param plate of the car
+     * @param range of the observations to trace
+     * @return a stream of car observations sorted by timestamp
+     * @throws InvalidCarPlateException if the plate is invalid
+     * @throws MissingRequiredFieldException if the given param is null
+     */
+    public QueryResponse<Stream<Car>> streamCarTrace(String plate, TraceRange range)
+            throws InvalidCarPlateException, MissingRequiredFieldException {
+        QueryResponse<Stream<Car>> response = new QueryResponse<>();
+        response.setData(queryHandler.streamCarTrace(plate, range));
+        response.setNewTS(currentValue());
         return response;
     }
 
@@ -266,16 +650,17 @@ public class ReplicaService {
      * @throws CameraInvalidArgumentsException if any of the arguments is invalid
      * @throws CameraAlreadyExistsException if already exists a camera with the same name
      * @throws MissingRequiredFieldException if a field is missing
+     * @throws ReplicaOverloadedException if the logs are full
      */
     public VectorTimestamp camJoin(String name, Double latitude, Double longitude, VectorTimestamp prev)
-            throws CameraInvalidArgumentsException, CameraAlreadyExistsException, MissingRequiredFieldException {
+            throws CameraInvalidArgumentsException, CameraAlreadyExistsException, MissingRequiredFieldException,
+            ReplicaOverloadedException {
         System.out.println(String.format("INFO: Received join from '%s'", name));
         storageHandler.checkCamJoin(name, latitude, longitude);
-        replicaTimestamp.incrementReplicaInstanceValue(replicaInstance);
-        VectorTimestamp ts = VectorTimestamp.copyOf(prev);
-        ts.setReplicaInstanceValue(replicaInstance, replicaTimestamp.getReplicaInstanceValue(replicaInstance));
+        checkCapacity();
+        VectorTimestamp ts = nextTimestamp(prev);
         // Submit operation for later execution
-        updateLog.add(new CamJoin(name, latitude, longitude, replicaInstance, ts, prev));
+        submit(new CamJoin(name, latitude, longitude, replicaInstance, ts, prev));
         return ts;
     }
 
@@ -290,17 +675,17 @@ public class ReplicaService {
      * @throws InvalidCarPlateException if a car plate is invalid
      * @throws InvalidPersonIdException if a person id is invalid
      * @throws MissingRequiredFieldException if a field is missing
+     * @throws ReplicaOverloadedException if the logs are full
      */
     public VectorTimestamp camReport(String name, List<Long> peopleIds, List<String> carPlates, VectorTimestamp prev)
             throws CameraInvalidArgumentsException, CameraNotFoundException, InvalidCarPlateException,
-            InvalidPersonIdException, MissingRequiredFieldException {
+            InvalidPersonIdException, MissingRequiredFieldException, ReplicaOverloadedException {
         System.out.println(String.format("INFO: Received report from '%s'", name));
         storageHandler.checkCamReport(name, peopleIds, carPlates);
-        replicaTimestamp.incrementReplicaInstanceValue(replicaInstance);
-        VectorTimestamp ts = VectorTimestamp.copyOf(prev);
-        ts.setReplicaInstanceValue(replicaInstance, replicaTimestamp.getReplicaInstanceValue(replicaInstance));
+        checkCapacity();
+        VectorTimestamp ts = nextTimestamp(prev);
         // Submit operation for later execution
-        updateLog.add(new CamReport(name, peopleIds, carPlates, Instant.now(), replicaInstance, ts, prev));
+        submit(new CamReport(name, peopleIds, carPlates, Instant.now(), replicaInstance, ts, prev));
         return ts;
     }
 
@@ -310,11 +695,9 @@ public class ReplicaService {
      * @return unique generated update id
      */
     public VectorTimestamp clear(VectorTimestamp prev) {
-        replicaTimestamp.incrementReplicaInstanceValue(replicaInstance);
-        VectorTimestamp ts = VectorTimestamp.copyOf(prev);
-        ts.setReplicaInstanceValue(replicaInstance, replicaTimestamp.getReplicaInstanceValue(replicaInstance));
+        VectorTimestamp ts = nextTimestamp(prev);
         // Submit operation for later execution
-        updateLog.add(new Clear(replicaInstance, ts, prev));
+        submit(new Clear(replicaInstance, ts, prev));
         return ts;
     }
 
@@ -336,52 +719,154 @@ public class ReplicaService {
             throws InvalidPersonIdException, InvalidCarPlateException, CameraNotFoundException,
             CameraInvalidArgumentsException, MissingRequiredFieldException, CameraAlreadyExistsException {
         storageHandler.checkInit(cameras, people, cars);
-        replicaTimestamp.incrementReplicaInstanceValue(replicaInstance);
-        VectorTimestamp ts = VectorTimestamp.copyOf(prev);
-        ts.setReplicaInstanceValue(replicaInstance, replicaTimestamp.getReplicaInstanceValue(replicaInstance));
+        VectorTimestamp ts = nextTimestamp(prev);
         // Submit operation for later execution
-        updateLog.add(new Init(cameras, people, cars, replicaInstance, ts, prev));
+        submit(new Init(cameras, people, cars, replicaInstance, ts, prev));
         return ts;
     }
 
+    /* Refuses camera updates while a log is full, the camera sends them again later */
+    private void checkCapacity() throws ReplicaOverloadedException {
+        int pending = updateLog.size();
+        if (pending >= logLimits.getMaxPending()) {
+            throw new ReplicaOverloadedException(pending, logLimits.getRetryDelay());
+        }
+        int unconfirmed = gossipLog.size();
+        if (unconfirmed >= logLimits.getMaxUnconfirmed()) {
+            throw new ReplicaOverloadedException(unconfirmed, logLimits.getRetryDelay());
+        }
+    }
+
+    /**
+     * Runs a query once this replica applied every update its client saw, so
+     * that the client reads its own updates. No thread waits for the query:
+     * it is run by the thread applying the last update it needs, or once the
+     * wait expired, answering with the updates applied by then
+     * @param prev timestamp of the client
+     * @param maxWait milliseconds the query may wait, 0 to run it at once
+     * @param query to run
+     */
+    public void whenApplied(VectorTimestamp prev, long maxWait, Runnable query) {
+        // Timestamps of another number of replicas can never be reached
+        if (maxWait <= 0 || prev.size() != timestampTable.length || !running) {
+            query.run();
+            return;
+        }
+        QueryScheduler.Query waiting = new QueryScheduler.Query(prev, query);
+        if (queryScheduler.add(waiting)) {
+            query.run();
+            return;
+        }
+        try {
+            executorService.schedule(() -> {
+                if (queryScheduler.remove(waiting)) runQueries(List.of(waiting));
+            }, Math.min(maxWait, MAX_QUERY_WAIT), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException exception) {
+            // Replica closed meanwhile
+            if (queryScheduler.remove(waiting)) query.run();
+        }
+    }
+
+    /* Hands the released queries to the query threads, or runs them if the replica is closed */
+    private void runQueries(List<QueryScheduler.Query> released) {
+        for (QueryScheduler.Query query : released) {
+            try {
+                queryExecutor.execute(query.getTask());
+            } catch (RejectedExecutionException exception) {
+                query.getTask().run();
+            }
+        }
+    }
+
+    /**
+     * @return copy of the value timestamp, the updates applied by this replica
+     */
+    public VectorTimestamp getValueTimestamp() {
+        return currentValue();
+    }
+
+    /* Copy of the value timestamp, taken while no update changes it */
+    private VectorTimestamp currentValue() {
+        synchronized (valueTimestamp) {
+            return VectorTimestamp.copyOf(valueTimestamp);
+        }
+    }
+
+    /* Timestamp of a new local update, the entry of this replica is unique */
+    private VectorTimestamp nextTimestamp(VectorTimestamp prev) {
+        VectorTimestamp ts = VectorTimestamp.copyOf(prev);
+        synchronized (accepting) {
+            long entry = replicaTimestamp.increment(replicaInstance);
+            accepting.add(entry);
+            ts.setReplicaInstanceValue(replicaInstance, entry);
+        }
+        return ts;
+    }
+
+    /* Journals an accepted update before it can be applied or acknowledged */
+    private void submit(Update update) {
+        boolean journaled = false;
+        try {
+            journal.append(update);
+            journaled = true;
+        } finally {
+            // Other replicas drop the updates of this replica older than the last one
+            // they received, so local updates can not be sent before the ones accepted earlier
+            long entry = update.getTimestamp().getReplicaInstanceValue(replicaInstance);
+            boolean interrupted = false;
+            synchronized (accepting) {
+                while (accepting.first() < entry) {
+                    try {
+                        accepting.wait();
+                    } catch (InterruptedException exception) {
+                        interrupted = true;
+                    }
+                }
+                if (journaled) {
+                    gossipLog.add(update);
+                    updateLog.add(update);
+                }
+                accepting.remove(entry);
+                accepting.notifyAll();
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        gossipScheduler.updatesAdded(1);
+    }
+
     /**
      * Updates the service with the other replica log
      * @param updates to add to the log
      * @param timestamp of the gossip message
      * @param otherReplica replica that sent the message
+     * @return replica timestamp after the updates, acknowledging them to the other replica
      */
-    public void gossip(List<Update> updates, VectorTimestamp timestamp, int otherReplica) {
-        System.out.println(String.format("INFO: Received %d updates from replica %d with timestamp '%s': %s ",
-                                        updates.size(), otherReplica, timestamp,  updates));
+    public VectorTimestamp gossip(List<Update> updates, VectorTimestamp timestamp, int otherReplica) {
+        System.out.println(String.format("INFO: Received %d updates from replica %d with timestamp '%s'",
+                                        updates.size(), otherReplica, timestamp));
+        VectorTimestamp acknowledged;
         // Merge update log
         synchronized (updateLog) {
-            updateLog.addAll(updates.stream()
-                    .filter(update -> !update.getTimestamp().happensBefore(replicaTimestamp))
-                    .collect(Collectors.toList()));
+            List<Update> newUpdates = updates.stream()
+                    .filter(update -> !replicaTimestamp.covers(update.getTimestamp()))
+                    .collect(Collectors.toList());
+            if (!newUpdates.isEmpty()) {
+                journal.append(newUpdates);
+            }
+            // Other replicas might not have the new updates yet
+            gossipLog.addAll(newUpdates);
+            updateLog.addAll(newUpdates);
             replicaTimestamp.merge(timestamp);
+            acknowledged = replicaTimestamp.snapshot();
             // No need to apply stable updates, thread that is always executing
 
             // Update saved timestamp for other replica
             timestampTable[otherReplica - 1] = timestamp;
+            gossipLog.observe(otherReplica, timestamp);
+            // Forward the new updates soon
+            gossipScheduler.updatesAdded(newUpdates.size());
         }
-        // Eliminate from unconfirmed operations updates that were applied everywhere
-        synchronized (unconfirmedOperations) {
-            unconfirmedOperations.removeIf(this::updateReceivedInAllReplicas);
-        }
-        // Notify for new updates if thread is waiting
-        synchronized (valueTimestamp) {
-            valueTimestamp.notifyAll();
-        }
-    }
-
-    private boolean updateReceivedInAllReplicas(Update update) {
-        int c = update.getReplicaInstance();
-        for (VectorTimestamp vectorTimestamp : timestampTable) {
-            if (vectorTimestamp.getReplicaInstanceValue(c) < update.getTimestamp().getReplicaInstanceValue(c)) {
-                return false;
-            }
-        }
-        return true;
+        return acknowledged;
     }
 
 }
@@ -0,0 +1,38 @@
+package pt.tecnico.sauron.silo.service;
+
+import pt.tecnico.sauron.silo.replication.ReplicaSnapshot;
+
+import java.util.Optional;
+
+/**
+ * Interface to durably keep snapshots of the replica state
+ */
+public interface SnapshotStore {
+
+    /**
+     * Store that keeps no snapshots
+     */
+    SnapshotStore NONE = new SnapshotStore() {
+        @Override
+        public void save(ReplicaSnapshot snapshot) {
+        }
+
+        @Override
+        public Optional<ReplicaSnapshot> loadLatest() {
+            return Optional.empty();
+        }
+    };
+
+    /**
+     * Saves a snapshot. Only returns once it is durable
+     * @param snapshot to save
+     * @throws java.io.UncheckedIOException if the snapshot could not be saved
+     */
+    void save(ReplicaSnapshot snapshot);
+
+    /**
+     * Loads the most recent valid snapshot
+     * @return the snapshot, to be closed once read, or empty if there is none
+     */
+    Optional<ReplicaSnapshot> loadLatest();
+}
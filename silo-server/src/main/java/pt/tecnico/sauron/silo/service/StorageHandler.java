@@ -91,6 +91,39 @@ public class StorageHandler implements UpdateVisitor {
         }
     }
 
+    /**
+     * Takes a snapshot of the repositories. Must be called while no update
+     * is being applied, the snapshot is then read while updates go on
+     * @param valueTimestamp of the applied updates
+     * @param replicaTimestamp of the accepted updates
+     * @param timestampTable last known timestamps of the replicas
+     * @param pending updates accepted but not yet applied
+     * @return the snapshot, to be closed once read
+     */
+    public ReplicaSnapshot snapshot(VectorTimestamp valueTimestamp, VectorTimestamp replicaTimestamp,
+                                    VectorTimestamp[] timestampTable, List<Update> pending) {
+        ObservationSnapshot<Person> people = personRepository.snapshot();
+        ObservationSnapshot<Car> cars = carRepository.snapshot();
+        return new ReplicaSnapshot(valueTimestamp, replicaTimestamp, timestampTable, pending,
+                cameraRepository.list(), people, cars, () -> {
+                    people.close();
+                    cars.close();
+                });
+    }
+
+    /**
+     * Replaces the content of the repositories with a snapshot
+     * @param snapshot to restore
+     */
+    public void restore(ReplicaSnapshot snapshot) {
+        synchronized (this) {
+            clear();
+            snapshot.getCameras().forEach(cameraRepository::join);
+            snapshot.getPeople().forEach(observations -> observations.forEach(personRepository::report));
+            snapshot.getCars().forEach(observations -> observations.forEach(carRepository::report));
+        }
+    }
+
     /**
      * Checks if the given arguments are well formatted for a camera join
      * @param name name of the camera
@@ -0,0 +1,133 @@
+package pt.tecnico.sauron.silo.service;
+
+import pt.tecnico.sauron.silo.replication.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Applies stable updates on a pool of workers. Updates of a camera always go
+ * to the same worker, in the order they are submitted, while updates of
+ * different cameras touch different observations and are applied at the
+ * same time. Clear and init change the whole replica, so they are only
+ * applied once every update submitted before them was applied
+ */
+public class UpdateApplier implements AutoCloseable {
+
+    private final ExecutorService[] workers;
+    /* Shared by the updates being applied, exclusive while paused */
+    private final ReadWriteLock applyLock = new ReentrantReadWriteLock();
+    // Guarded by this
+    private int inFlight = 0;
+
+    /**
+     * @param workers number of threads applying updates
+     */
+    public UpdateApplier(int workers) {
+        this.workers = new ExecutorService[Math.max(1, workers)];
+        for (int i = 0; i < this.workers.length; i++) {
+            String name = "update-applier-" + i;
+            this.workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Applies an update after the updates it might conflict with
+     * @param update to apply, stable
+     * @param apply applies the update to the replica
+     * @throws InterruptedException if interrupted while waiting to apply a clear or init
+     */
+    public void submit(Update update, Consumer<Update> apply) throws InterruptedException {
+        ShardSelector selector = new ShardSelector();
+        update.accept(selector);
+        if (selector.camera == null) {
+            // Barrier, nothing else is submitted until it is applied
+            awaitIdle();
+            run(update, apply);
+            return;
+        }
+        synchronized (this) {
+            inFlight++;
+        }
+        workers[Math.floorMod(selector.camera.hashCode(), workers.length)].execute(() -> {
+            try {
+                run(update, apply);
+            } finally {
+                synchronized (this) {
+                    if (--inFlight == 0) notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the updates being applied and stops applying updates until
+     * resumed, so that the replica can be read or replaced as a whole.
+     * Must be resumed by the same thread
+     */
+    public void pause() {
+        applyLock.writeLock().lock();
+    }
+
+    public void resume() {
+        applyLock.writeLock().unlock();
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService worker : workers) {
+            worker.shutdownNow();
+        }
+    }
+
+    private synchronized void awaitIdle() throws InterruptedException {
+        while (inFlight > 0) {
+            wait();
+        }
+    }
+
+    private void run(Update update, Consumer<Update> apply) {
+        applyLock.readLock().lock();
+        try {
+            apply.accept(update);
+        } catch (RuntimeException exception) {
+            System.out.println(String.format("SEVERE: Unable to apply update %s: %s", update, exception.getMessage()));
+            exception.printStackTrace();
+        } finally {
+            applyLock.readLock().unlock();
+        }
+    }
+
+    /* Finds the camera of an update, null for the updates that change every camera */
+    private static class ShardSelector implements UpdateVisitor {
+
+        private String camera;
+
+        @Override
+        public void visit(CamJoin camJoin) {
+            camera = camJoin.getName();
+        }
+
+        @Override
+        public void visit(CamReport camReport) {
+            camera = camReport.getName();
+        }
+
+        @Override
+        public void visit(Clear clear) {
+            camera = null;
+        }
+
+        @Override
+        public void visit(Init init) {
+            camera = null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package pt.tecnico.sauron.silo.service;
+
+import pt.tecnico.sauron.silo.replication.Update;
+import pt.tecnico.sauron.silo.replication.VectorTimestamp;
+
+import java.util.List;
+
+/**
+ * Interface to durably record the updates accepted by a replica
+ * so that they can be applied again after a restart
+ */
+public interface UpdateJournal extends AutoCloseable {
+
+    /**
+     * Journal that records nothing, for replicas that keep no state between restarts
+     */
+    UpdateJournal NONE = new UpdateJournal() {
+        @Override
+        public void append(List<Update> updates) {
+        }
+
+        @Override
+        public List<Update> recover() {
+            return List.of();
+        }
+
+        @Override
+        public void truncate(VectorTimestamp timestamp) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Records the given updates. Only returns once they are durable
+     * @param updates accepted by the replica
+     * @throws java.io.UncheckedIOException if the updates could not be recorded
+     */
+    void append(List<Update> updates);
+
+    /**
+     * Records a single update. Only returns once it is durable
+     * @param update accepted by the replica
+     * @throws java.io.UncheckedIOException if the update could not be recorded
+     */
+    default void append(Update update) {
+        append(List.of(update));
+    }
+
+    /**
+     * Reads every update recorded before this replica started
+     * @return the recorded updates in the order they were appended
+     */
+    List<Update> recover();
+
+    /**
+     * Discards updates no longer needed to recover, because a snapshot
+     * of the replica already has them. Some of them may be kept
+     * @param timestamp of the snapshot, updates that happen before it can be discarded
+     */
+    void truncate(VectorTimestamp timestamp);
+
+    @Override
+    void close();
+}
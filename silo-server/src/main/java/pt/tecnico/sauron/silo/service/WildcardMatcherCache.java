@@ -0,0 +1,37 @@
+package pt.tecnico.sauron.silo.service;
+
+import pt.tecnico.sauron.silo.domain.WildcardMatcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of compiled wildcard matchers, keyed by the
+ * raw spotter pattern, so repeated searches skip the compilation
+ */
+public class WildcardMatcherCache {
+
+    private final Map<String, WildcardMatcher> cache;
+
+    public WildcardMatcherCache(int maxCacheSize) {
+        // Access order so that the eldest entry is the least recently used
+        this.cache = new LinkedHashMap<>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WildcardMatcher> eldest) {
+                return size() > maxCacheSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the matcher for the given pattern, compiling it if not cached
+     * @param pattern to match
+     * @return the compiled matcher
+     */
+    public WildcardMatcher get(String pattern) {
+        // Lock because access ordered gets modify the map
+        synchronized (cache) {
+            return cache.computeIfAbsent(pattern, WildcardMatcher::compile);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package pt.tecnico.sauron.silo.domain;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdTrieTest {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 2000;
+
+    private IdTrie<String> trie;
+
+    @BeforeEach
+    public void setUp() {
+        trie = new IdTrie<>();
+        trie.insert("AA00BB", 1);
+        trie.insert("AA11CC", 2);
+        trie.insert("BB00AA", 3);
+        trie.insert("00AA00", 4);
+    }
+
+    @Test
+    public void prefixMatchTest() {
+        assertIterableEquals(List.of("AA00BB", "AA11CC"), trie.match(WildcardMatcher.compile("AA*"), 4));
+    }
+
+    @Test
+    public void literalMatchTest() {
+        assertIterableEquals(List.of("BB00AA"), trie.match(WildcardMatcher.compile("BB00AA"), 4));
+        assertIterableEquals(List.of(), trie.match(WildcardMatcher.compile("BB00A"), 4));
+    }
+
+    @Test
+    public void middleWildcardMatchTest() {
+        assertIterableEquals(List.of("00AA00", "AA00BB", "BB00AA"), trie.match(WildcardMatcher.compile("*00*"), 4));
+        assertIterableEquals(List.of("AA11CC"), trie.match(WildcardMatcher.compile("AA*CC"), 4));
+    }
+
+    @Test
+    public void leadingWildcardMatchTest() {
+        assertIterableEquals(List.of("BB00AA"), trie.match(WildcardMatcher.compile("*AA"), 4));
+    }
+
+    @Test
+    public void sortedByStringTest() {
+        // Digits before letters, as in the string order
+        assertIterableEquals(List.of("00AA00", "AA00BB", "AA11CC", "BB00AA"), trie.match(WildcardMatcher.compile("*"), 4));
+    }
+
+    @Test
+    public void snapshotLeavesOutLaterIdsTest() {
+        assertIterableEquals(List.of("AA00BB"), trie.match(WildcardMatcher.compile("AA*"), 1));
+        assertIterableEquals(List.of(), trie.match(WildcardMatcher.compile("*"), 0));
+    }
+
+    @Test
+    public void insertExistingIdTest() {
+        // Keeps the version it was first added with
+        trie.insert("AA00BB", 10);
+        assertIterableEquals(List.of("AA00BB", "AA11CC"), trie.match(WildcardMatcher.compile("AA*"), 4));
+    }
+
+    @Test
+    public void clearTest() {
+        trie.clear();
+        assertIterableEquals(List.of(), trie.match(WildcardMatcher.compile("*"), 4));
+    }
+
+    @Test
+    public void invalidCharacterTest() {
+        assertThrows(IllegalArgumentException.class, () -> trie.insert("aa00bb", 5));
+    }
+
+    @Test
+    public void concurrentInsertTest() throws Exception {
+        IdTrie<String> concurrentTrie = new IdTrie<>();
+        WildcardMatcher prefix = WildcardMatcher.compile("A*");
+        WildcardMatcher middle = WildcardMatcher.compile("*A00*");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> writers = new ArrayList<>();
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                int writer = thread;
+                // Ids of every writer share their first characters with the other writers
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < IDS_PER_THREAD; i++) {
+                        concurrentTrie.insert(idOf(writer, i), 1);
+                    }
+                    return null;
+                }));
+            }
+            Future<?> reader = executor.submit(() -> {
+                start.await();
+                List<String> previous = List.of();
+                while (!writers.stream().allMatch(Future::isDone)) {
+                    List<String> matches = concurrentTrie.match(prefix, 1);
+                    checkMatches(matches, prefix);
+                    // An id found once is found by every later search
+                    assertTrue(new HashSet<>(matches).containsAll(previous));
+                    previous = matches;
+                    checkMatches(concurrentTrie.match(middle, 1), middle);
+                }
+                return null;
+            });
+            start.countDown();
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            reader.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<String> all = concurrentTrie.match(WildcardMatcher.compile("*"), 1);
+        assertEquals(THREADS * IDS_PER_THREAD, all.size());
+        checkMatches(all, WildcardMatcher.compile("*"));
+        List<String> expected = new ArrayList<>();
+        for (int writer = 0; writer < THREADS; writer++) {
+            for (int i = 0; i < IDS_PER_THREAD; i++) {
+                String id = idOf(writer, i);
+                if (prefix.matches(id)) expected.add(id);
+            }
+        }
+        Collections.sort(expected);
+        assertIterableEquals(expected, concurrentTrie.match(prefix, 1));
+    }
+
+    /* Matches are sorted, unique and accepted by the matcher */
+    private static void checkMatches(List<String> matches, WildcardMatcher matcher) {
+        for (int i = 0; i < matches.size(); i++) {
+            assertTrue(matcher.matches(matches.get(i)), matches.get(i));
+            if (i > 0) {
+                assertTrue(matches.get(i - 1).compareTo(matches.get(i)) < 0, matches.get(i));
+            }
+        }
+    }
+
+    private static String idOf(int writer, int i) {
+        return String.format("%c%c%04d", (char) ('A' + i % 3), (char) ('A' + writer), i);
+    }
+}
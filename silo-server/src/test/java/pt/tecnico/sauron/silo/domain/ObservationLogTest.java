@@ -0,0 +1,171 @@
+package pt.tecnico.sauron.silo.domain;
+
+import org.junit.jupiter.api.*;
+
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObservationLogTest {
+
+    // Larger than a few chunks of the log
+    private static final int OBSERVATIONS = 50;
+    private static final Instant START = Instant.parse("2020-05-01T10:00:00Z");
+    private static final Camera CAMERA = new Camera("Cam1", 0.0, 0.0);
+
+    private ObservationLog<Person> log;
+
+    @BeforeEach
+    public void setUp() {
+        log = new ObservationLog<>();
+    }
+
+    @Test
+    public void appendInOrderTest() {
+        List<Person> expected = new ArrayList<>();
+        for (int i = 0; i < OBSERVATIONS; i++) {
+            Person person = person(2 * i);
+            log.add(person, 0, false);
+            expected.add(person);
+        }
+        assertEquals(expected.get(OBSERVATIONS - 1), log.getLatest());
+        Collections.reverse(expected);
+        assertIterableEquals(expected, log.read(TraceRange.all()).getObservations());
+    }
+
+    @Test
+    public void outOfOrderAcrossChunksTest() {
+        List<Person> expected = new ArrayList<>();
+        for (int i = 0; i < OBSERVATIONS; i++) {
+            Person person = person(2 * i);
+            log.add(person, 0, false);
+            expected.add(person);
+        }
+        Person latest = log.getLatest();
+        // Inserted at the start, around the end of the first chunks and before the last one
+        for (int second : new int[]{ -1, 1, 29, 31, 33, 63, 65, 2 * OBSERVATIONS - 3 }) {
+            Person person = person(second);
+            log.add(person, 0, false);
+            expected.add(person);
+        }
+        assertEquals(latest, log.getLatest());
+        assertEquals(expected.size(), log.size());
+        expected.sort(Comparator.comparing(Person::getTimestamp).reversed());
+        assertIterableEquals(expected, log.read(TraceRange.all()).getObservations());
+    }
+
+    @Test
+    public void sameTimestampKeepsOrderTest() {
+        log.add(person(0), 0, false);
+        log.add(person(2), 0, false);
+        Camera other = new Camera("Cam2", 1.0, 1.0);
+        log.add(new Person(1L, START.plusSeconds(1), other), 0, false);
+        log.add(new Person(1L, START.plusSeconds(1), CAMERA), 0, false);
+        // Read backwards, the last one added comes first
+        List<Person> observations = log.read(TraceRange.all()).getObservations();
+        assertEquals(4, observations.size());
+        assertSame(CAMERA, observations.get(1).getCamera());
+        assertSame(other, observations.get(2).getCamera());
+    }
+
+    @Test
+    public void boundsTest() {
+        for (int i = 0; i < OBSERVATIONS; i++) {
+            log.add(person(i), 0, false);
+        }
+        // Since is inclusive and until is exclusive
+        TraceRange range = new TraceRange(START.plusSeconds(10), START.plusSeconds(20), 0, null);
+        List<Person> observations = log.read(range).getObservations();
+        assertEquals(10, observations.size());
+        assertEquals(person(19), observations.get(0));
+        assertEquals(person(10), observations.get(9));
+        // Bounds between observations
+        range = new TraceRange(START.plusMillis(10500), START.plusMillis(12500), 0, null);
+        assertIterableEquals(List.of(person(12), person(11)), log.read(range).getObservations());
+        // Bounds outside the log
+        range = new TraceRange(START.minusSeconds(10), START.plusSeconds(1000), 0, null);
+        assertEquals(OBSERVATIONS, log.read(range).getObservations().size());
+        range = new TraceRange(START.plusSeconds(1000), null, 0, null);
+        assertIterableEquals(List.of(), log.read(range).getObservations());
+    }
+
+    @Test
+    public void pagesOverSameTimestampTest() {
+        log.add(person(0), 0, false);
+        for (int i = 0; i < OBSERVATIONS; i++) {
+            log.add(new Person(1L, START.plusSeconds(1), new Camera("Cam" + i, 0.0, 0.0)), 0, false);
+        }
+        log.add(person(2), 0, false);
+        List<Person> expected = log.read(TraceRange.all()).getObservations();
+
+        List<Person> paged = new ArrayList<>();
+        TraceCursor cursor = null;
+        do {
+            TracePage<Person> page = log.read(new TraceRange(null, null, 7, cursor));
+            paged.addAll(page.getObservations());
+            cursor = page.getNext().orElse(null);
+        } while (cursor != null);
+        // Compared by camera as the observations of a second are equal
+        assertEquals(expected.size(), paged.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i).getCamera(), paged.get(i).getCamera());
+        }
+    }
+
+    @Test
+    public void pageNotAffectedByInsertTest() {
+        for (int i = 0; i < OBSERVATIONS; i++) {
+            log.add(person(2 * i), 0, false);
+        }
+        TracePage<Person> first = log.read(new TraceRange(null, null, 10, null));
+        // An observation older than the cursor shows up in a later page
+        log.add(person(1), 0, false);
+        TracePage<Person> second = log.read(new TraceRange(null, null, 0, first.getNext().orElseThrow()));
+        assertEquals(OBSERVATIONS - 10 + 1, second.getObservations().size());
+        assertEquals(person(2 * (OBSERVATIONS - 11)), second.getObservations().get(0));
+    }
+
+    @Test
+    public void readAtEpochTest() {
+        log.add(person(0), 0, false);
+        log.add(person(1), 0, false);
+        // First change after a snapshot of epoch 0 keeps the observations before it
+        log.add(person(2), 1, true);
+        log.add(person(3), 1, true);
+        assertIterableEquals(List.of(person(0), person(1)), log.readAt(0));
+        assertIterableEquals(List.of(person(0), person(1), person(2), person(3)), log.readAt(1));
+    }
+
+    @Test
+    public void snapshotIsolationTest() {
+        PersonRepository repository = new PersonRepository();
+        repository.report(person(0));
+        repository.report(new Person(2L, START, CAMERA));
+
+        try (ObservationSnapshot<Person> snapshot = repository.snapshot()) {
+            // Changes while the snapshot is open, a new id and later observations
+            repository.report(person(1));
+            repository.report(person(-1));
+            repository.report(new Person(3L, START, CAMERA));
+
+            List<List<Person>> observations = new ArrayList<>();
+            snapshot.forEach(observations::add);
+            observations.sort(Comparator.comparing(list -> list.get(0).getId()));
+            assertIterableEquals(List.of(List.of(person(0)), List.of(new Person(2L, START, CAMERA))), observations);
+        }
+
+        try (ObservationSnapshot<Person> snapshot = repository.snapshot()) {
+            int count = 0;
+            for (List<Person> observations : snapshot) {
+                count += observations.size();
+            }
+            assertEquals(5, count);
+        }
+        assertEquals(person(1), repository.track(1L).orElseThrow());
+    }
+
+    private static Person person(int second) {
+        return new Person(1L, START.plusSeconds(second), CAMERA);
+    }
+}
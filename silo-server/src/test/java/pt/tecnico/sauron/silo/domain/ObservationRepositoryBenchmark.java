@@ -0,0 +1,102 @@
+package pt.tecnico.sauron.silo.domain;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of many cameras reporting to the observation repository at
+ * once, each thread reporting its own ids. With globalLock every report is
+ * serialized on one lock, as the repository did before, to compare with.
+ * Run with: mvn test-compile exec:exec@benchmark -Dbenchmark=ObservationRepositoryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(8)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ObservationRepositoryBenchmark {
+
+    private static final Instant START = Instant.parse("2020-05-01T10:00:00Z");
+    private static final Camera CAMERA = new Camera("Cam1", 0.0, 0.0);
+
+    @Param({"false", "true"})
+    public boolean globalLock;
+
+    // Ids reported by each thread, a new id is also indexed
+    @Param({"100", "100000"})
+    public int idsPerThread;
+
+    private final Object lock = new Object();
+    private PersonRepository repository;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        repository = new PersonRepository();
+    }
+
+    /**
+     * Ids and timestamps of the observations reported by one thread
+     */
+    @State(Scope.Thread)
+    public static class Reporter {
+
+        private static final AtomicInteger threads = new AtomicInteger();
+
+        private long firstId;
+        private int reports = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(ObservationRepositoryBenchmark benchmark) {
+            firstId = (long) threads.getAndIncrement() * benchmark.idsPerThread;
+        }
+
+        private Person next(int ids) {
+            // Timestamps only grow, as the reports of a camera
+            Person person = new Person(firstId + reports % ids, START.plusMillis(reports), CAMERA);
+            reports++;
+            return person;
+        }
+    }
+
+    @Benchmark
+    public void report(Reporter reporter) {
+        Person person = reporter.next(idsPerThread);
+        if (globalLock) {
+            synchronized (lock) {
+                repository.report(person);
+            }
+        }
+        else {
+            repository.report(person);
+        }
+    }
+
+    /* Searches running while the other threads report */
+
+    @Benchmark
+    @Group("reportWhileMatching")
+    @GroupThreads(7)
+    public void groupReport(Reporter reporter) {
+        report(reporter);
+    }
+
+    @Benchmark
+    @Group("reportWhileMatching")
+    @GroupThreads(1)
+    public void groupMatch(Blackhole blackhole) {
+        if (globalLock) {
+            synchronized (lock) {
+                blackhole.consume(repository.match(WildcardMatcher.compile("1*")).count());
+            }
+        }
+        else {
+            blackhole.consume(repository.match(WildcardMatcher.compile("1*")).count());
+        }
+    }
+}
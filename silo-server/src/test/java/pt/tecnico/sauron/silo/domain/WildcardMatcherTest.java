@@ -0,0 +1,116 @@
+package pt.tecnico.sauron.silo.domain;
+
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WildcardMatcherTest {
+
+    private static final String SYMBOLS = "AB0";
+    private static final int MAX_LENGTH = 6;
+
+    @Test
+    public void literalTest() {
+        WildcardMatcher matcher = WildcardMatcher.compile("AA00BB");
+        assertTrue(matcher.matches("AA00BB"));
+        assertFalse(matcher.matches("AA00B"));
+        assertFalse(matcher.matches("AA00BBB"));
+        assertFalse(matcher.matches("AA00BC"));
+    }
+
+    @Test
+    public void wildcardAtStartTest() {
+        WildcardMatcher matcher = WildcardMatcher.compile("*BB");
+        assertTrue(matcher.matches("BB"));
+        assertTrue(matcher.matches("AA00BB"));
+        assertTrue(matcher.matches("BBBB"));
+        assertFalse(matcher.matches("BBA"));
+    }
+
+    @Test
+    public void wildcardInMiddleTest() {
+        WildcardMatcher matcher = WildcardMatcher.compile("AA*BB");
+        assertTrue(matcher.matches("AABB"));
+        assertTrue(matcher.matches("AA00BB"));
+        // The wildcard can match the characters of the suffix
+        assertTrue(matcher.matches("AABBBB"));
+        assertFalse(matcher.matches("AAB"));
+        assertFalse(matcher.matches("ABB"));
+    }
+
+    @Test
+    public void wildcardAtEndTest() {
+        WildcardMatcher matcher = WildcardMatcher.compile("AA*");
+        assertTrue(matcher.matches("AA"));
+        assertTrue(matcher.matches("AA00BB"));
+        assertFalse(matcher.matches("A"));
+        assertFalse(matcher.matches("BAA"));
+    }
+
+    @Test
+    public void onlyWildcardTest() {
+        WildcardMatcher matcher = WildcardMatcher.compile("*");
+        assertTrue(matcher.matches(""));
+        assertTrue(matcher.matches("AA00BB"));
+    }
+
+    @Test
+    public void repeatedWildcardsTest() {
+        // Consecutive wildcards match the same as a single one
+        WildcardMatcher matcher = WildcardMatcher.compile("A**0");
+        assertTrue(matcher.matches("A0"));
+        assertTrue(matcher.matches("AB0"));
+        assertFalse(matcher.matches("AB"));
+    }
+
+    @Test
+    public void unsupportedCharacterTest() {
+        WildcardMatcher matcher = WildcardMatcher.compile("*");
+        assertFalse(matcher.matches("aa"));
+        assertTrue(matcher.isDead(matcher.step(matcher.start(), '-')));
+    }
+
+    @Test
+    public void deadStateTest() {
+        WildcardMatcher matcher = WildcardMatcher.compile("AB*");
+        int state = matcher.step(matcher.start(), 'A');
+        assertFalse(matcher.isDead(state));
+        assertFalse(matcher.isAccepting(state));
+        // No continuation of "B" can match, so the trie prunes it
+        int dead = matcher.step(matcher.start(), 'B');
+        assertTrue(matcher.isDead(dead));
+        assertTrue(matcher.isDead(matcher.step(dead, 'A')));
+        // A wildcard at the end accepts every continuation, the state is never dead
+        state = matcher.step(state, 'B');
+        for (char c : "AB0Z9".toCharArray()) {
+            state = matcher.step(state, c);
+            assertTrue(matcher.isAccepting(state));
+        }
+    }
+
+    @Test
+    public void subsetConstructionTest() {
+        // Every string over a small alphabet is matched as the equivalent regex does
+        List<String> inputs = new ArrayList<>();
+        generate("", inputs);
+        for (String pattern : List.of("*", "A", "A*", "*A", "A*B", "*A*", "*A*B*", "AB*AB", "*0A*0A*", "A*A*A", "**B**")) {
+            WildcardMatcher matcher = WildcardMatcher.compile(pattern);
+            Pattern regex = Pattern.compile(pattern.replace("*", ".*"));
+            for (String input : inputs) {
+                assertEquals(regex.matcher(input).matches(), matcher.matches(input), pattern + " on '" + input + "'");
+            }
+        }
+    }
+
+    private static void generate(String prefix, List<String> inputs) {
+        inputs.add(prefix);
+        if (prefix.length() == MAX_LENGTH) return;
+        for (char c : SYMBOLS.toCharArray()) {
+            generate(prefix + c, inputs);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package pt.tecnico.sauron.silo.persistence;
+
+import org.junit.jupiter.api.*;
+import pt.tecnico.sauron.silo.domain.Camera;
+import pt.tecnico.sauron.silo.domain.Car;
+import pt.tecnico.sauron.silo.domain.Person;
+import pt.tecnico.sauron.silo.domain.SavedObservation;
+import pt.tecnico.sauron.silo.replication.CamJoin;
+import pt.tecnico.sauron.silo.replication.ReplicaSnapshot;
+import pt.tecnico.sauron.silo.replication.Update;
+import pt.tecnico.sauron.silo.replication.VectorTimestamp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileSnapshotStoreTest {
+
+    private static final Instant START = Instant.parse("2020-05-01T10:00:00.123456789Z");
+
+    private final Camera known = new Camera("Cam1", 1.0, 2.0);
+    // Only referenced by observations, written along with the first one
+    private final Camera unknown = new Camera("Cam2", 3.0, 4.0);
+
+    private Path directory;
+    private FileSnapshotStore store;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snapshot-test");
+        store = new FileSnapshotStore(directory);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void emptyTest() {
+        assertTrue(store.loadLatest().isEmpty());
+    }
+
+    @Test
+    public void roundTripTest() {
+        List<List<Person>> people = List.of(
+                List.of(new Person(1L, START, known), new Person(1L, START.plusNanos(1), unknown)),
+                List.of(new Person(2L, START.plusSeconds(1), unknown)));
+        List<List<Car>> cars = List.of(
+                List.of(new Car("AA00BB", START, unknown), new Car("AA00BB", START.plusSeconds(2), known)));
+        store.save(snapshot(2, people, cars));
+
+        try (ReplicaSnapshot loaded = store.loadLatest().orElseThrow()) {
+            assertEquals(timestamp(2, 1), loaded.getValueTimestamp());
+            assertEquals(timestamp(3, 1), loaded.getReplicaTimestamp());
+            assertIterableEquals(List.of(timestamp(2, 1), timestamp(1, 1)), Arrays.asList(loaded.getTimestampTable()));
+            assertEquals(1, loaded.getPending().size());
+            CamJoin pending = (CamJoin) loaded.getPending().get(0);
+            assertEquals("Cam3", pending.getName());
+            assertEquals(timestamp(3, 1), pending.getTimestamp());
+            assertIterableEquals(List.of("Cam1"), cameraNames(loaded.getCameras()));
+
+            List<List<Person>> loadedPeople = new ArrayList<>();
+            loaded.getPeople().forEach(loadedPeople::add);
+            assertIterableEquals(people, loadedPeople);
+            assertIterableEquals(List.of("Cam1", "Cam2"), observationCameras(loadedPeople.get(0)));
+            assertIterableEquals(List.of("Cam2"), observationCameras(loadedPeople.get(1)));
+
+            List<List<Car>> loadedCars = new ArrayList<>();
+            loaded.getCars().forEach(loadedCars::add);
+            assertIterableEquals(cars, loadedCars);
+            assertIterableEquals(List.of("Cam2", "Cam1"), observationCameras(loadedCars.get(0)));
+        }
+    }
+
+    @Test
+    public void damagedSnapshotFallsBackTest() throws IOException {
+        store.save(snapshot(1, List.of(), List.of()));
+        store.save(snapshot(2, List.of(), List.of()));
+        Path newest = snapshots().get(1);
+        try (RandomAccessFile file = new RandomAccessFile(newest.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            int value = file.read();
+            file.seek(file.length() - 1);
+            file.write(value ^ 0xff);
+        }
+
+        try (ReplicaSnapshot loaded = store.loadLatest().orElseThrow()) {
+            assertEquals(timestamp(1, 1), loaded.getValueTimestamp());
+        }
+    }
+
+    @Test
+    public void missingHeaderFallsBackTest() throws IOException {
+        store.save(snapshot(1, List.of(), List.of()));
+        store.save(snapshot(2, List.of(), List.of()));
+        try (RandomAccessFile file = new RandomAccessFile(snapshots().get(1).toFile(), "rw")) {
+            file.setLength(Integer.BYTES);
+        }
+
+        try (ReplicaSnapshot loaded = store.loadLatest().orElseThrow()) {
+            assertEquals(timestamp(1, 1), loaded.getValueTimestamp());
+        }
+    }
+
+    @Test
+    public void keepsLastSnapshotsTest() throws IOException {
+        for (int i = 1; i <= 3; i++) {
+            store.save(snapshot(i, List.of(), List.of()));
+        }
+        assertEquals(2, snapshots().size());
+        try (ReplicaSnapshot loaded = store.loadLatest().orElseThrow()) {
+            assertEquals(timestamp(3, 1), loaded.getValueTimestamp());
+        }
+    }
+
+    private ReplicaSnapshot snapshot(long value, List<List<Person>> people, List<List<Car>> cars) {
+        List<Update> pending = List.of(new CamJoin("Cam3", 5.0, 6.0, 1, timestamp(value + 1, 1), timestamp(value, 1)));
+        VectorTimestamp[] table = {timestamp(value, 1), timestamp(1, 1)};
+        return new ReplicaSnapshot(timestamp(value, 1), timestamp(value + 1, 1), table, pending, List.of(known),
+                people, cars, () -> {});
+    }
+
+    private List<Path> snapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".snap")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static List<String> cameraNames(List<Camera> cameras) {
+        return cameras.stream().map(Camera::getName).collect(Collectors.toList());
+    }
+
+    private static List<String> observationCameras(List<? extends SavedObservation<?>> observations) {
+        return observations.stream().map(observation -> observation.getCamera().getName()).collect(Collectors.toList());
+    }
+
+    private static VectorTimestamp timestamp(long... values) {
+        return new VectorTimestamp(Arrays.stream(values).boxed().collect(Collectors.toList()));
+    }
+}
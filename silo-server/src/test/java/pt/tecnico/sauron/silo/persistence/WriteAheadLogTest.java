@@ -0,0 +1,160 @@
+package pt.tecnico.sauron.silo.persistence;
+
+import org.junit.jupiter.api.*;
+import pt.tecnico.sauron.silo.replication.CamJoin;
+import pt.tecnico.sauron.silo.replication.Update;
+import pt.tecnico.sauron.silo.replication.VectorTimestamp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+
+    private static final long SEGMENT_SIZE = 1 << 20;
+    // Magic number at the start of a segment
+    private static final int SEGMENT_HEADER_SIZE = Integer.BYTES;
+    // Length and checksum before each record
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private Path directory;
+    private WriteAheadLog log;
+    private final List<Update> updates = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("wal-test");
+        for (int i = 1; i <= 3; i++) {
+            updates.add(new CamJoin("Cam" + i, 0.0, 0.0, 1, timestamp(i, 0), timestamp(i - 1, 0)));
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (log != null) log.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void recoverTest() throws IOException {
+        log = new WriteAheadLog(directory, SEGMENT_SIZE, true);
+        log.append(updates.subList(0, 2));
+        log.append(updates.get(2));
+        // Appends of this run are only recovered by the next one
+        assertIterableEquals(List.of(), log.recover());
+        reopen(SEGMENT_SIZE);
+        assertNames(List.of("Cam1", "Cam2", "Cam3"), log.recover());
+    }
+
+    @Test
+    public void tornTailTruncatedTest() throws IOException {
+        log = new WriteAheadLog(directory, SEGMENT_SIZE, true);
+        updates.forEach(log::append);
+        log.close();
+        Path segment = singleSegment();
+        long validEnd = Files.size(segment) - recordSize(updates.get(2));
+        // Crash in the middle of the last record
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(validEnd + RECORD_HEADER_SIZE + 1);
+        }
+
+        reopen(SEGMENT_SIZE);
+        assertNames(List.of("Cam1", "Cam2"), log.recover());
+        assertEquals(validEnd, Files.size(segment));
+    }
+
+    @Test
+    public void checksumMismatchTest() throws IOException {
+        log = new WriteAheadLog(directory, SEGMENT_SIZE, true);
+        updates.forEach(log::append);
+        log.close();
+        Path segment = singleSegment();
+        long secondRecord = SEGMENT_HEADER_SIZE + recordSize(updates.get(0));
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(secondRecord + RECORD_HEADER_SIZE);
+            int value = file.read();
+            file.seek(secondRecord + RECORD_HEADER_SIZE);
+            file.write(value ^ 0xff);
+        }
+
+        // Records after the damaged one are dropped with it
+        reopen(SEGMENT_SIZE);
+        assertNames(List.of("Cam1"), log.recover());
+        assertEquals(secondRecord, Files.size(segment));
+    }
+
+    @Test
+    public void segmentRollAndTruncateTest() throws IOException {
+        // Every append starts a new segment
+        log = new WriteAheadLog(directory, 1, true);
+        updates.forEach(log::append);
+        assertEquals(3, segments().size());
+
+        // Segment being written is kept although the snapshot covers it
+        log.truncate(timestamp(3, 0));
+        assertEquals(1, segments().size());
+        reopen(1);
+        assertNames(List.of("Cam3"), log.recover());
+    }
+
+    @Test
+    public void truncateKeepsUncoveredSegmentsTest() throws IOException {
+        log = new WriteAheadLog(directory, 1, true);
+        updates.forEach(log::append);
+        log.truncate(timestamp(1, 0));
+        assertEquals(2, segments().size());
+
+        // Recovered segments are truncated as well
+        reopen(1);
+        assertNames(List.of("Cam2", "Cam3"), log.recover());
+        log.truncate(timestamp(2, 0));
+        assertEquals(1, segments().size());
+    }
+
+    @Test
+    public void appendAfterCloseTest() throws IOException {
+        log = new WriteAheadLog(directory, SEGMENT_SIZE, true);
+        log.close();
+        assertThrows(IllegalStateException.class, () -> log.append(updates.get(0)));
+    }
+
+    private void reopen(long segmentSize) throws IOException {
+        log.close();
+        log = new WriteAheadLog(directory, segmentSize, true);
+    }
+
+    private Path singleSegment() throws IOException {
+        List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".wal")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static long recordSize(Update update) {
+        return RECORD_HEADER_SIZE + UpdateCodec.encode(update).length;
+    }
+
+    private static void assertNames(List<String> expected, List<Update> recovered) {
+        assertIterableEquals(expected, recovered.stream()
+                .map(update -> ((CamJoin) update).getName())
+                .collect(Collectors.toList()));
+    }
+
+    private static VectorTimestamp timestamp(long... values) {
+        return new VectorTimestamp(Arrays.stream(values).boxed().collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,147 @@
+package pt.tecnico.sauron.silo.replication;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GossipLogTest {
+
+    private static final int REPLICAS = 3;
+    private static final int REPLICA = 1;
+
+    private GossipLog log;
+    private final List<Update> updates = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        log = new GossipLog(REPLICA, REPLICAS);
+        for (int i = 1; i <= 6; i++) {
+            updates.add(new Clear(REPLICA, timestamp(i, 0, 0), timestamp(i - 1, 0, 0)));
+        }
+    }
+
+    @Test
+    public void perPeerCursorsTest() {
+        log.addAll(updates.subList(0, 2));
+        GossipLog.Batch first = log.nextBatch(2);
+        assertIterableEquals(updates.subList(0, 2), first.getUpdates());
+        log.acknowledge(first, timestamp(2, 0, 0));
+
+        // Only the updates added since the last batch are sent again to the same peer
+        log.add(updates.get(2));
+        assertIterableEquals(updates.subList(2, 3), log.nextBatch(2).getUpdates());
+        assertIterableEquals(updates.subList(0, 3), log.nextBatch(3).getUpdates());
+        assertEquals(3, log.size());
+
+        log.acknowledge(log.nextBatch(3), timestamp(3, 0, 0));
+        assertEquals(1, log.size());
+    }
+
+    @Test
+    public void unacknowledgedBatchSentAgainTest() {
+        log.addAll(updates.subList(0, 2));
+        log.nextBatch(2);
+        assertIterableEquals(updates.subList(0, 2), log.nextBatch(2).getUpdates());
+    }
+
+    @Test
+    public void observedUpdatesNotSentTest() {
+        log.addAll(updates.subList(0, 3));
+        log.observe(3, timestamp(2, 0, 0));
+        GossipLog.Batch batch = log.nextBatch(3);
+        assertIterableEquals(updates.subList(2, 3), batch.getUpdates());
+        assertEquals(timestamp(3, 0, 0), batch.getTimestamp());
+        assertTrue(batch.isComplete());
+    }
+
+    @Test
+    public void unknownPeerTest() {
+        assertThrows(IllegalArgumentException.class, () -> log.nextBatch(REPLICA));
+        assertThrows(IllegalArgumentException.class, () -> log.nextBatch(REPLICAS + 1));
+    }
+
+    @Test
+    public void partialBatchTimestampTest() {
+        log = new GossipLog(REPLICA, REPLICAS, UpdateSpill.NONE, Integer.MAX_VALUE, 2);
+        log.addAll(updates.subList(0, 3));
+        GossipLog.Batch first = log.nextBatch(2);
+        assertIterableEquals(updates.subList(0, 2), first.getUpdates());
+        assertFalse(first.isComplete());
+        // Claiming the third update would make the peer skip it
+        assertEquals(timestamp(2, 0, 0), first.getTimestamp());
+
+        log.acknowledge(first, first.getTimestamp());
+        GossipLog.Batch second = log.nextBatch(2);
+        assertIterableEquals(updates.subList(2, 3), second.getUpdates());
+        assertTrue(second.isComplete());
+        assertEquals(timestamp(3, 0, 0), second.getTimestamp());
+    }
+
+    @Test
+    public void spillAndDiscardTest() {
+        MemorySpill spill = new MemorySpill();
+        log = new GossipLog(REPLICA, REPLICAS, spill, 4, Integer.MAX_VALUE);
+        updates.forEach(log::add);
+        // Spilled below the limit, so not on every update
+        assertEquals(2, log.spilled());
+        assertEquals(6, log.size());
+        assertIterableEquals(updates, log.nextBatch(2).getUpdates());
+
+        log.acknowledge(log.nextBatch(2), timestamp(6, 0, 0));
+        log.observe(3, timestamp(3, 0, 0));
+        assertEquals(3, log.size());
+        assertEquals(0, log.spilled());
+        assertEquals(2, spill.discarded);
+        assertIterableEquals(updates.subList(3, 6), log.nextBatch(3).getUpdates());
+    }
+
+    @Test
+    public void failedSpillKeptInMemoryTest() {
+        MemorySpill spill = new MemorySpill();
+        spill.failing = true;
+        log = new GossipLog(REPLICA, REPLICAS, spill, 4, Integer.MAX_VALUE);
+        updates.forEach(log::add);
+        assertEquals(0, log.spilled());
+        assertIterableEquals(updates, log.nextBatch(2).getUpdates());
+    }
+
+    private static VectorTimestamp timestamp(long... values) {
+        return new VectorTimestamp(Arrays.stream(values).boxed().collect(Collectors.toList()));
+    }
+
+    /* Keeps the spilled updates in a list, numbered by their position */
+    private static class MemorySpill implements UpdateSpill {
+
+        private final List<Update> updates = new ArrayList<>();
+        private long discarded = 0;
+        private boolean failing = false;
+
+        @Override
+        public long append(List<Update> newUpdates) {
+            if (failing) throw new UncheckedIOException(new IOException("Disk full"));
+            long index = updates.size();
+            updates.addAll(newUpdates);
+            return index;
+        }
+
+        @Override
+        public List<Update> read(long index, int count) {
+            assertTrue(index >= discarded, "Read a discarded update");
+            return new ArrayList<>(updates.subList((int) index, (int) index + count));
+        }
+
+        @Override
+        public void discard(long index) {
+            discarded = Math.max(discarded, index);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
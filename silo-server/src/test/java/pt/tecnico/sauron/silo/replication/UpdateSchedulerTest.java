@@ -0,0 +1,143 @@
+package pt.tecnico.sauron.silo.replication;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdateSchedulerTest {
+
+    private static final int REPLICAS = 2;
+    private static final int TIMEOUT = 5000;
+
+    private UpdateScheduler scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        scheduler = new UpdateScheduler(REPLICAS);
+    }
+
+    @Test
+    public void stableInTimestampOrderTest() throws InterruptedException {
+        Update second = update(1, timestamp(2, 0), timestamp(0, 0));
+        Update first = update(1, timestamp(1, 0), timestamp(0, 0));
+        scheduler.addAll(List.of(second, first));
+        assertSame(first, scheduler.take());
+        assertSame(second, scheduler.take());
+    }
+
+    @Test
+    public void waitsForPrevTest() throws InterruptedException {
+        Update waiting = update(2, timestamp(1, 1), timestamp(1, 0));
+        Update stable = update(1, timestamp(2, 1), timestamp(0, 0));
+        scheduler.add(waiting);
+        scheduler.add(stable);
+        // Taken first although it happens after the update still waiting
+        assertSame(stable, scheduler.take());
+
+        scheduler.advance(timestamp(1, 0));
+        assertSame(waiting, scheduler.take());
+    }
+
+    @Test
+    public void waitsForEveryEntryTest() throws InterruptedException {
+        Update waiting = update(1, timestamp(2, 1), timestamp(1, 1));
+        scheduler.add(waiting);
+        // Reaching the first entry it waits on is not enough
+        scheduler.advance(timestamp(1, 0));
+        Update stable = update(2, timestamp(2, 2), timestamp(0, 0));
+        scheduler.add(stable);
+        assertSame(stable, scheduler.take());
+
+        scheduler.advance(timestamp(1, 1));
+        assertSame(waiting, scheduler.take());
+    }
+
+    @Test
+    public void stableOnceValueReachedTest() throws InterruptedException {
+        scheduler.advance(timestamp(3, 3));
+        Update update = update(1, timestamp(4, 3), timestamp(3, 3));
+        scheduler.add(update);
+        assertSame(update, scheduler.take());
+    }
+
+    @Test
+    public void takeWaitsForStableTest() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Update> taken = executor.submit(scheduler::take);
+            Update update = update(1, timestamp(2, 0), timestamp(1, 0));
+            scheduler.add(update);
+            assertThrows(TimeoutException.class, () -> taken.get(100, TimeUnit.MILLISECONDS));
+            scheduler.advance(timestamp(1, 0));
+            assertSame(update, taken.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void removeIfTest() {
+        Update waiting = update(1, timestamp(2, 0), timestamp(1, 0));
+        Update stable = update(2, timestamp(0, 1), timestamp(0, 0));
+        Update kept = update(2, timestamp(0, 2), timestamp(0, 1));
+        scheduler.addAll(List.of(waiting, stable, kept));
+        assertEquals(3, scheduler.size());
+        assertEquals(Set.of(waiting, stable, kept), new HashSet<>(scheduler.toList()));
+
+        scheduler.removeIf(update -> update != kept);
+        assertEquals(1, scheduler.size());
+        assertIterableEquals(List.of(kept), scheduler.toList());
+        scheduler.removeIf(update -> true);
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void heldUntilDoneTest() throws InterruptedException {
+        Update first = update(1, timestamp(1, 0), timestamp(0, 0));
+        Update second = update(1, timestamp(2, 0), timestamp(0, 0));
+        Update other = update(2, timestamp(0, 1), timestamp(1, 0));
+        scheduler.addAll(List.of(first, second, other));
+        assertEquals(1, scheduler.lowestHeld(1));
+        assertEquals(1, scheduler.lowestHeld(2));
+
+        // Taken updates are still held, the value must not cover them yet
+        assertSame(first, scheduler.take());
+        assertEquals(1, scheduler.lowestHeld(1));
+        assertEquals(3, scheduler.size());
+        assertTrue(scheduler.toList().contains(first));
+
+        scheduler.done(first);
+        assertEquals(2, scheduler.lowestHeld(1));
+        assertEquals(2, scheduler.size());
+        assertSame(second, scheduler.take());
+        scheduler.done(second);
+        assertEquals(Long.MAX_VALUE, scheduler.lowestHeld(1));
+
+        // Removed updates are no longer held
+        scheduler.removeIf(update -> true);
+        assertEquals(Long.MAX_VALUE, scheduler.lowestHeld(2));
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void doneTwiceTest() throws InterruptedException {
+        Update update = update(1, timestamp(1, 0), timestamp(0, 0));
+        scheduler.add(update);
+        scheduler.done(scheduler.take());
+        scheduler.done(update);
+        assertTrue(scheduler.isEmpty());
+        assertEquals(Long.MAX_VALUE, scheduler.lowestHeld(1));
+    }
+
+    private static Update update(int replicaInstance, VectorTimestamp timestamp, VectorTimestamp prev) {
+        return new Clear(replicaInstance, timestamp, prev);
+    }
+
+    private static VectorTimestamp timestamp(long... values) {
+        return new VectorTimestamp(Arrays.stream(values).boxed().collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,163 @@
+package pt.tecnico.sauron.silo.replication;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Cost of the vector timestamp comparisons done for every update applied,
+ * gossiped or discarded, next to the boxed and locked timestamp they replaced.
+ * Run with: mvn test-compile exec:exec@benchmark -Dbenchmark=VectorTimestampBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class VectorTimestampBenchmark {
+
+    // Number of replicas
+    @Param({"3", "16"})
+    public int size;
+
+    private VectorTimestamp before;
+    private VectorTimestamp after;
+    private VectorTimestamp concurrent;
+    private VectorTimestamp merged;
+    private VectorClock clock;
+
+    private BoxedTimestamp boxedBefore;
+    private BoxedTimestamp boxedAfter;
+    private BoxedTimestamp boxedConcurrent;
+    private BoxedTimestamp boxedMerged;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<Long> low = new ArrayList<>();
+        List<Long> high = new ArrayList<>();
+        List<Long> mixed = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            low.add(100L + i);
+            high.add(200L + i);
+            // Only the last entry is behind, so comparisons read every entry
+            mixed.add(i == size - 1 ? 50L : 300L);
+        }
+        before = new VectorTimestamp(low);
+        after = new VectorTimestamp(high);
+        concurrent = new VectorTimestamp(mixed);
+        merged = new VectorTimestamp(size);
+        clock = new VectorClock(size);
+        clock.merge(after);
+
+        boxedBefore = new BoxedTimestamp(low);
+        boxedAfter = new BoxedTimestamp(high);
+        boxedConcurrent = new BoxedTimestamp(mixed);
+        boxedMerged = new BoxedTimestamp(size);
+    }
+
+    @Benchmark
+    public boolean happensBefore() {
+        return before.happensBefore(after);
+    }
+
+    @Benchmark
+    public boolean happensBeforeConcurrent() {
+        return before.happensBefore(concurrent);
+    }
+
+    @Benchmark
+    public int compareTo() {
+        return concurrent.compareTo(after);
+    }
+
+    @Benchmark
+    public VectorTimestamp merge() {
+        merged.merge(concurrent);
+        return merged;
+    }
+
+    @Benchmark
+    public boolean clockCovers() {
+        return clock.covers(before);
+    }
+
+    @Benchmark
+    public VectorTimestamp copyOf() {
+        return VectorTimestamp.copyOf(after);
+    }
+
+    @Benchmark
+    public boolean boxedHappensBefore() {
+        return boxedBefore.happensBefore(boxedAfter);
+    }
+
+    @Benchmark
+    public boolean boxedHappensBeforeConcurrent() {
+        return boxedBefore.happensBefore(boxedConcurrent);
+    }
+
+    @Benchmark
+    public int boxedCompareTo() {
+        return boxedConcurrent.compareTo(boxedAfter);
+    }
+
+    @Benchmark
+    public BoxedTimestamp boxedMerge() {
+        boxedMerged.merge(boxedConcurrent);
+        return boxedMerged;
+    }
+
+    /**
+     * Vector timestamp as it was before, boxed entries read under a lock
+     */
+    public static class BoxedTimestamp {
+
+        private final Long[] timestamp;
+
+        private BoxedTimestamp(int size) {
+            this.timestamp = new Long[size];
+            Arrays.fill(timestamp, 0L);
+        }
+
+        private BoxedTimestamp(List<Long> timestamp) {
+            this.timestamp = timestamp.toArray(new Long[0]);
+        }
+
+        private boolean happensBefore(BoxedTimestamp other) {
+            synchronized (this.timestamp) {
+                return IntStream.range(0, this.timestamp.length)
+                        .allMatch(index -> this.timestamp[index] <= other.timestamp[index]);
+            }
+        }
+
+        private synchronized void merge(BoxedTimestamp other) {
+            synchronized (this.timestamp) {
+                Arrays.setAll(this.timestamp, index -> Math.max(this.timestamp[index], other.timestamp[index]));
+            }
+        }
+
+        private int compareTo(BoxedTimestamp other) {
+            boolean happensBefore = true;
+            boolean happensAfter = true;
+            synchronized (this.timestamp) {
+                for (int i = 0; i < this.timestamp.length; i++) {
+                    if (this.timestamp[i] < other.timestamp[i]) {
+                        happensAfter = false;
+                    }
+                    else if (this.timestamp[i] > other.timestamp[i]) {
+                        happensBefore = false;
+                    }
+                }
+            }
+            if (happensBefore && happensAfter) return 0;
+            if (happensBefore) return -1;
+            if (happensAfter) return 1;
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package pt.tecnico.sauron.silo.replication;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WaitingIndexTest {
+
+    private static final int REPLICAS = 3;
+
+    // Each element is its own prev timestamp
+    private WaitingIndex<VectorTimestamp> index;
+
+    @BeforeEach
+    public void setUp() {
+        index = new WaitingIndex<>(REPLICAS, prev -> prev);
+    }
+
+    @Test
+    public void reachedNotKeptTest() {
+        assertTrue(index.schedule(timestamp(0, 0, 0)));
+        index.advance(timestamp(2, 1, 0));
+        assertTrue(index.schedule(timestamp(2, 1, 0)));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void releasedOnceReachedTest() {
+        VectorTimestamp first = timestamp(1, 0, 0);
+        VectorTimestamp second = timestamp(2, 0, 0);
+        VectorTimestamp third = timestamp(0, 0, 1);
+        for (VectorTimestamp element : List.of(third, second, first)) {
+            assertFalse(index.schedule(element));
+        }
+        assertEquals(3, index.size());
+
+        assertIterableEquals(List.of(first), index.advance(timestamp(1, 0, 0)));
+        assertIterableEquals(List.of(), index.advance(timestamp(1, 0, 0)));
+        assertEquals(Set.of(second, third), new HashSet<>(index.advance(timestamp(2, 0, 1))));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void waitsForEveryEntryTest() {
+        VectorTimestamp element = timestamp(1, 2, 1);
+        index.schedule(element);
+        // Reaching the entry it waits on moves it to the next one not reached
+        assertIterableEquals(List.of(), index.advance(timestamp(1, 1, 1)));
+        assertEquals(1, index.size());
+        assertIterableEquals(List.of(), index.advance(timestamp(5, 1, 5)));
+        assertIterableEquals(List.of(element), index.advance(timestamp(5, 2, 5)));
+    }
+
+    @Test
+    public void valueKeptWhileEmptyTest() {
+        index.advance(timestamp(3, 3, 3));
+        assertTrue(index.schedule(timestamp(3, 3, 3)));
+        // An older value never moves it back
+        index.advance(timestamp(1, 1, 1));
+        assertTrue(index.schedule(timestamp(2, 2, 2)));
+    }
+
+    @Test
+    public void removeTest() {
+        VectorTimestamp waiting = timestamp(0, 1, 0);
+        VectorTimestamp other = timestamp(0, 1, 1);
+        index.schedule(waiting);
+        index.schedule(other);
+        assertTrue(index.remove(waiting));
+        assertFalse(index.remove(waiting));
+        assertFalse(index.remove(timestamp(0, 0, 0)));
+        assertEquals(1, index.size());
+        assertIterableEquals(List.of(), index.advance(timestamp(0, 1, 0)));
+        assertIterableEquals(List.of(other), index.advance(timestamp(0, 1, 1)));
+    }
+
+    @Test
+    public void removeIfTest() {
+        index.schedule(timestamp(1, 0, 0));
+        index.schedule(timestamp(0, 1, 0));
+        index.schedule(timestamp(0, 0, 1));
+        List<VectorTimestamp> removed = index.removeIf(element -> element.getReplicaInstanceValue(1) == 0);
+        assertEquals(Set.of(timestamp(0, 1, 0), timestamp(0, 0, 1)), new HashSet<>(removed));
+        assertEquals(1, index.size());
+        List<VectorTimestamp> left = new ArrayList<>();
+        index.forEach(left::add);
+        assertIterableEquals(List.of(timestamp(1, 0, 0)), left);
+    }
+
+    private static VectorTimestamp timestamp(long... values) {
+        return new VectorTimestamp(Arrays.stream(values).boxed().collect(Collectors.toList()));
+    }
+}
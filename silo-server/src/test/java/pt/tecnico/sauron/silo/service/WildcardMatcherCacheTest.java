@@ -0,0 +1,40 @@
+package pt.tecnico.sauron.silo.service;
+
+import org.junit.jupiter.api.*;
+import pt.tecnico.sauron.silo.domain.WildcardMatcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WildcardMatcherCacheTest {
+
+    private WildcardMatcherCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        cache = new WildcardMatcherCache(2);
+    }
+
+    @Test
+    public void compiledOnceTest() {
+        WildcardMatcher matcher = cache.get("AA*");
+        assertEquals("AA*", matcher.getPattern());
+        assertSame(matcher, cache.get("AA*"));
+    }
+
+    @Test
+    public void keyedByRawPatternTest() {
+        // Equivalent patterns are still different keys
+        assertNotSame(cache.get("AA*"), cache.get("AA**"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedTest() {
+        WildcardMatcher first = cache.get("AA*");
+        WildcardMatcher second = cache.get("BB*");
+        // Using the first one makes the second the least recently used
+        cache.get("AA*");
+        cache.get("CC*");
+        assertSame(first, cache.get("AA*"));
+        assertNotSame(second, cache.get("BB*"));
+    }
+}
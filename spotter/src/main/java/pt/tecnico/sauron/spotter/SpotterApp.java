@@ -141,7 +141,8 @@ public class SpotterApp {
 				final String plate = input[2];
 
 				if (plate.contains("*")) {
-					System.out.println(spotterHandler.handleSpotMatchCar(plate));
+					spotterHandler.handleSpotMatchCar(plate, System.out::print);
+					System.out.println();
 				}
 
 				else {
@@ -163,7 +164,8 @@ public class SpotterApp {
 				final String personId = input[2];
 
 				if (isNumber(personId)) {
-					System.out.println(spotterHandler.handleTrailPerson(Long.parseLong(personId)));
+					spotterHandler.handleTrailPerson(Long.parseLong(personId), System.out::print);
+					System.out.println();
 					return;
 				}
 			}
@@ -171,7 +173,8 @@ public class SpotterApp {
 			else if (observationType.equals("car")) {
 				final String plate = input[2];
 
-				System.out.println(spotterHandler.handleTrailCar(plate));
+				spotterHandler.handleTrailCar(plate, System.out::print);
+				System.out.println();
 				return;
 			}
 		}
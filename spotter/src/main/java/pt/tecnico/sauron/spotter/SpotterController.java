@@ -6,6 +6,7 @@ import pt.tecnico.sauron.silo.grpc.*;
 import pt.ulisboa.tecnico.sdis.zk.ZKNamingException;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Class to transform the received inputs send the controller requests to the server
@@ -41,18 +42,18 @@ public class SpotterController {
         return frontend.sendSpotterTrackMatch(ObjectType.PERSON, regex);
     }
 
-    public SpotterTrackMatchResponse spotCarMatch(String regex) {
-        return frontend.sendSpotterTrackMatch(ObjectType.CAR, regex);
+    public void spotCarMatch(String regex, Consumer<ObservationInfo> consumer) {
+        frontend.sendSpotterTrackMatchStream(ObjectType.CAR, regex, consumer);
     }
 
-    public SpotterTraceResponse trailPerson(Long id) {
+    public void trailPerson(Long id, Consumer<ObservationInfo> consumer) {
         ObjectInfo observation = RequestBuilder.buildObjectInfo(ObjectType.PERSON, id);
-        return frontend.sendSpotterTrace(observation);
+        frontend.sendSpotterTraceStream(observation, consumer);
     }
 
-    public SpotterTraceResponse trailCar(String plate) {
+    public void trailCar(String plate, Consumer<ObservationInfo> consumer) {
         ObjectInfo observation = RequestBuilder.buildObjectInfo(ObjectType.CAR, plate);
-        return frontend.sendSpotterTrace(observation);
+        frontend.sendSpotterTraceStream(observation, consumer);
     }
 
     public PingResponse ping(String message) {
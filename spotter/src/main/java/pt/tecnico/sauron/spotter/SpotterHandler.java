@@ -7,6 +7,7 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Class to handle output and exceptions of the server responses
@@ -17,9 +18,6 @@ public class SpotterHandler {
     private static final Comparator<ObservationInfo> OBSERVATION_INFO_COMPARATOR_NUMERIC =
             Comparator.comparingLong(o -> o.getObservation().getObjectInfo().getNumericId());
 
-    private static final Comparator<ObservationInfo> OBSERVATION_INFO_COMPARATOR_ALPHANUMERIC =
-            Comparator.comparing(o -> o.getObservation().getObjectInfo().getAlphanumericId());
-
     private SpotterController spotterController;
 
     public SpotterHandler(SpotterController spotterController) {
@@ -86,68 +84,66 @@ public class SpotterHandler {
         }
     }
 
-    public String handleSpotMatchCar(String regex) {
+    /**
+     * Prints the matching cars as they are received, the server
+     * already sends them sorted by plate
+     * @param regex to match
+     * @param output to print to
+     */
+    public void handleSpotMatchCar(String regex, Consumer<String> output) {
         try {
-            String output = "";
-
-            SpotterTrackMatchResponse response = spotterController.spotCarMatch(regex);
-            List<ObservationInfo> observationInfoList = new ArrayList<>(response.getObservationInfosList());
-
-            observationInfoList.sort(OBSERVATION_INFO_COMPARATOR_ALPHANUMERIC);
+            int[] found = {0};
 
-            for (ObservationInfo observationInfo : observationInfoList) {
+            spotterController.spotCarMatch(regex, observationInfo -> {
                 CamInfo camInfo = observationInfo.getCamInfo();
                 Observation observation = observationInfo.getObservation();
 
-                output += printCar(camInfo, observation) + "\n";
-            }
+                output.accept(printCar(camInfo, observation) + "\n");
+                found[0]++;
+            });
 
-            return output.length() == 0 ? "Car(s) not found\n" : output;
+            if (found[0] == 0) output.accept("Car(s) not found\n");
 
         } catch (StatusRuntimeException exception) {
-            return "Caught exception: " + exception.getStatus().getDescription() + "\n";
+            output.accept("Caught exception: " + exception.getStatus().getDescription() + "\n");
         }
     }
 
-    public String handleTrailPerson(Long id) {
+    /**
+     * Prints the observations of a person as they are received
+     * @param id of the person
+     * @param output to print to
+     */
+    public void handleTrailPerson(Long id, Consumer<String> output) {
         try {
-            StringBuilder output = new StringBuilder();
-
-            SpotterTraceResponse response = spotterController.trailPerson(id);
-            List<ObservationInfo> observationInfoList = response.getObservationInfosList();
-
-            for (ObservationInfo observationInfo : observationInfoList) {
+            spotterController.trailPerson(id, observationInfo -> {
                 CamInfo camInfo = observationInfo.getCamInfo();
                 Observation observation = observationInfo.getObservation();
 
-                output.append(printPerson(camInfo, observation)).append("\n");
-            }
-
-            return output.toString();
+                output.accept(printPerson(camInfo, observation) + "\n");
+            });
 
         } catch (StatusRuntimeException exception) {
-            return "Caught exception: " + exception.getStatus().getDescription() + "\n";
+            output.accept("Caught exception: " + exception.getStatus().getDescription() + "\n");
         }
     }
 
-    public String handleTrailCar(String plate) {
+    /**
+     * Prints the observations of a car as they are received
+     * @param plate of the car
+     * @param output to print to
+     */
+    public void handleTrailCar(String plate, Consumer<String> output) {
         try {
-            StringBuilder output = new StringBuilder();
-
-            SpotterTraceResponse response = spotterController.trailCar(plate);
-            List<ObservationInfo> observationInfoList = response.getObservationInfosList();
-
-            for (ObservationInfo observationInfo : observationInfoList) {
+            spotterController.trailCar(plate, observationInfo -> {
                 CamInfo camInfo = observationInfo.getCamInfo();
                 Observation observation = observationInfo.getObservation();
 
-                output.append(printCar(camInfo, observation)).append("\n");
-            }
-
-            return output.toString();
+                output.accept(printCar(camInfo, observation) + "\n");
+            });
 
         } catch (StatusRuntimeException exception) {
-            return "Caught exception: " + exception.getStatus().getDescription() + "\n";
+            output.accept("Caught exception: " + exception.getStatus().getDescription() + "\n");
         }
     }
 